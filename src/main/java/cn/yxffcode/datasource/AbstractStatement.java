@@ -141,7 +141,7 @@ public abstract class AbstractStatement implements Statement {
   }
 
   public boolean isClosed() throws SQLException {
-    throw new SQLException("not support exception");
+    return closed;
   }
 
   public boolean isPoolable() throws SQLException {
@@ -0,0 +1,44 @@
+package cn.yxffcode.datasource;
+
+/**
+ * SQL开头的注释中指定的路由,例如:
+ * <pre>
+ *   /*+ master *&#47; select ...             强制使用主库
+ *   /*+ slave *&#47; insert into ... select  强制使用从库
+ *   /*+ slave:reporting *&#47; select ...     强制使用reporting分组中的从库
+ * </pre>
+ *
+ * @author gaohang
+ */
+public final class RouteHint {
+
+  public static final RouteHint MASTER = new RouteHint(true, null);
+  public static final RouteHint SLAVE = new RouteHint(false, null);
+
+  private final boolean master;
+  private final String slaveGroup;
+
+  private RouteHint(boolean master, String slaveGroup) {
+    this.master = master;
+    this.slaveGroup = slaveGroup;
+  }
+
+  public static RouteHint slave(String group) {
+    return new RouteHint(false, group);
+  }
+
+  public boolean isMaster() {
+    return master;
+  }
+
+  /**
+   * 从库分组,为null表示任意从库
+   */
+  public String getSlaveGroup() {
+    return slaveGroup;
+  }
+
+  @Override public String toString() {
+    return master ? "master" : slaveGroup == null ? "slave" : "slave:" + slaveGroup;
+  }
+}
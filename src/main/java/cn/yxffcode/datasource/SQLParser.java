@@ -1,7 +1,6 @@
 package cn.yxffcode.datasource;
 
 import java.sql.SQLException;
-import java.util.regex.Pattern;
 
 /**
  * 解析SQL语句，得到这条语句的类型
@@ -9,13 +8,103 @@ import java.util.regex.Pattern;
  * @author gaohang
  */
 public class SQLParser {
-  //	private static final ParserCache globalCache = ParserCache.instance();
   /**
-   * 用于判断是否是一个select ... for update的sql
+   * 只缓存反复出现的SQL,见{@link SqlTypeCache}
    */
-  private static final Pattern SELECT_FOR_UPDATE_PATTERN =
-      Pattern.compile("^select\\s+.*\\s+for\\s+update.*$",
-          Pattern.CASE_INSENSITIVE);
+  private static final SqlTypeCache SQL_TYPE_CACHE = new SqlTypeCache(4096);
+  private static final String HINT_PREFIX = "/*+";
+  private static final String SLAVE_GROUP_PREFIX = "slave:";
+
+  /**
+   * 获得SQL开头的注释中指定的路由,SQL不以{@code /*+}开头时直接返回null,不分配任何对象
+   *
+   * @return 没有路由注释或注释不是路由时返回null
+   */
+  public static RouteHint getRouteHint(String sql) {
+    int length = sql.length();
+    int begin = 0;
+    while (begin < length && Character.isWhitespace(sql.charAt(begin))) {
+      begin++;
+    }
+    if (!sql.startsWith(HINT_PREFIX, begin)) {
+      return null;
+    }
+    int end = sql.indexOf("*/", begin + HINT_PREFIX.length());
+    if (end < 0) {
+      return null;
+    }
+    int from = begin + HINT_PREFIX.length();
+    while (from < end && Character.isWhitespace(sql.charAt(from))) {
+      from++;
+    }
+    int to = end;
+    while (to > from && Character.isWhitespace(sql.charAt(to - 1))) {
+      to--;
+    }
+    int hintLength = to - from;
+    if (hintLength == 6 && sql.regionMatches(true, from, "master", 0, 6)) {
+      return RouteHint.MASTER;
+    }
+    if (hintLength == 5 && sql.regionMatches(true, from, "slave", 0, 5)) {
+      return RouteHint.SLAVE;
+    }
+    if (hintLength > SLAVE_GROUP_PREFIX.length()
+        && sql.regionMatches(true, from, SLAVE_GROUP_PREFIX, 0, SLAVE_GROUP_PREFIX.length())) {
+      return RouteHint.slave(sql.substring(from + SLAVE_GROUP_PREFIX.length(), to).trim());
+    }
+    return null;
+  }
+
+  /**
+   * 是否是set语句,set语句修改的是会话状态,需要在逻辑连接使用的所有物理连接上执行
+   */
+  public static boolean isSetStatement(String sql) {
+    return SqlScanner.isSet(sql);
+  }
+
+  /**
+   * set语句赋值的变量名,小写并去掉会话作用域的前缀,多个变量用逗号分隔
+   *
+   * @return 不是set语句或无法解析时返回null
+   */
+  public static String getSetVariables(String sql) {
+    return SqlScanner.setVariables(sql);
+  }
+
+  /**
+   * set autocommit = ...赋的值
+   *
+   * @return 值无法识别时返回null
+   */
+  public static Boolean getAutoCommitValue(String sql) {
+    return SqlScanner.autoCommitValue(sql);
+  }
+
+  /**
+   * set语句设置的会话隔离级别,见{@link java.sql.Connection}中的TRANSACTION_*常量
+   *
+   * @return 只对下一个事务生效、同时设置了访问模式或无法识别时返回-1
+   */
+  public static int getIsolationLevel(String sql) {
+    return SqlScanner.isolationLevel(sql);
+  }
+
+  /**
+   * insert/replace ... values (?, ...)语句中values后面一组值的位置[开始, 结束),
+   * 用于把批量执行改写成一条多行的insert
+   *
+   * @return 不是只有一组值、或者占位符不全在这组值中时返回null
+   */
+  public static int[] getValuesTuple(String sql) {
+    return SqlScanner.valuesTuple(sql);
+  }
+
+  /**
+   * 引号和注释之外的占位符个数
+   */
+  public static int countPlaceholders(String sql) {
+    return SqlScanner.countPlaceholders(sql, 0, sql.length());
+  }
 
   /**
    * 获得SQL语句种类
@@ -25,48 +114,12 @@ public class SQLParser {
    */
   public static SqlType getSqlType(String sql) throws SQLException {
     //#bug 2011-11-24,modify by junyu,先不走缓存，否则sql变化巨大，缓存换入换出太多，gc太明显
-    //		SqlType sqlType = globalCache.getSqlType(sql);
-    //		if (sqlType == null) {
-    SqlType sqlType = null;
-    //#bug 2011-12-8,modify by junyu ,this code use huge cpu resource,and most
-    //sql have no comment,so first simple look for there whether have the comment
-    String noCommentsSql = sql;
-    if (sql.contains("/*")) {
-      noCommentsSql = StringUtils.stripComments(sql, "'\"", "'\"", true, false, true, true).trim();
-    }
-
-    if (StringUtils.startsWithIgnoreCaseAndWs(noCommentsSql, "select")) {
-      //#bug 2011-12-9,this select-for-update regex has low performance,so
-      //first judge this sql whether have ' for ' string.
-      if (noCommentsSql.toLowerCase().contains(" for ") && SELECT_FOR_UPDATE_PATTERN
-          .matcher(noCommentsSql).matches()) {
-        sqlType = SqlType.SELECT_FOR_UPDATE;
-      } else {
-        sqlType = SqlType.SELECT;
-      }
-    } else if (StringUtils.startsWithIgnoreCaseAndWs(noCommentsSql, "show")) {
-      sqlType = SqlType.SHOW;
-    } else if (StringUtils.startsWithIgnoreCaseAndWs(noCommentsSql, "insert")) {
-      sqlType = SqlType.INSERT;
-    } else if (StringUtils.startsWithIgnoreCaseAndWs(noCommentsSql, "update")) {
-      sqlType = SqlType.UPDATE;
-    } else if (StringUtils.startsWithIgnoreCaseAndWs(noCommentsSql, "delete")) {
-      sqlType = SqlType.DELETE;
-    } else if (StringUtils.startsWithIgnoreCaseAndWs(noCommentsSql, "replace")) {
-      sqlType = SqlType.REPLACE;
-    } else if (StringUtils.startsWithIgnoreCaseAndWs(noCommentsSql, "truncate")) {
-      sqlType = SqlType.TRUNCATE;
-    } else if (StringUtils.startsWithIgnoreCaseAndWs(noCommentsSql, "create")) {
-      sqlType = SqlType.CREATE;
-    } else if (StringUtils.startsWithIgnoreCaseAndWs(noCommentsSql, "drop")) {
-      sqlType = SqlType.DROP;
-    } else if (StringUtils.startsWithIgnoreCaseAndWs(noCommentsSql, "load")) {
-      sqlType = SqlType.LOAD;
-    } else if (StringUtils.startsWithIgnoreCaseAndWs(noCommentsSql, "alter")) {
-      sqlType = SqlType.ALTER;
-    } else {
-      throw new SQLException(
-          "only select, insert, update, delete,replace,truncate,create,drop,load,merge sql is supported");
+    //SqlTypeCache只缓存反复出现的SQL,并且只弱引用SQL,不会有上面的问题
+    SqlType sqlType = SQL_TYPE_CACHE.get(sql);
+    if (sqlType == null) {
+      //不再复制SQL去掉注释并转成小写后用正则匹配,直接在原SQL上扫描
+      sqlType = SqlScanner.classify(sql);
+      SQL_TYPE_CACHE.put(sql, sqlType);
     }
     return sqlType;
   }
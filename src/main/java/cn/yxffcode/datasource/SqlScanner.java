@@ -0,0 +1,636 @@
+package cn.yxffcode.datasource;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * 直接在SQL字符串上扫描得到语句类型,跳过注释和引号中的内容,不复制SQL,不分配任何对象
+ * <p/>
+ * 支持的注释:{@code /* ... *}{@code /}、{@code #}和{@code --}开头的单行注释;
+ * 引号:单引号、双引号和反引号,引号中可以用反斜杠转义或连续两个引号表示引号本身
+ *
+ * @author gaohang
+ */
+final class SqlScanner {
+  private SqlScanner() {
+  }
+
+  /**
+   * 按开头的关键字得到语句类型,select语句中有加锁子句(for update、for share、
+   * lock in share mode)时为{@link SqlType#SELECT_FOR_UPDATE},有into时为{@link SqlType#SELECT_INTO}
+   */
+  static SqlType classify(String sql) throws SQLException {
+    SqlType sqlType = classifyAt(sql, skipIgnorable(sql, 0));
+    if (sqlType == null) {
+      throw new SQLException("only select, insert, update, delete, replace, truncate, create, "
+          + "drop, load, alter, show, explain, desc, values, with, call, set sql is supported");
+    }
+    return sqlType;
+  }
+
+  /**
+   * 是否是set语句
+   */
+  static boolean isSet(String sql) {
+    return wordAt(sql, skipIgnorable(sql, 0), "set");
+  }
+
+  /**
+   * set语句赋值的变量,小写,按出现的顺序用逗号分隔,会话作用域的前缀被去掉,
+   * 例如set session a = 1, @@b = 2, @c := 3得到a,b,@c;不是set语句或无法解析时返回null
+   */
+  static String setVariables(String sql) {
+    int pos = skipIgnorable(sql, 0);
+    if (!wordAt(sql, pos, "set")) {
+      return null;
+    }
+    int length = sql.length();
+    StringBuilder variables = new StringBuilder();
+    pos = skipIgnorable(sql, pos + 3);
+    while (pos < length) {
+      String scope = "";
+      if (wordAt(sql, pos, "session") || wordAt(sql, pos, "local")) {
+        pos = skipIgnorable(sql, identifierEnd(sql, pos));
+      } else if (wordAt(sql, pos, "global") || wordAt(sql, pos, "persist")
+          || wordAt(sql, pos, "persist_only")) {
+        int end = identifierEnd(sql, pos);
+        scope = sql.substring(pos, end).toLowerCase() + '.';
+        pos = skipIgnorable(sql, end);
+      }
+      int start = pos;
+      if (startsWith(sql, pos, "@@")) {
+        pos += 2;
+        start = pos;
+        if (startsWith(sql, pos, "session.") || startsWith(sql, pos, "local.")) {
+          start = pos = sql.indexOf('.', pos) + 1;
+        }
+      } else if (pos < length && sql.charAt(pos) == '@') {
+        pos++;
+      }
+      if (pos < length && (sql.charAt(pos) == '\'' || sql.charAt(pos) == '"'
+          || sql.charAt(pos) == '`')) {
+        pos = skipQuoted(sql, pos);
+      } else {
+        //@@global.x中的点是变量名的一部分
+        while (pos < length && (isIdentifierPart(sql.charAt(pos)) || sql.charAt(pos) == '.')) {
+          pos++;
+        }
+      }
+      if (pos == start) {
+        return null;
+      }
+      String variable = scope + sql.substring(start, pos).toLowerCase();
+      if (variable.equals("character")) {
+        int next = skipIgnorable(sql, pos);
+        if (wordAt(sql, next, "set")) {
+          variable = "character set";
+        }
+      }
+      if (variables.length() > 0) {
+        variables.append(',');
+      }
+      variables.append(variable);
+      if (variable.equals("transaction")) {
+        //set transaction isolation level ..., read only中的逗号不分隔赋值
+        return variables.toString();
+      }
+      pos = assignmentEnd(sql, pos);
+      if (pos < length) {
+        pos = skipIgnorable(sql, pos + 1);
+      }
+    }
+    return variables.length() == 0 ? null : variables.toString();
+  }
+
+  /**
+   * set autocommit = ...赋的值,值不是0、1、on、off、true、false时返回null,
+   * 调用方先确认语句只给autocommit赋值
+   */
+  static Boolean autoCommitValue(String sql) {
+    String value = assignedValue(sql);
+    if (value == null) {
+      return null;
+    }
+    switch (value) {
+      case "1":
+      case "on":
+      case "true":
+        return Boolean.TRUE;
+      case "0":
+      case "off":
+      case "false":
+        return Boolean.FALSE;
+      default:
+        return null;
+    }
+  }
+
+  /**
+   * set session transaction isolation level ...或给tx_isolation、transaction_isolation赋值
+   * 设置的会话隔离级别,返回{@link Connection}中的TRANSACTION_*常量;只对下一个事务生效的
+   * set transaction、同时设置了访问模式或无法识别时返回-1
+   */
+  static int isolationLevel(String sql) {
+    int pos = skipIgnorable(sql, skipIgnorable(sql, 0) + 3);
+    String value;
+    if (wordAt(sql, pos, "session") || wordAt(sql, pos, "local")) {
+      pos = skipIgnorable(sql, identifierEnd(sql, pos));
+    } else if (wordAt(sql, pos, "transaction")) {
+      return -1;
+    }
+    if (wordAt(sql, pos, "transaction")) {
+      pos = skipIgnorable(sql, pos + 11);
+      if (!wordAt(sql, pos, "isolation")) {
+        return -1;
+      }
+      pos = skipIgnorable(sql, pos + 9);
+      if (!wordAt(sql, pos, "level")) {
+        return -1;
+      }
+      value = normalizedValue(sql, pos + 5);
+    } else {
+      value = assignedValue(sql);
+    }
+    if (value == null) {
+      return -1;
+    }
+    switch (value) {
+      case "read uncommitted":
+        return Connection.TRANSACTION_READ_UNCOMMITTED;
+      case "read committed":
+        return Connection.TRANSACTION_READ_COMMITTED;
+      case "repeatable read":
+        return Connection.TRANSACTION_REPEATABLE_READ;
+      case "serializable":
+        return Connection.TRANSACTION_SERIALIZABLE;
+      default:
+        return -1;
+    }
+  }
+
+  /**
+   * 只有一个赋值的set语句中等号之后的值,见{@link #normalizedValue(String, int)}
+   */
+  private static String assignedValue(String sql) {
+    int length = sql.length();
+    int pos = 0;
+    while (pos < length) {
+      char c = sql.charAt(pos);
+      if (c == '\'' || c == '"' || c == '`') {
+        pos = skipQuoted(sql, pos);
+      } else if (c == '=') {
+        return normalizedValue(sql, pos + 1);
+      } else {
+        pos++;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * from之后到语句结束的值:去掉两端的空白、结尾的分号和包围的引号,小写,
+   * 连字符换成空格并合并连续的空白,例如'READ-COMMITTED'得到read committed
+   */
+  private static String normalizedValue(String sql, int from) {
+    int end = sql.length();
+    while (end > from && (Character.isWhitespace(sql.charAt(end - 1))
+        || sql.charAt(end - 1) == ';')) {
+      end--;
+    }
+    int start = skipIgnorable(sql, from);
+    if (end - start >= 2 && (sql.charAt(start) == '\'' || sql.charAt(start) == '"')
+        && sql.charAt(end - 1) == sql.charAt(start)) {
+      start++;
+      end--;
+    }
+    StringBuilder value = new StringBuilder(end - start);
+    for (int i = start; i < end; i++) {
+      char c = Character.toLowerCase(sql.charAt(i));
+      if (c == '-' || Character.isWhitespace(c)) {
+        if (value.length() > 0 && value.charAt(value.length() - 1) != ' ') {
+          value.append(' ');
+        }
+      } else {
+        value.append(c);
+      }
+    }
+    return value.toString();
+  }
+
+  /**
+   * 从pos开始跳过一个赋值,返回分隔下一个赋值的逗号的位置,没有下一个赋值时返回sql的长度
+   */
+  private static int assignmentEnd(String sql, int pos) {
+    int length = sql.length();
+    while (pos < length) {
+      char c = sql.charAt(pos);
+      if (c == '\'' || c == '"' || c == '`') {
+        pos = skipQuoted(sql, pos);
+      } else if (c == '(') {
+        pos = skipParentheses(sql, pos);
+      } else if (isCommentStart(sql, pos)) {
+        pos = skipIgnorable(sql, pos);
+      } else if (c == ',' || c == ';') {
+        return c == ',' ? pos : length;
+      } else {
+        pos++;
+      }
+    }
+    return length;
+  }
+
+  /**
+   * insert/replace ... values (...)中唯一的一组值的括号位置[开始, 结束),所有占位符都在这组值中,
+   * 后面没有其它的值,可以改写成多行insert;不满足时返回null
+   */
+  static int[] valuesTuple(String sql) {
+    int pos = skipIgnorable(sql, 0);
+    if (!wordAt(sql, pos, "insert") && !wordAt(sql, pos, "replace")) {
+      return null;
+    }
+    int length = sql.length();
+    int placeholders = 0;
+    while (pos < length) {
+      char c = sql.charAt(pos);
+      if (c == '\'' || c == '"' || c == '`') {
+        pos = skipQuoted(sql, pos);
+      } else if (isCommentStart(sql, pos)) {
+        pos = skipIgnorable(sql, pos);
+      } else if (c == '(') {
+        //列名列表
+        pos = skipParentheses(sql, pos);
+      } else if (c == '?') {
+        placeholders++;
+        pos++;
+      } else if (isIdentifierPart(c)) {
+        int end = identifierEnd(sql, pos);
+        if ((end - pos == 6 && sql.regionMatches(true, pos, "values", 0, 6))
+            || (end - pos == 5 && sql.regionMatches(true, pos, "value", 0, 5))) {
+          return placeholders == 0 ? tupleAt(sql, skipIgnorable(sql, end)) : null;
+        }
+        if (end - pos == 6 && sql.regionMatches(true, pos, "select", 0, 6)) {
+          return null;
+        }
+        pos = end;
+      } else {
+        pos++;
+      }
+    }
+    return null;
+  }
+
+  private static int[] tupleAt(String sql, int start) {
+    if (start >= sql.length() || sql.charAt(start) != '(') {
+      return null;
+    }
+    int end = skipParentheses(sql, start);
+    if (countPlaceholders(sql, start, end) == 0) {
+      return null;
+    }
+    int next = skipIgnorable(sql, end);
+    if (next < sql.length() && sql.charAt(next) == ',') {
+      return null;
+    }
+    //on duplicate key update等后续子句中不能再有占位符
+    if (countPlaceholders(sql, end, sql.length()) != 0) {
+      return null;
+    }
+    return new int[] {start, end};
+  }
+
+  /**
+   * [from, to)中引号和注释之外的占位符个数
+   */
+  static int countPlaceholders(String sql, int from, int to) {
+    int count = 0;
+    int pos = from;
+    while (pos < to) {
+      char c = sql.charAt(pos);
+      if (c == '\'' || c == '"' || c == '`') {
+        pos = skipQuoted(sql, pos);
+      } else if (isCommentStart(sql, pos)) {
+        pos = skipIgnorable(sql, pos);
+      } else {
+        if (c == '?') {
+          count++;
+        }
+        pos++;
+      }
+    }
+    return count;
+  }
+
+  private static SqlType classifyAt(String sql, int pos) {
+    if (pos >= sql.length()) {
+      return null;
+    }
+    if (sql.charAt(pos) == '(') {
+      //(select ...) union (select ...)
+      return classifyAt(sql, skipIgnorable(sql, pos + 1));
+    }
+    if (startsWith(sql, pos, "select")) {
+      return selectType(sql, pos + 6);
+    } else if (startsWith(sql, pos, "show")) {
+      return SqlType.SHOW;
+    } else if (startsWith(sql, pos, "insert")) {
+      return SqlType.INSERT;
+    } else if (startsWith(sql, pos, "update")) {
+      return SqlType.UPDATE;
+    } else if (startsWith(sql, pos, "delete")) {
+      return SqlType.DELETE;
+    } else if (startsWith(sql, pos, "replace")) {
+      return SqlType.REPLACE;
+    } else if (startsWith(sql, pos, "truncate")) {
+      return SqlType.TRUNCATE;
+    } else if (startsWith(sql, pos, "create")) {
+      return SqlType.CREATE;
+    } else if (startsWith(sql, pos, "drop")) {
+      return SqlType.DROP;
+    } else if (startsWith(sql, pos, "load")) {
+      return SqlType.LOAD;
+    } else if (startsWith(sql, pos, "alter")) {
+      return SqlType.ALTER;
+    } else if (wordAt(sql, pos, "with")) {
+      return classifyAt(sql, skipCommonTableExpressions(sql, pos + 4));
+    } else if (startsWith(sql, pos, "explain")) {
+      return explainType(sql, identifierEnd(sql, pos), SqlType.EXPLAIN);
+    } else if (startsWith(sql, pos, "desc")) {
+      return explainType(sql, identifierEnd(sql, pos), SqlType.DESC);
+    } else if (wordAt(sql, pos, "values")) {
+      return SqlType.VALUES;
+    } else if (wordAt(sql, pos, "call")) {
+      return SqlType.CALL;
+    } else if (wordAt(sql, pos, "set")) {
+      return SqlType.SET;
+    }
+    return null;
+  }
+
+  /**
+   * explain/desc的类型:带analyze选项时被解释的语句会被实际执行,
+   * 被解释的语句不是读时返回该语句的类型,在主库执行
+   *
+   * @param from explain/desc之后的位置
+   */
+  private static SqlType explainType(String sql, int from, SqlType type) {
+    int length = sql.length();
+    int pos = skipIgnorable(sql, from);
+    boolean analyze = false;
+    while (pos < length) {
+      if (sql.charAt(pos) == '(') {
+        if (classifyAt(sql, skipIgnorable(sql, pos + 1)) != null) {
+          //explain (select ...)
+          break;
+        }
+        //postgresql的选项列表:explain (analyze, buffers) ...
+        int end = skipParentheses(sql, pos);
+        analyze |= hasAnalyzeOption(sql, pos + 1, end);
+        pos = skipIgnorable(sql, end);
+        continue;
+      }
+      int end = identifierEnd(sql, pos);
+      if (isAnalyze(sql, pos, end)) {
+        analyze = true;
+      } else if (end - pos == 6 && sql.regionMatches(true, pos, "format", 0, 6)) {
+        //format=json、format=tree
+        end = skipIgnorable(sql, end);
+        if (end < length && sql.charAt(end) == '=') {
+          end = identifierEnd(sql, skipIgnorable(sql, end + 1));
+        }
+      } else if (!(end - pos == 7 && sql.regionMatches(true, pos, "verbose", 0, 7))
+          && !(end - pos == 8 && sql.regionMatches(true, pos, "extended", 0, 8))
+          && !(end - pos == 10 && sql.regionMatches(true, pos, "partitions", 0, 10))) {
+        break;
+      }
+      pos = skipIgnorable(sql, end);
+    }
+    if (!analyze) {
+      return type;
+    }
+    SqlType explained = classifyAt(sql, pos);
+    return explained == null || explained.isRead() ? type : explained;
+  }
+
+  /**
+   * 选项列表[from, to)中是否开启了analyze,analyze false/off/0表示不开启
+   */
+  private static boolean hasAnalyzeOption(String sql, int from, int to) {
+    int pos = from;
+    while (pos < to) {
+      char c = sql.charAt(pos);
+      if (!isIdentifierPart(c)) {
+        pos++;
+        continue;
+      }
+      int end = identifierEnd(sql, pos);
+      if (isAnalyze(sql, pos, end)) {
+        int next = skipIgnorable(sql, end);
+        return !wordAt(sql, next, "false") && !wordAt(sql, next, "off")
+            && !wordAt(sql, next, "0");
+      }
+      pos = end;
+    }
+    return false;
+  }
+
+  private static boolean isAnalyze(String sql, int pos, int end) {
+    return end - pos == 7 && (sql.regionMatches(true, pos, "analyze", 0, 7)
+        || sql.regionMatches(true, pos, "analyse", 0, 7));
+  }
+
+  /**
+   * select语句的类型:有加锁子句时需要在主库执行,into把结果写到变量或文件,也在主库执行
+   */
+  private static SqlType selectType(String sql, int from) {
+    int length = sql.length();
+    int pos = from;
+    boolean into = false;
+    while (pos < length) {
+      char c = sql.charAt(pos);
+      if (c == '\'' || c == '"' || c == '`') {
+        pos = skipQuoted(sql, pos);
+      } else if (isCommentStart(sql, pos)) {
+        pos = skipIgnorable(sql, pos);
+      } else if (isIdentifierPart(c)) {
+        int end = identifierEnd(sql, pos);
+        if (isLockingClause(sql, pos, end)) {
+          return SqlType.SELECT_FOR_UPDATE;
+        }
+        if (end - pos == 4 && sql.regionMatches(true, pos, "into", 0, 4)) {
+          into = true;
+        }
+        pos = end;
+      } else {
+        pos++;
+      }
+    }
+    return into ? SqlType.SELECT_INTO : SqlType.SELECT;
+  }
+
+  /**
+   * [pos, end)处的单词是否是for update、for share或lock in share mode的开始
+   */
+  private static boolean isLockingClause(String sql, int pos, int end) {
+    if (end - pos == 3 && sql.regionMatches(true, pos, "for", 0, 3)) {
+      int next = skipIgnorable(sql, end);
+      return wordAt(sql, next, "update") || wordAt(sql, next, "share");
+    }
+    if (end - pos == 4 && sql.regionMatches(true, pos, "lock", 0, 4)) {
+      int next = skipIgnorable(sql, end);
+      return wordAt(sql, next, "in") && wordAt(sql, skipIgnorable(sql, next + 2), "share");
+    }
+    return false;
+  }
+
+  /**
+   * 跳过with [recursive] name [(columns)] as (...) [, ...],返回主语句开始的位置
+   */
+  private static int skipCommonTableExpressions(String sql, int pos) {
+    int length = sql.length();
+    pos = skipIgnorable(sql, pos);
+    if (wordAt(sql, pos, "recursive")) {
+      pos = skipIgnorable(sql, pos + 9);
+    }
+    while (pos < length) {
+      char c = sql.charAt(pos);
+      pos = c == '`' || c == '"' ? skipQuoted(sql, pos) : identifierEnd(sql, pos);
+      pos = skipIgnorable(sql, pos);
+      if (pos < length && sql.charAt(pos) == '(') {
+        pos = skipIgnorable(sql, skipParentheses(sql, pos));
+      }
+      if (!wordAt(sql, pos, "as")) {
+        return length;
+      }
+      pos = skipIgnorable(sql, pos + 2);
+      if (pos >= length || sql.charAt(pos) != '(') {
+        return length;
+      }
+      pos = skipIgnorable(sql, skipParentheses(sql, pos));
+      if (pos >= length || sql.charAt(pos) != ',') {
+        return pos;
+      }
+      pos = skipIgnorable(sql, pos + 1);
+    }
+    return length;
+  }
+
+  /**
+   * 跳过pos处开始的括号及其中的内容,返回对应的右括号之后的位置
+   */
+  private static int skipParentheses(String sql, int pos) {
+    int length = sql.length();
+    int depth = 0;
+    while (pos < length) {
+      char c = sql.charAt(pos);
+      if (c == '\'' || c == '"' || c == '`') {
+        pos = skipQuoted(sql, pos);
+        continue;
+      }
+      if (isCommentStart(sql, pos)) {
+        pos = skipIgnorable(sql, pos);
+        continue;
+      }
+      if (c == '(') {
+        depth++;
+      } else if (c == ')' && --depth == 0) {
+        return pos + 1;
+      }
+      pos++;
+    }
+    return length;
+  }
+
+  /**
+   * 从pos开始跳过空白和注释,返回第一个有效字符的位置
+   */
+  static int skipIgnorable(String sql, int pos) {
+    int length = sql.length();
+    while (pos < length) {
+      char c = sql.charAt(pos);
+      if (Character.isWhitespace(c)) {
+        pos++;
+      } else if (c == '/' && pos + 1 < length && sql.charAt(pos + 1) == '*') {
+        int end = sql.indexOf("*/", pos + 2);
+        pos = end < 0 ? length : end + 2;
+      } else if (c == '#' || (c == '-' && pos + 1 < length && sql.charAt(pos + 1) == '-')) {
+        pos = lineEnd(sql, pos);
+      } else {
+        break;
+      }
+    }
+    return pos;
+  }
+
+  /**
+   * pos处是否以keyword开头,忽略大小写
+   */
+  static boolean startsWith(String sql, int pos, String keyword) {
+    return sql.regionMatches(true, pos, keyword, 0, keyword.length());
+  }
+
+  /**
+   * pos处是否是完整的单词word,忽略大小写
+   */
+  static boolean wordAt(String sql, int pos, String word) {
+    int end = pos + word.length();
+    return startsWith(sql, pos, word)
+        && (end == sql.length() || !isIdentifierPart(sql.charAt(end)));
+  }
+
+  private static boolean isCommentStart(String sql, int pos) {
+    char c = sql.charAt(pos);
+    if (c == '#') {
+      return true;
+    }
+    if (pos + 1 >= sql.length()) {
+      return false;
+    }
+    char next = sql.charAt(pos + 1);
+    return (c == '/' && next == '*') || (c == '-' && next == '-');
+  }
+
+  /**
+   * 跳过pos处开始的引号中的内容,返回结束引号之后的位置
+   */
+  private static int skipQuoted(String sql, int pos) {
+    char quote = sql.charAt(pos);
+    int length = sql.length();
+    pos++;
+    while (pos < length) {
+      char c = sql.charAt(pos);
+      if (c == '\\' && quote != '`') {
+        pos += 2;
+      } else if (c == quote) {
+        return pos + 1;
+      } else {
+        pos++;
+      }
+    }
+    return length;
+  }
+
+  private static int lineEnd(String sql, int pos) {
+    int length = sql.length();
+    while (pos < length) {
+      char c = sql.charAt(pos);
+      if (c == '\n' || c == '\r') {
+        return pos;
+      }
+      pos++;
+    }
+    return length;
+  }
+
+  private static int identifierEnd(String sql, int pos) {
+    int length = sql.length();
+    while (pos < length && isIdentifierPart(sql.charAt(pos))) {
+      pos++;
+    }
+    return pos;
+  }
+
+  private static boolean isIdentifierPart(char c) {
+    return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+        || c == '_' || c == '$' || c > 0x7f;
+  }
+}
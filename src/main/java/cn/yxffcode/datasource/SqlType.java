@@ -1,7 +1,6 @@
 package cn.yxffcode.datasource;
 
 import java.sql.SQLException;
-import java.util.regex.Pattern;
 
 /**
  * SQL类型。
@@ -10,10 +9,9 @@ import java.util.regex.Pattern;
  */
 public enum SqlType {
   SELECT(0), INSERT(1), UPDATE(2), DELETE(3), SELECT_FOR_UPDATE(4), REPLACE(5), TRUNCATE(6),
-  CREATE(7), DROP(8), LOAD(9), SHOW(10), ALTER(111), DEFAULT_SQL_TYPE(-100);
+  CREATE(7), DROP(8), LOAD(9), SHOW(10), ALTER(111), EXPLAIN(12), DESC(13), VALUES(14),
+  SELECT_INTO(15), CALL(16), SET(17), DEFAULT_SQL_TYPE(-100);
 
-  private static final Pattern SELECT_FOR_UPDATE_PATTERN =
-      Pattern.compile("^select\\s+.*\\s+for\\s+update.*$", Pattern.CASE_INSENSITIVE);
   private final int i;
 
   SqlType(int i) {
@@ -24,7 +22,9 @@ public enum SqlType {
     switch (this) {
       case SELECT:
       case SHOW:
-      case LOAD:
+      case EXPLAIN:
+      case DESC:
+      case VALUES:
         return true;
       default:
         return false;
@@ -32,41 +32,7 @@ public enum SqlType {
   }
 
   public static SqlType atomOf(String sql) throws SQLException {
-    SqlType sqlType;
-    String noCommentsSql =
-        StringUtils.stripComments(sql, "'\"", "'\"", true, false, true, true).trim();
-
-    if (StringUtils.startsWithIgnoreCaseAndWs(noCommentsSql, "select")) {
-      if (SELECT_FOR_UPDATE_PATTERN.matcher(noCommentsSql).matches()) {
-        sqlType = SqlType.SELECT_FOR_UPDATE;
-      } else {
-        sqlType = SqlType.SELECT;
-      }
-    } else if (StringUtils.startsWithIgnoreCaseAndWs(noCommentsSql, "show")) {
-      sqlType = SqlType.SHOW;
-    } else if (StringUtils.startsWithIgnoreCaseAndWs(noCommentsSql, "insert")) {
-      sqlType = SqlType.INSERT;
-    } else if (StringUtils.startsWithIgnoreCaseAndWs(noCommentsSql, "update")) {
-      sqlType = SqlType.UPDATE;
-    } else if (StringUtils.startsWithIgnoreCaseAndWs(noCommentsSql, "delete")) {
-      sqlType = SqlType.DELETE;
-    } else if (StringUtils.startsWithIgnoreCaseAndWs(noCommentsSql, "replace")) {
-      sqlType = SqlType.REPLACE;
-    } else if (StringUtils.startsWithIgnoreCaseAndWs(noCommentsSql, "truncate")) {
-      sqlType = SqlType.TRUNCATE;
-    } else if (StringUtils.startsWithIgnoreCaseAndWs(noCommentsSql, "create")) {
-      sqlType = SqlType.CREATE;
-    } else if (StringUtils.startsWithIgnoreCaseAndWs(noCommentsSql, "drop")) {
-      sqlType = SqlType.DROP;
-    } else if (StringUtils.startsWithIgnoreCaseAndWs(noCommentsSql, "load")) {
-      sqlType = SqlType.LOAD;
-    } else if (StringUtils.startsWithIgnoreCaseAndWs(noCommentsSql, "alter")) {
-      sqlType = SqlType.ALTER;
-    } else {
-      throw new SQLException(
-          "only select, insert, update, delete,replace,truncate sql is supported");
-    }
-    return sqlType;
+    return SqlScanner.classify(sql);
   }
 
   public int value() {
@@ -0,0 +1,217 @@
+package cn.yxffcode.datasource;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * SQL类型的缓存,用于ORM反复传入相同SQL字符串的场景
+ * <p/>
+ * 按SQL的hash分组,每组4个位置,组内按CLOCK淘汰;只有在频率草图中出现次数多于被淘汰者的SQL才会进入缓存,
+ * 只执行一次的、带字面量的SQL不会进入缓存。缓存项对SQL只有弱引用,命中时不分配对象
+ * <p/>
+ * 多线程之间不加锁,缓存项不可变,访问标记的并发修改丢失时只影响淘汰的准确性;
+ * 频率计数通过CAS增加,计数器之间不会进位。只有没有命中时才增加频率计数,
+ * 命中时除了第一次设置访问标记外只读
+ *
+ * @author gaohang
+ */
+final class SqlTypeCache {
+  private static final int WAYS = 4;
+  /**
+   * 至少出现过这么多次的SQL才能进入缓存,即使有空闲的位置
+   */
+  private static final int MIN_ADMISSION_FREQUENCY = 2;
+  private static final SqlType[] TYPES = SqlType.values();
+
+  private final AtomicReferenceArray<Entry> entries;
+  /**
+   * CLOCK的访问标记
+   */
+  private final byte[] referenced;
+  private final int bucketMask;
+  private final FrequencySketch sketch;
+
+  /**
+   * @param capacity 最多缓存的SQL数,向上取整到2的幂
+   */
+  SqlTypeCache(int capacity) {
+    int buckets = 1;
+    while (buckets * WAYS < capacity) {
+      buckets <<= 1;
+    }
+    this.entries = new AtomicReferenceArray<>(buckets * WAYS);
+    this.referenced = new byte[buckets * WAYS];
+    this.bucketMask = buckets - 1;
+    this.sketch = new FrequencySketch(buckets * WAYS);
+  }
+
+  /**
+   * 缓存的SQL类型,没有缓存时返回null
+   */
+  SqlType get(String sql) {
+    int hash = sql.hashCode();
+    int base = bucket(hash);
+    for (int i = base; i < base + WAYS; i++) {
+      Entry entry = entries.get(i);
+      if (entry != null && entry.matches(sql, hash)) {
+        if (referenced[i] == 0) {
+          referenced[i] = 1;
+        }
+        return TYPES[entry.type];
+      }
+    }
+    sketch.increment(hash);
+    return null;
+  }
+
+  /**
+   * 记录解析得到的SQL类型,SQL出现的频率不高于被淘汰的SQL时不缓存
+   */
+  void put(String sql, SqlType type) {
+    int hash = sql.hashCode();
+    int frequency = sketch.frequency(hash);
+    if (frequency < MIN_ADMISSION_FREQUENCY) {
+      return;
+    }
+    int base = bucket(hash);
+    int victim = -1;
+    for (int i = base; i < base + WAYS; i++) {
+      Entry entry = entries.get(i);
+      if (entry == null || entry.get() == null) {
+        victim = i;
+        break;
+      }
+      if (entry.matches(sql, hash)) {
+        return;
+      }
+    }
+    if (victim < 0) {
+      victim = clockVictim(base);
+      if (frequency <= sketch.frequency(entries.get(victim).hash)) {
+        return;
+      }
+    }
+    referenced[victim] = 0;
+    entries.set(victim, new Entry(sql, hash, type));
+  }
+
+  /**
+   * 组内的CLOCK:跳过并清除有访问标记的位置,都有标记时选第一个
+   */
+  private int clockVictim(int base) {
+    for (int round = 0; round < 2; round++) {
+      for (int i = base; i < base + WAYS; i++) {
+        if (referenced[i] == 0) {
+          return i;
+        }
+        referenced[i] = 0;
+      }
+    }
+    return base;
+  }
+
+  private int bucket(int hash) {
+    int h = hash ^ (hash >>> 16);
+    return (h & bucketMask) * WAYS;
+  }
+
+  private static final class Entry extends WeakReference<String> {
+    private final int hash;
+    private final int type;
+
+    private Entry(String sql, int hash, SqlType type) {
+      super(sql);
+      this.hash = hash;
+      this.type = type.ordinal();
+    }
+
+    private boolean matches(String sql, int sqlHash) {
+      if (hash != sqlHash) {
+        return false;
+      }
+      String cached = get();
+      return cached == sql || sql.equals(cached);
+    }
+  }
+
+  /**
+   * 4位计数器的Count-Min草图,记录最近一段时间SQL出现的次数;
+   * 计数的总次数达到容量的10倍时所有计数减半,使旧的频率逐渐失效
+   */
+  private static final class FrequencySketch {
+    private static final long[] SEEDS = {
+        0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+    private static final long RESET_MASK = 0x7777777777777777L;
+
+    private final AtomicLongArray table;
+    private final int tableMask;
+    private final int sampleSize;
+    /**
+     * 并发修改丢失时只是稍晚减半
+     */
+    private int additions;
+
+    private FrequencySketch(int capacity) {
+      int size = 1;
+      while (size < capacity) {
+        size <<= 1;
+      }
+      this.table = new AtomicLongArray(size);
+      this.tableMask = size - 1;
+      this.sampleSize = capacity * 10;
+    }
+
+    private int frequency(int hash) {
+      int frequency = Integer.MAX_VALUE;
+      for (int i = 0; i < SEEDS.length; i++) {
+        int h = index(hash, i);
+        int count = (int) ((table.get(h >>> 4 & tableMask) >>> ((h & 15) << 2)) & 0xfL);
+        frequency = Math.min(frequency, count);
+      }
+      return frequency;
+    }
+
+    private void increment(int hash) {
+      for (int i = 0; i < SEEDS.length; i++) {
+        int h = index(hash, i);
+        increment(h >>> 4 & tableMask, (h & 15) << 2);
+      }
+      if (++additions >= sampleSize) {
+        reset();
+      }
+    }
+
+    /**
+     * 计数器未饱和时加1,饱和检查和加法在同一次CAS中完成,不会进位到相邻的计数器
+     */
+    private void increment(int slot, int shift) {
+      while (true) {
+        long value = table.get(slot);
+        if (((value >>> shift) & 0xfL) == 15) {
+          return;
+        }
+        if (table.compareAndSet(slot, value, value + (1L << shift))) {
+          return;
+        }
+      }
+    }
+
+    private void reset() {
+      additions = 0;
+      for (int i = 0; i < table.length(); i++) {
+        while (true) {
+          long value = table.get(i);
+          if (table.compareAndSet(i, value, (value >>> 1) & RESET_MASK)) {
+            break;
+          }
+        }
+      }
+    }
+
+    private static int index(int hash, int i) {
+      long h = (hash + SEEDS[i]) * SEEDS[i];
+      return (int) (h ^ (h >>> 32));
+    }
+  }
+}
@@ -0,0 +1,88 @@
+package cn.yxffcode.datasource.masterslave;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+
+import javax.sql.DataSource;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Supplier;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * 异步执行SQL,返回{@link CompletableFuture}
+ * <p/>
+ * 每个请求在单独的线程上取连接并执行,读写分离与同步调用相同(由{@link cn.yxffcode.datasource.SQLParser}
+ * 判断),多个独立的读可以并行地在不同的从库上执行;JDK支持时使用虚拟线程,否则使用有界的线程池
+ * <p/>
+ * 异步请求不参与调用线程上的事务
+ *
+ * @author gaohang
+ */
+public class AsyncMasterslaveTemplate {
+
+  private static final int DEFAULT_THREADS = 64;
+
+  private final JdbcTemplate jdbcTemplate;
+  private final ExecutorService executor;
+
+  public AsyncMasterslaveTemplate(DataSource dataSource) {
+    this(dataSource, DEFAULT_THREADS);
+  }
+
+  /**
+   * @param threads 不支持虚拟线程时线程池的线程数,线程和等待队列都满时请求直接失败
+   */
+  public AsyncMasterslaveTemplate(DataSource dataSource, int threads) {
+    checkNotNull(dataSource);
+    this.jdbcTemplate = new JdbcTemplate(dataSource);
+    this.executor = ExecutorServices.newExecutor("masterslave-async-", threads, threads * 16);
+  }
+
+  public <T> CompletableFuture<List<T>> queryAsync(final String sql, final Object[] params,
+                                                   final RowMapper<T> rowMapper) {
+    checkNotNull(sql);
+    checkNotNull(rowMapper);
+    return submit(new Supplier<List<T>>() {
+      @Override public List<T> get() {
+        return jdbcTemplate.query(sql, params, rowMapper);
+      }
+    });
+  }
+
+  public <T> CompletableFuture<List<T>> queryAsync(String sql, RowMapper<T> rowMapper) {
+    return queryAsync(sql, null, rowMapper);
+  }
+
+  /**
+   * @return 影响的行数
+   */
+  public CompletableFuture<Integer> updateAsync(final String sql, final Object... params) {
+    checkNotNull(sql);
+    return submit(new Supplier<Integer>() {
+      @Override public Integer get() {
+        return jdbcTemplate.update(sql, params);
+      }
+    });
+  }
+
+  private <T> CompletableFuture<T> submit(Supplier<T> task) {
+    try {
+      return CompletableFuture.supplyAsync(task, executor);
+    } catch (RejectedExecutionException e) {
+      CompletableFuture<T> future = new CompletableFuture<>();
+      future.completeExceptionally(e);
+      return future;
+    }
+  }
+
+  /**
+   * 不再接收新的请求,已经提交的请求继续执行
+   */
+  public void shutdown() {
+    executor.shutdown();
+  }
+}
@@ -0,0 +1,73 @@
+package cn.yxffcode.datasource.masterslave;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 有上限的并发许可,{@link ConcurrencyLimiter}和{@link Bulkhead}共用
+ * <p/>
+ * 许可通过CAS计数,不加锁;许可用完时短暂自旋等待,超过queueTimeout后拒绝。
+ * 上限由子类提供,每次取许可时重新读取,可以在运行中调整
+ *
+ * @author gaohang
+ */
+abstract class BoundedPermits {
+
+  private static final long PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(200);
+
+  private final long queueTimeoutNanos;
+  private final AtomicInteger inFlight = new AtomicInteger();
+
+  /**
+   * @param queueTimeoutNanos 许可用完时最多等待的时间,不大于0时直接拒绝
+   */
+  BoundedPermits(long queueTimeoutNanos) {
+    this.queueTimeoutNanos = queueTimeoutNanos;
+  }
+
+  /**
+   * 当前的许可上限
+   */
+  abstract int limit();
+
+  final boolean tryAcquire() {
+    while (true) {
+      int current = inFlight.get();
+      if (current >= limit()) {
+        return false;
+      }
+      if (inFlight.compareAndSet(current, current + 1)) {
+        return true;
+      }
+    }
+  }
+
+  /**
+   * 取许可,达到上限时最多等待queueTimeout
+   */
+  final boolean acquire() {
+    if (tryAcquire()) {
+      return true;
+    }
+    if (queueTimeoutNanos <= 0) {
+      return false;
+    }
+    long deadline = System.nanoTime() + queueTimeoutNanos;
+    do {
+      LockSupport.parkNanos(PARK_NANOS);
+      if (tryAcquire()) {
+        return true;
+      }
+    } while (System.nanoTime() - deadline < 0);
+    return false;
+  }
+
+  final void release() {
+    inFlight.decrementAndGet();
+  }
+
+  final int inFlight() {
+    return inFlight.get();
+  }
+}
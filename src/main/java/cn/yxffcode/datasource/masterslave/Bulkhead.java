@@ -0,0 +1,58 @@
+package cn.yxffcode.datasource.masterslave;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * 单个数据源上按流量类别划分的隔舱,每个类别有独立的并发配额
+ * <p/>
+ * 类别在创建时确定,之后只读,查找类别不需要同步;配额是{@link BoundedPermits},
+ * 配额用完时短暂自旋等待,超时后拒绝。没有配置配额的类别不受限制
+ *
+ * @author gaohang
+ */
+final class Bulkhead {
+
+  private final Map<String, Compartment> compartments;
+
+  Bulkhead(Map<String, TrafficClassQuota> quotas) {
+    Map<String, Compartment> compartments = new HashMap<>(quotas.size() * 2);
+    for (Map.Entry<String, TrafficClassQuota> entry : quotas.entrySet()) {
+      compartments.put(entry.getKey(), new Compartment(entry.getValue()));
+    }
+    this.compartments = compartments;
+  }
+
+  /**
+   * @return 是否取得了配额,类别没有配置配额时总是返回true
+   */
+  boolean acquire(String trafficClass) {
+    Compartment compartment = compartments.get(trafficClass);
+    return compartment == null || compartment.acquire();
+  }
+
+  void release(String trafficClass) {
+    Compartment compartment = compartments.get(trafficClass);
+    if (compartment != null) {
+      compartment.release();
+    }
+  }
+
+  private static final class Compartment extends BoundedPermits {
+    private final int maxConcurrent;
+
+    private Compartment(TrafficClassQuota quota) {
+      super(TimeUnit.MILLISECONDS.toNanos(quota.getQueueTimeout()));
+      checkArgument(quota.getMaxConcurrent() > 0, "maxConcurrent must be positive: %s",
+          quota.getMaxConcurrent());
+      this.maxConcurrent = quota.getMaxConcurrent();
+    }
+
+    @Override int limit() {
+      return maxConcurrent;
+    }
+  }
+}
@@ -0,0 +1,17 @@
+package cn.yxffcode.datasource.masterslave;
+
+import java.sql.SQLTransientConnectionException;
+
+/**
+ * 流量类别在数据源上的配额已经用完,排队超时后请求被拒绝,没有发送到数据库
+ *
+ * @author gaohang
+ */
+public class BulkheadFullException extends SQLTransientConnectionException {
+  private static final long serialVersionUID = 6036443152466180744L;
+
+  public BulkheadFullException(DataSourceNode node, String trafficClass) {
+    super("traffic class " + trafficClass + " exceeds its quota on:" + node.getDataSource(),
+        "08004");
+  }
+}
@@ -0,0 +1,212 @@
+package cn.yxffcode.datasource.masterslave;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 单个数据源的熔断器,由实际的取连接和执行语句的结果驱动
+ * <p/>
+ * 状态转换:
+ * <pre>
+ *   CLOSED    --窗口内错误率或超时率超过阈值--> OPEN
+ *   OPEN      --经过openDuration-->            HALF_OPEN
+ *   HALF_OPEN --trialCalls个试探请求全部成功--> CLOSED
+ *   HALF_OPEN --任意一个试探请求失败-->         OPEN
+ * </pre>
+ * 只有语句执行的结果计入统计,取到连接本身不算成功;试探许可用完后经过openDuration仍没有结果时
+ * (例如取到连接后没有执行语句),重新发放试探许可
+ * 所有状态都保存在原子变量中,判断是否放行时不加锁
+ *
+ * @author gaohang
+ */
+final class CircuitBreaker {
+  private static final Logger LOGGER = LoggerFactory.getLogger(CircuitBreaker.class);
+
+  private static final int CLOSED = 0;
+  private static final int OPEN = 1;
+  private static final int HALF_OPEN = 2;
+
+  private final String name;
+  private final long windowNanos;
+  private final int minimumCalls;
+  private final double failureRateThreshold;
+  private final double timeoutRateThreshold;
+  private final long slowCallNanos;
+  private final long openDurationNanos;
+  private final int trialCalls;
+
+  private final AtomicInteger state = new AtomicInteger(CLOSED);
+  private volatile long openUntilNanos;
+
+  private final AtomicLong windowStartNanos = new AtomicLong(System.nanoTime());
+  private final LongAdder calls = new LongAdder();
+  private final LongAdder failures = new LongAdder();
+  private final LongAdder timeouts = new LongAdder();
+
+  /**
+   * 半开状态下剩余的试探许可
+   */
+  private final AtomicInteger trialPermits = new AtomicInteger();
+  /**
+   * 半开状态下已经成功的试探请求数
+   */
+  private final AtomicInteger trialSuccesses = new AtomicInteger();
+  /**
+   * 半开状态下试探许可用完后,到这个时间仍没有结果则重新发放
+   */
+  private volatile long trialDeadlineNanos;
+
+  CircuitBreaker(String name, CircuitBreakerConfig config) {
+    this.name = name;
+    this.windowNanos = TimeUnit.MILLISECONDS.toNanos(config.getWindow());
+    this.minimumCalls = config.getMinimumCalls();
+    this.failureRateThreshold = config.getFailureRateThreshold();
+    this.timeoutRateThreshold = config.getTimeoutRateThreshold();
+    this.slowCallNanos = config.getSlowCallThreshold() <= 0 ? Long.MAX_VALUE
+        : TimeUnit.MILLISECONDS.toNanos(config.getSlowCallThreshold());
+    this.openDurationNanos = TimeUnit.MILLISECONDS.toNanos(config.getOpenDuration());
+    this.trialCalls = config.getTrialCalls();
+  }
+
+  /**
+   * 是否可能放行新的请求,不消耗试探许可,用于负载均衡时跳过熔断的数据源
+   */
+  boolean allowsTraffic() {
+    switch (state.get()) {
+      case CLOSED:
+        return true;
+      case OPEN:
+        return System.nanoTime() - openUntilNanos >= 0;
+      default:
+        return trialPermits.get() > 0 || System.nanoTime() - trialDeadlineNanos >= 0;
+    }
+  }
+
+  /**
+   * 尝试放行一个新的请求,半开状态下会消耗一个试探许可
+   */
+  boolean tryAcquire() {
+    int current = state.get();
+    if (current == CLOSED) {
+      return true;
+    }
+    if (current == OPEN) {
+      if (System.nanoTime() - openUntilNanos < 0) {
+        return false;
+      }
+      if (state.compareAndSet(OPEN, HALF_OPEN)) {
+        trialSuccesses.set(0);
+        trialDeadlineNanos = System.nanoTime() + openDurationNanos;
+        trialPermits.set(trialCalls);
+        LOGGER.info("circuit breaker half open:{}", name);
+      }
+    }
+    while (true) {
+      int permits = trialPermits.get();
+      if (permits <= 0) {
+        //可能已经在其它线程中关闭了
+        if (state.get() == CLOSED) {
+          return true;
+        }
+        return state.get() == HALF_OPEN && rearmTrials();
+      }
+      if (trialPermits.compareAndSet(permits, permits - 1)) {
+        return true;
+      }
+    }
+  }
+
+  /**
+   * 是否处于熔断状态,处于熔断状态时已经持有的连接上的执行直接失败
+   */
+  boolean isOpen() {
+    return state.get() == OPEN && System.nanoTime() - openUntilNanos < 0;
+  }
+
+  /**
+   * 试探许可已经用完且到期仍没有结果时重新发放,并占用其中一个
+   */
+  private boolean rearmTrials() {
+    long now = System.nanoTime();
+    if (now - trialDeadlineNanos < 0 || !trialPermits.compareAndSet(0, trialCalls - 1)) {
+      return false;
+    }
+    trialDeadlineNanos = now + openDurationNanos;
+    return true;
+  }
+
+  void onSuccess(long elapsedNanos) {
+    if (elapsedNanos >= slowCallNanos) {
+      onFailure(true);
+      return;
+    }
+    int current = state.get();
+    if (current == HALF_OPEN) {
+      if (trialSuccesses.incrementAndGet() >= trialCalls
+          && state.compareAndSet(HALF_OPEN, CLOSED)) {
+        resetWindow(System.nanoTime());
+        LOGGER.info("circuit breaker closed:{}", name);
+      }
+      return;
+    }
+    if (current == CLOSED) {
+      rollWindow();
+      calls.increment();
+    }
+  }
+
+  void onFailure(boolean timeout) {
+    int current = state.get();
+    if (current == HALF_OPEN) {
+      trip(HALF_OPEN);
+      return;
+    }
+    if (current != CLOSED) {
+      return;
+    }
+    rollWindow();
+    calls.increment();
+    if (timeout) {
+      timeouts.increment();
+    } else {
+      failures.increment();
+    }
+    long total = calls.sum();
+    if (total < minimumCalls) {
+      return;
+    }
+    if (failures.sum() >= total * failureRateThreshold
+        || timeouts.sum() >= total * timeoutRateThreshold) {
+      trip(CLOSED);
+    }
+  }
+
+  private void trip(int from) {
+    openUntilNanos = System.nanoTime() + openDurationNanos;
+    if (state.compareAndSet(from, OPEN)) {
+      LOGGER.warn("circuit breaker open:{}", name);
+    }
+  }
+
+  private void rollWindow() {
+    long now = System.nanoTime();
+    long start = windowStartNanos.get();
+    if (now - start >= windowNanos && windowStartNanos.compareAndSet(start, now)) {
+      calls.reset();
+      failures.reset();
+      timeouts.reset();
+    }
+  }
+
+  private void resetWindow(long now) {
+    windowStartNanos.set(now);
+    calls.reset();
+    failures.reset();
+    timeouts.reset();
+  }
+}
@@ -0,0 +1,94 @@
+package cn.yxffcode.datasource.masterslave;
+
+/**
+ * 熔断器配置,每个物理数据源使用一个独立的熔断器
+ *
+ * @author gaohang
+ */
+public class CircuitBreakerConfig {
+
+  /**
+   * 统计窗口的长度(毫秒)
+   */
+  private long window = 10 * 1000;
+  /**
+   * 窗口内调用次数少于该值时不熔断
+   */
+  private int minimumCalls = 20;
+  /**
+   * 窗口内错误率达到该值时熔断
+   */
+  private double failureRateThreshold = 0.5;
+  /**
+   * 窗口内超时率达到该值时熔断
+   */
+  private double timeoutRateThreshold = 0.5;
+  /**
+   * 执行时间超过该值(毫秒)时按超时统计,0表示只统计SQLTimeoutException
+   */
+  private long slowCallThreshold;
+  /**
+   * 熔断后多长时间(毫秒)进入半开状态
+   */
+  private long openDuration = 5 * 1000;
+  /**
+   * 半开状态下放行的试探请求数,全部成功后关闭熔断器,有一个失败则重新熔断
+   */
+  private int trialCalls = 3;
+
+  public long getWindow() {
+    return window;
+  }
+
+  public void setWindow(long window) {
+    this.window = window;
+  }
+
+  public int getMinimumCalls() {
+    return minimumCalls;
+  }
+
+  public void setMinimumCalls(int minimumCalls) {
+    this.minimumCalls = minimumCalls;
+  }
+
+  public double getFailureRateThreshold() {
+    return failureRateThreshold;
+  }
+
+  public void setFailureRateThreshold(double failureRateThreshold) {
+    this.failureRateThreshold = failureRateThreshold;
+  }
+
+  public double getTimeoutRateThreshold() {
+    return timeoutRateThreshold;
+  }
+
+  public void setTimeoutRateThreshold(double timeoutRateThreshold) {
+    this.timeoutRateThreshold = timeoutRateThreshold;
+  }
+
+  public long getSlowCallThreshold() {
+    return slowCallThreshold;
+  }
+
+  public void setSlowCallThreshold(long slowCallThreshold) {
+    this.slowCallThreshold = slowCallThreshold;
+  }
+
+  public long getOpenDuration() {
+    return openDuration;
+  }
+
+  public void setOpenDuration(long openDuration) {
+    this.openDuration = openDuration;
+  }
+
+  public int getTrialCalls() {
+    return trialCalls;
+  }
+
+  public void setTrialCalls(int trialCalls) {
+    this.trialCalls = trialCalls;
+  }
+}
@@ -0,0 +1,16 @@
+package cn.yxffcode.datasource.masterslave;
+
+import java.sql.SQLTransientConnectionException;
+
+/**
+ * 数据源处于熔断状态,请求没有发送到数据库
+ *
+ * @author gaohang
+ */
+public class CircuitBreakerOpenException extends SQLTransientConnectionException {
+  private static final long serialVersionUID = 4325307950282407281L;
+
+  public CircuitBreakerOpenException(DataSourceNode node) {
+    super("circuit breaker is open:" + node.getDataSource(), "08001");
+  }
+}
@@ -0,0 +1,76 @@
+package cn.yxffcode.datasource.masterslave;
+
+/**
+ * 自适应并发限制的配置,每个物理数据源使用一个独立的限制器
+ * <p/>
+ * 并发数指从数据源取出还没有归还的连接数,上限按AIMD调整:执行耗时没有明显变长时缓慢增加,
+ * 耗时超过基线的latencyTolerance倍或出现超时时按backoffRatio成倍减小
+ *
+ * @author gaohang
+ */
+public class ConcurrencyLimitConfig {
+
+  private int initialLimit = 20;
+  private int minLimit = 4;
+  private int maxLimit = 200;
+  /**
+   * 耗时变长时上限乘以该比例
+   */
+  private double backoffRatio = 0.9;
+  /**
+   * 执行耗时超过基线的多少倍时认为数据源变慢
+   */
+  private double latencyTolerance = 2.0;
+  /**
+   * 达到上限时最多排队等待的时间(毫秒),0表示不等待直接拒绝
+   */
+  private long queueTimeout = 20;
+
+  public int getInitialLimit() {
+    return initialLimit;
+  }
+
+  public void setInitialLimit(int initialLimit) {
+    this.initialLimit = initialLimit;
+  }
+
+  public int getMinLimit() {
+    return minLimit;
+  }
+
+  public void setMinLimit(int minLimit) {
+    this.minLimit = minLimit;
+  }
+
+  public int getMaxLimit() {
+    return maxLimit;
+  }
+
+  public void setMaxLimit(int maxLimit) {
+    this.maxLimit = maxLimit;
+  }
+
+  public double getBackoffRatio() {
+    return backoffRatio;
+  }
+
+  public void setBackoffRatio(double backoffRatio) {
+    this.backoffRatio = backoffRatio;
+  }
+
+  public double getLatencyTolerance() {
+    return latencyTolerance;
+  }
+
+  public void setLatencyTolerance(double latencyTolerance) {
+    this.latencyTolerance = latencyTolerance;
+  }
+
+  public long getQueueTimeout() {
+    return queueTimeout;
+  }
+
+  public void setQueueTimeout(long queueTimeout) {
+    this.queueTimeout = queueTimeout;
+  }
+}
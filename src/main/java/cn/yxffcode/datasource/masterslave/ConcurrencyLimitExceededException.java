@@ -0,0 +1,16 @@
+package cn.yxffcode.datasource.masterslave;
+
+import java.sql.SQLTransientConnectionException;
+
+/**
+ * 数据源的并发数达到上限,排队超时后请求被拒绝,没有发送到数据库
+ *
+ * @author gaohang
+ */
+public class ConcurrencyLimitExceededException extends SQLTransientConnectionException {
+  private static final long serialVersionUID = -2675140817371420398L;
+
+  public ConcurrencyLimitExceededException(DataSourceNode node) {
+    super("concurrency limit exceeded:" + node.getDataSource(), "08004");
+  }
+}
@@ -0,0 +1,108 @@
+package cn.yxffcode.datasource.masterslave;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * 单个数据源的自适应并发限制(AIMD)
+ * <p/>
+ * 执行耗时与长期基线相比没有明显变长,并且并发数接近上限时,平均每个上限数量的请求把上限加1;
+ * 耗时超过基线的latencyTolerance倍或超时时上限乘以backoffRatio,每个基线耗时内最多减小一次
+ * <p/>
+ * 许可是上限可变的{@link BoundedPermits},上限是原子变量,取许可时只做CAS,不加锁;
+ * 达到上限时短暂自旋等待,超时后拒绝
+ *
+ * @author gaohang
+ */
+final class ConcurrencyLimiter {
+
+  private final int minLimit;
+  private final int maxLimit;
+  private final double backoffRatio;
+  private final double latencyTolerance;
+
+  private final AtomicInteger limit;
+  private final BoundedPermits permits;
+  /**
+   * 长期的耗时基线,变快时较快跟随,变慢时缓慢跟随,使短时间的变慢能够被识别出来
+   */
+  private final AtomicLong baselineNanos = new AtomicLong();
+  private final AtomicLong lastDecreaseNanos = new AtomicLong(System.nanoTime());
+
+  ConcurrencyLimiter(ConcurrencyLimitConfig config) {
+    checkArgument(config.getMinLimit() > 0 && config.getMinLimit() <= config.getMaxLimit(),
+        "invalid concurrency limit range: [%s, %s]", config.getMinLimit(), config.getMaxLimit());
+    this.minLimit = config.getMinLimit();
+    this.maxLimit = config.getMaxLimit();
+    this.backoffRatio = config.getBackoffRatio();
+    this.latencyTolerance = config.getLatencyTolerance();
+    this.limit = new AtomicInteger(
+        Math.max(minLimit, Math.min(maxLimit, config.getInitialLimit())));
+    this.permits = new BoundedPermits(TimeUnit.MILLISECONDS.toNanos(config.getQueueTimeout())) {
+      @Override int limit() {
+        return limit.get();
+      }
+    };
+  }
+
+  /**
+   * 取许可,达到上限时最多等待queueTimeout
+   */
+  boolean acquire() {
+    return permits.acquire();
+  }
+
+  void release() {
+    permits.release();
+  }
+
+  /**
+   * 并发数是否已经达到上限
+   */
+  boolean isSaturated() {
+    return permits.inFlight() >= limit.get();
+  }
+
+  /**
+   * 根据一次执行的耗时调整上限
+   *
+   * @param slow 执行超时或数据源出错,直接按变慢处理
+   */
+  void onSample(long elapsedNanos, boolean slow) {
+    long baseline = baselineNanos.get();
+    if (baseline == 0) {
+      baselineNanos.compareAndSet(0, Math.max(1, elapsedNanos));
+      return;
+    }
+    //竞争失败时丢弃这次更新,基线只是一个近似值
+    long delta = elapsedNanos - baseline;
+    baselineNanos.compareAndSet(baseline, baseline + (delta < 0 ? delta / 8 : delta / 64));
+
+    if (slow || elapsedNanos > baseline * latencyTolerance) {
+      long now = System.nanoTime();
+      long last = lastDecreaseNanos.get();
+      if (now - last >= baseline && lastDecreaseNanos.compareAndSet(last, now)) {
+        int current = limit.get();
+        limit.compareAndSet(current, Math.max(minLimit, (int) (current * backoffRatio)));
+      }
+      return;
+    }
+    int current = limit.get();
+    if (current < maxLimit && permits.inFlight() * 2 >= current
+        && ThreadLocalRandom.current().nextInt(current) == 0) {
+      limit.compareAndSet(current, current + 1);
+    }
+  }
+
+  int getLimit() {
+    return limit.get();
+  }
+
+  int getInFlight() {
+    return permits.inFlight();
+  }
+}
@@ -7,8 +7,13 @@ import javax.sql.DataSource;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -32,6 +37,15 @@ abstract class ConcurrentDataSourceHealthChecker {
   private int threadCount;
   private int recheckInterval;
   private String detectSql;
+  private ReplicationLagProbe lagProbe;
+  private long lagCheckPeriod;
+
+  /**
+   * 每个数据源上的定时任务,拓扑变化时用于取消被移除的数据源的检测
+   */
+  private final ConcurrentMap<DataSource, List<ScheduledFuture<?>>> tasks =
+      new ConcurrentHashMap<>();
+  private final List<ScheduledFuture<?>> lagTasks = new CopyOnWriteArrayList<>();
 
   public void check(DataSource... dataSources) {
     checkNotNull(dataSources);
@@ -42,7 +56,7 @@ abstract class ConcurrentDataSourceHealthChecker {
       if (dataSource == null) {
         continue;
       }
-      scheduler.scheduleWithFixedDelay(new Runnable() {
+      ScheduledFuture<?> task = scheduler.scheduleWithFixedDelay(new Runnable() {
         @Override public void run() {
           //check DataSource
           for (int i = 0; i < recheckTimes; i++) {
@@ -86,13 +100,105 @@ abstract class ConcurrentDataSourceHealthChecker {
           }
         }
       }, initialDelay, monitorPeriod, TimeUnit.MILLISECONDS);
+      addTask(dataSource, task);
+    }
+  }
+
+  /**
+   * 定时检测从库的复制延迟,如果使用心跳表检测则同时定时在master上写心跳
+   */
+  public void monitorReplicationLag(final DataSource master, DataSource... slaves) {
+    checkNotNull(lagProbe);
+    ensureInitScheduler();
+
+    if (lagProbe instanceof HeartbeatLagProbe && ((HeartbeatLagProbe) lagProbe).isWriteHeartbeat()) {
+      final HeartbeatLagProbe heartbeatLagProbe = (HeartbeatLagProbe) lagProbe;
+      lagTasks.add(scheduler.scheduleWithFixedDelay(new Runnable() {
+        @Override public void run() {
+          try (Connection connection = master.getConnection()) {
+            heartbeatLagProbe.writeHeartbeat(connection);
+          } catch (SQLException e) {
+            LOGGER.error("write heartbeat failed:{}", master, e);
+          }
+        }
+      }, 0, lagCheckPeriod, TimeUnit.MILLISECONDS));
+    }
+    for (final DataSource slave : slaves) {
+      if (slave == null) {
+        continue;
+      }
+      lagTasks.add(scheduler.scheduleWithFixedDelay(new Runnable() {
+        @Override public void run() {
+          try (Connection connection = slave.getConnection()) {
+            onReplicationLag(slave, lagProbe.lagMillis(connection));
+          } catch (SQLException e) {
+            //连接不上的情况由check处理,这里不改变延迟状态
+            LOGGER.error("replication lag check failed:{}", slave, e);
+          }
+        }
+      }, lagCheckPeriod, lagCheckPeriod, TimeUnit.MILLISECONDS));
+    }
+  }
+
+  /**
+   * 停止对数据源的可用性检测
+   */
+  public void cancel(DataSource... dataSources) {
+    for (DataSource dataSource : dataSources) {
+      List<ScheduledFuture<?>> futures = tasks.remove(dataSource);
+      if (futures == null) {
+        continue;
+      }
+      for (ScheduledFuture<?> future : futures) {
+        future.cancel(false);
+      }
     }
   }
 
+  /**
+   * 停止所有复制延迟的检测和心跳,主从角色变化后重新调用{@link #monitorReplicationLag}
+   */
+  public void cancelReplicationLagMonitor() {
+    for (ScheduledFuture<?> future : lagTasks) {
+      future.cancel(false);
+    }
+    lagTasks.clear();
+  }
+
+  /**
+   * 停止所有检测并关闭检测线程
+   */
+  public synchronized void shutdown() {
+    if (scheduler != null) {
+      scheduler.shutdownNow();
+      scheduler = null;
+    }
+    tasks.clear();
+    lagTasks.clear();
+  }
+
+  private void addTask(DataSource dataSource, ScheduledFuture<?> task) {
+    List<ScheduledFuture<?>> futures = tasks.get(dataSource);
+    if (futures == null) {
+      List<ScheduledFuture<?>> created = new CopyOnWriteArrayList<>();
+      futures = tasks.putIfAbsent(dataSource, created);
+      if (futures == null) {
+        futures = created;
+      }
+    }
+    futures.add(task);
+  }
+
   protected abstract void onAvailable(DataSource dataSource);
 
   protected abstract void onUnavailable(DataSource dataSource);
 
+  /**
+   * 得到从库的复制延迟,延迟为负数表示无法得到延迟
+   */
+  protected void onReplicationLag(DataSource dataSource, long lagMillis) {
+  }
+
   private void ensureInitScheduler() {
     if (scheduler == null) {
       synchronized (this) {
@@ -162,4 +268,20 @@ abstract class ConcurrentDataSourceHealthChecker {
   public void setDetectSql(String detectSql) {
     this.detectSql = detectSql;
   }
+
+  public ReplicationLagProbe getLagProbe() {
+    return lagProbe;
+  }
+
+  public void setLagProbe(ReplicationLagProbe lagProbe) {
+    this.lagProbe = lagProbe;
+  }
+
+  public long getLagCheckPeriod() {
+    return lagCheckPeriod;
+  }
+
+  public void setLagCheckPeriod(long lagCheckPeriod) {
+    this.lagCheckPeriod = lagCheckPeriod;
+  }
 }
@@ -0,0 +1,169 @@
+package cn.yxffcode.datasource.masterslave;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * 内置连接池,为主从组中的每个数据源创建一个{@link NodePool},所有NodePool共用全局的连接数上限
+ * <p/>
+ * 全局上限用完时,从保留的连接多于需求的NodePool中回收一个空闲连接,把容量让给需要的数据源;
+ * 后台线程每秒更新每个数据源的需求,关闭超过需求且空闲超过idleTimeout的连接,
+ * 并补足minIdle
+ *
+ * @author gaohang
+ */
+final class ConnectionPool {
+  private static final Logger LOGGER = LoggerFactory.getLogger(ConnectionPool.class);
+
+  private static final long HOUSEKEEPING_PERIOD_MILLIS = 1000;
+
+  private final int maxTotal;
+  private final int minIdle;
+  private final long borrowTimeoutNanos;
+  private final long idleTimeoutNanos;
+  /**
+   * 空闲超过该时间的连接借出前检查是否可用,小于0时不检查
+   */
+  private final long validationIdleNanos;
+  private final int validationTimeoutSeconds;
+  private final String sessionResetSql;
+
+  private final AtomicInteger total = new AtomicInteger();
+  private final List<NodePool> pools = new CopyOnWriteArrayList<>();
+  private final ScheduledExecutorService housekeeper;
+
+  ConnectionPool(PoolConfig config) {
+    checkArgument(config.getMaxTotal() > 0, "maxTotal must be positive: %s", config.getMaxTotal());
+    this.maxTotal = config.getMaxTotal();
+    this.minIdle = config.getMinIdle();
+    this.borrowTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(config.getBorrowTimeout());
+    this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(config.getIdleTimeout());
+    this.validationIdleNanos = config.getValidationIdleTime() < 0 ? -1
+        : TimeUnit.MILLISECONDS.toNanos(config.getValidationIdleTime());
+    this.validationTimeoutSeconds =
+        (int) Math.max(1, TimeUnit.MILLISECONDS.toSeconds(config.getBorrowTimeout()));
+    this.sessionResetSql = config.getSessionResetSql();
+    this.housekeeper = Executors.newSingleThreadScheduledExecutor(
+        ExecutorServices.daemonThreadFactory("masterslave-pool-"));
+    this.housekeeper.scheduleWithFixedDelay(new Runnable() {
+      @Override public void run() {
+        housekeep();
+      }
+    }, HOUSEKEEPING_PERIOD_MILLIS, HOUSEKEEPING_PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * 为数据源创建NodePool
+   */
+  NodePool create(DataSource dataSource) {
+    NodePool pool = new NodePool(this, dataSource);
+    pools.add(pool);
+    return pool;
+  }
+
+  void unregister(NodePool pool) {
+    pools.remove(pool);
+  }
+
+  /**
+   * 占用一个全局的连接名额,没有名额时从其它NodePool回收一个多余的空闲连接
+   */
+  boolean reserve(NodePool requester) {
+    if (tryReserve()) {
+      return true;
+    }
+    return evictSurplus(requester) && tryReserve();
+  }
+
+  boolean tryReserve() {
+    while (true) {
+      int current = total.get();
+      if (current >= maxTotal) {
+        return false;
+      }
+      if (total.compareAndSet(current, current + 1)) {
+        return true;
+      }
+    }
+  }
+
+  /**
+   * 物理连接关闭或创建失败后归还名额
+   */
+  void unreserve() {
+    total.decrementAndGet();
+  }
+
+  /**
+   * 从保留的连接超出需求最多的NodePool中关闭一个空闲连接
+   */
+  private boolean evictSurplus(NodePool requester) {
+    NodePool donor = null;
+    int maxSurplus = 0;
+    for (NodePool pool : pools) {
+      if (pool == requester) {
+        continue;
+      }
+      int surplus = pool.surplus(minIdle);
+      if (surplus > maxSurplus) {
+        maxSurplus = surplus;
+        donor = pool;
+      }
+    }
+    if (donor == null) {
+      return false;
+    }
+    LOGGER.debug("move pool capacity from {} to {}", donor, requester);
+    return donor.evictIdle(0, 1) > 0;
+  }
+
+  private void housekeep() {
+    for (NodePool pool : pools) {
+      try {
+        pool.housekeep(minIdle, idleTimeoutNanos);
+      } catch (RuntimeException e) {
+        LOGGER.warn("pool housekeeping failed:{}", pool, e);
+      }
+    }
+  }
+
+  /**
+   * 停止后台线程并关闭所有NodePool,空闲连接立即关闭,使用中的连接在归还时关闭
+   */
+  void close() {
+    housekeeper.shutdownNow();
+    for (NodePool pool : pools) {
+      pool.close();
+    }
+  }
+
+  long getBorrowTimeoutNanos() {
+    return borrowTimeoutNanos;
+  }
+
+  long getValidationIdleNanos() {
+    return validationIdleNanos;
+  }
+
+  int getValidationTimeoutSeconds() {
+    return validationTimeoutSeconds;
+  }
+
+  String getSessionResetSql() {
+    return sessionResetSql;
+  }
+
+  int getTotal() {
+    return total.get();
+  }
+}
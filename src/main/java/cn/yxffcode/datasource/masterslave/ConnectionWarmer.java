@@ -0,0 +1,230 @@
+package cn.yxffcode.datasource.masterslave;
+
+import cn.yxffcode.datasource.RouteHint;
+import cn.yxffcode.datasource.SQLParser;
+import cn.yxffcode.datasource.masterslave.StatementCache.StatementKey;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 启动或拓扑变化时预热数据源:在每个节点上并行打开若干连接,并在这些连接上预处理热点SQL,
+ * 使TCP/TLS握手、认证和服务端预处理在接收流量之前完成
+ * <p/>
+ * 热点SQL通过{@link SQLParser}决定预处理在哪些节点上:写语句在主库上,读语句在从库上
+ * (没有从库时在主库上),带路由注释的语句按注释指定的节点
+ * <p/>
+ * 预热的连接全部打开之后才一起关闭,使连接池中确实保留指定数量的连接
+ * <p/>
+ * 使用内置连接池并开启statementCacheSize时,预处理的Statement放入连接在池中保留的Statement缓存,
+ * 之后借到这些连接的逻辑Statement直接复用;否则预处理的Statement立即关闭,
+ * 只有驱动缓存预处理语句(如MySQL的cachePrepStmts)或使用服务端预处理时才有效果
+ *
+ * @author gaohang
+ */
+final class ConnectionWarmer {
+  private static final Logger LOGGER = LoggerFactory.getLogger(ConnectionWarmer.class);
+
+  private static final int MAX_THREADS = 32;
+
+  private final int connections;
+  private final List<String> sqls;
+  private final long timeoutMillis;
+  private final int statementCacheSize;
+  private final LongAdder statementCacheEvictions;
+
+  /**
+   * 已经打开的预热连接,超时后完成的任务打开的连接直接关闭
+   */
+  private final List<Connection> opened = new ArrayList<>();
+  private boolean finished;
+
+  ConnectionWarmer(int connections, List<String> sqls, long timeoutMillis,
+                   int statementCacheSize, LongAdder statementCacheEvictions) {
+    this.connections = connections;
+    this.sqls = sqls;
+    this.timeoutMillis = timeoutMillis;
+    this.statementCacheSize = statementCacheSize;
+    this.statementCacheEvictions = statementCacheEvictions;
+  }
+
+  /**
+   * 预热拓扑中的节点
+   *
+   * @param nodes 需要预热的节点,为拓扑中节点的子集
+   * @return 是否在时间限制内完成
+   */
+  boolean warmUp(Topology topology, Collection<DataSourceNode> nodes) throws SQLException {
+    Map<DataSourceNode, List<String>> routed = route(topology);
+    List<Callable<Integer>> tasks = new ArrayList<>(nodes.size() * connections);
+    for (DataSourceNode node : nodes) {
+      List<String> nodeSqls = routed.get(node);
+      for (int i = 0; i < connections; i++) {
+        tasks.add(new WarmupTask(node,
+            nodeSqls == null ? Collections.<String>emptyList() : nodeSqls));
+      }
+    }
+    if (tasks.isEmpty()) {
+      return true;
+    }
+
+    long start = System.nanoTime();
+    ExecutorService executor = ExecutorServices.newExecutor("masterslave-warmup-",
+        Math.min(tasks.size(), MAX_THREADS), tasks.size());
+    int prepared = 0;
+    int failed = 0;
+    boolean completed = true;
+    try {
+      List<Future<Integer>> futures =
+          executor.invokeAll(tasks, timeoutMillis, TimeUnit.MILLISECONDS);
+      for (Future<Integer> future : futures) {
+        try {
+          prepared += future.get();
+        } catch (CancellationException e) {
+          completed = false;
+        } catch (ExecutionException e) {
+          failed++;
+          LOGGER.warn("warm-up connection failed", e.getCause());
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      completed = false;
+    } finally {
+      executor.shutdownNow();
+      closeOpened();
+    }
+    long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    if (completed) {
+      LOGGER.info("warm-up finished in {}ms, {} nodes, {} connections, {} statements prepared, "
+          + "{} failed", elapsed, nodes.size(), tasks.size() - failed, prepared, failed);
+    } else {
+      LOGGER.warn("warm-up timed out after {}ms, {} statements prepared", elapsed, prepared);
+    }
+    return completed;
+  }
+
+  /**
+   * 按路由规则把热点SQL分配到节点上
+   */
+  private Map<DataSourceNode, List<String>> route(Topology topology) throws SQLException {
+    Map<DataSourceNode, List<String>> routed = new IdentityHashMap<>();
+    for (String sql : sqls) {
+      RouteHint hint = SQLParser.getRouteHint(sql);
+      List<DataSourceNode> targets;
+      if (hint != null && !hint.isMaster()) {
+        targets = hint.getSlaveGroup() == null ? topology.getSlaves()
+            : topology.getSlaveGroups().get(hint.getSlaveGroup());
+      } else if (hint == null && SQLParser.getSqlType(sql).isRead()
+          && !topology.getSlaves().isEmpty()) {
+        targets = topology.getSlaves();
+      } else {
+        targets = Collections.singletonList(topology.getMaster());
+      }
+      if (targets == null) {
+        LOGGER.warn("slave group not found, skip warm-up sql:{}", sql);
+        continue;
+      }
+      for (DataSourceNode node : targets) {
+        List<String> nodeSqls = routed.get(node);
+        if (nodeSqls == null) {
+          nodeSqls = new ArrayList<>();
+          routed.put(node, nodeSqls);
+        }
+        nodeSqls.add(sql);
+      }
+    }
+    return routed;
+  }
+
+  private synchronized boolean keep(Connection connection) {
+    if (finished) {
+      return false;
+    }
+    opened.add(connection);
+    return true;
+  }
+
+  private synchronized void closeOpened() {
+    finished = true;
+    for (Connection connection : opened) {
+      closeQuietly(connection);
+    }
+    opened.clear();
+  }
+
+  private static void closeQuietly(Connection connection) {
+    try {
+      connection.close();
+    } catch (SQLException e) {
+      LOGGER.debug("close warm-up connection failed", e);
+    }
+  }
+
+  private final class WarmupTask implements Callable<Integer> {
+    private final DataSourceNode node;
+    private final List<String> sqls;
+
+    private WarmupTask(DataSourceNode node, List<String> sqls) {
+      this.node = node;
+      this.sqls = sqls;
+    }
+
+    /**
+     * @return 成功预处理的语句数
+     */
+    @Override public Integer call() throws SQLException {
+      //直接使用物理数据源,预热不计入节点的统计和熔断
+      Connection connection = node.openConnection();
+      if (!keep(connection)) {
+        closeQuietly(connection);
+        return 0;
+      }
+      StatementCache cache = statementCache(connection);
+      int prepared = 0;
+      for (String sql : sqls) {
+        try {
+          PreparedStatement statement = connection.prepareStatement(sql);
+          if (cache != null) {
+            //与PreparedMasterslaveStatement使用相同的键
+            cache.put(new StatementKey(sql, 0, 0, 0, MasterslaveStatement.NO_AUTO_GENERATED_KEYS),
+                statement);
+          } else {
+            statement.close();
+          }
+          prepared++;
+        } catch (SQLException e) {
+          LOGGER.warn("warm-up prepare failed on {}:{}", node.getDataSource(), sql, e);
+        }
+      }
+      return prepared;
+    }
+
+    /**
+     * 内置连接池中连接保留的Statement缓存,不使用内置连接池或不缓存Statement时返回null
+     */
+    private StatementCache statementCache(Connection connection) {
+      NodePool pool = node.getPool();
+      if (pool == null || statementCacheSize <= 0) {
+        return null;
+      }
+      return pool.statementCache(connection, statementCacheSize, statementCacheEvictions);
+    }
+  }
+}
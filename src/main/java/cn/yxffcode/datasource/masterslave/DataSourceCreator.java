@@ -0,0 +1,18 @@
+package cn.yxffcode.datasource.masterslave;
+
+import javax.sql.DataSource;
+import java.util.Properties;
+
+/**
+ * 根据拓扑文件中的配置创建数据源,通常是创建一个连接池
+ *
+ * @author gaohang
+ */
+public interface DataSourceCreator {
+
+  /**
+   * @param name       拓扑文件中的数据源名
+   * @param properties 拓扑文件中以"数据源名."开头的配置,key中已经去掉了前缀
+   */
+  DataSource create(String name, Properties properties) throws Exception;
+}
@@ -0,0 +1,323 @@
+package cn.yxffcode.datasource.masterslave;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * 主从组中的一个物理数据源,持有可用性标记以及负载均衡需要的运行时数据
+ * <p/>
+ * 所有状态都是volatile或原子变量,请求线程读取时不需要加锁
+ *
+ * @author gaohang
+ */
+public final class DataSourceNode {
+
+  private final DataSource dataSource;
+  private volatile int weight;
+
+  private volatile boolean available = true;
+
+  /**
+   * 复制延迟超过上限时为true,此时不再接收读请求,直到延迟恢复
+   */
+  private volatile boolean lagging;
+  private volatile long replicationLagMillis;
+
+  /**
+   * 当前从该数据源取出且还没有归还的连接数
+   */
+  private final AtomicInteger activeConnections = new AtomicInteger();
+
+  private final LatencyStats latencyStats = new LatencyStats();
+
+  /**
+   * 为null表示不使用熔断
+   */
+  private CircuitBreaker circuitBreaker;
+  /**
+   * 为null表示不限制并发
+   */
+  private ConcurrencyLimiter concurrencyLimiter;
+  /**
+   * 为null表示不按流量类别隔离
+   */
+  private Bulkhead bulkhead;
+  /**
+   * 为null表示不使用内置连接池,dataSource本身负责连接的复用
+   */
+  private NodePool pool;
+
+  DataSourceNode(DataSource dataSource, int weight) {
+    checkNotNull(dataSource);
+    checkArgument(weight > 0, "weight must be positive: %s", weight);
+    this.dataSource = dataSource;
+    this.weight = weight;
+  }
+
+  /**
+   * @param trafficClass 流量类别,取连接时先占用该类别在隔舱中的配额
+   */
+  Connection getConnection(String trafficClass) throws SQLException {
+    return getConnection(trafficClass, null);
+  }
+
+  /**
+   * @param trafficClass 流量类别,取连接时先占用该类别在隔舱中的配额
+   * @param session      取得连接后会在连接上执行的set语句,按赋值的变量索引,
+   *                     内置连接池据此判断池中连接的会话是否需要重置
+   */
+  Connection getConnection(String trafficClass, Map<String, String> session)
+      throws SQLException {
+    if (bulkhead != null && !bulkhead.acquire(trafficClass)) {
+      throw new BulkheadFullException(this, trafficClass);
+    }
+    ConcurrencyLimiter limiter = concurrencyLimiter;
+    if (limiter != null && !limiter.acquire()) {
+      releasePermits(trafficClass, null);
+      throw new ConcurrencyLimitExceededException(this);
+    }
+    if (circuitBreaker != null && !circuitBreaker.tryAcquire()) {
+      releasePermits(trafficClass, limiter);
+      throw new CircuitBreakerOpenException(this);
+    }
+    long start = System.nanoTime();
+    Connection connection;
+    try {
+      connection = openConnection(session);
+    } catch (SQLException e) {
+      releasePermits(trafficClass, limiter);
+      recordFailure(System.nanoTime() - start, e);
+      throw e;
+    }
+    //取到连接不计入熔断统计,否则从池中借连接会拉低错误率,并让半开状态在没有执行语句时就关闭
+    activeConnections.incrementAndGet();
+    return connection;
+  }
+
+  /**
+   * 直接取物理连接,不经过熔断、限流和统计,使用内置连接池时从池中取
+   */
+  Connection openConnection() throws SQLException {
+    return openConnection(null);
+  }
+
+  private Connection openConnection(Map<String, String> session) throws SQLException {
+    return pool != null ? pool.getConnection(session) : dataSource.getConnection();
+  }
+
+  /**
+   * 在已经持有的连接上执行语句之前检查,熔断期间直接失败,不再等待超时
+   */
+  void checkCircuit() throws SQLException {
+    if (circuitBreaker != null && circuitBreaker.isOpen()) {
+      throw new CircuitBreakerOpenException(this);
+    }
+  }
+
+  /**
+   * 归还通过{@link #getConnection(String)}取得的连接
+   *
+   * @param trafficClass 取连接时使用的流量类别
+   */
+  void release(Connection connection, String trafficClass) throws SQLException {
+    try {
+      connection.close();
+    } finally {
+      activeConnections.decrementAndGet();
+      releasePermits(trafficClass, concurrencyLimiter);
+    }
+  }
+
+  /**
+   * 在connection上执行语句失败后调用,连接级别的错误使内置连接池中的连接归还后不再复用
+   */
+  void connectionFailed(Connection connection, SQLException e) {
+    if (pool != null && connection != null && SQLExceptions.isConnectionError(e)) {
+      pool.discard(connection);
+    }
+  }
+
+  /**
+   * 在connection上直接执行了修改会话变量的语句,内置连接池中的连接归还时需要重置
+   */
+  void sessionModified(Connection connection) {
+    if (pool != null) {
+      pool.sessionModified(connection);
+    }
+  }
+
+  /**
+   * 在connection上执行了逻辑连接记录的set语句,内置连接池中的连接归还时保留这些语句
+   *
+   * @param key 语句赋值的变量
+   */
+  void sessionApplied(Connection connection, String key, String sql) {
+    if (pool != null) {
+      pool.sessionApplied(connection, key, sql);
+    }
+  }
+
+  /**
+   * connection上已经执行过的set语句,不使用内置连接池时返回null
+   */
+  Map<String, String> appliedSessionStatements(Connection connection) {
+    return pool == null ? null : pool.appliedSessionStatements(connection);
+  }
+
+  private void releasePermits(String trafficClass, ConcurrencyLimiter limiter) {
+    if (limiter != null) {
+      limiter.release();
+    }
+    if (bulkhead != null) {
+      bulkhead.release(trafficClass);
+    }
+  }
+
+  /**
+   * 记录一次成功的语句执行
+   */
+  void recordSuccess(long elapsedNanos) {
+    latencyStats.record(elapsedNanos, false);
+    if (concurrencyLimiter != null) {
+      concurrencyLimiter.onSample(elapsedNanos, false);
+    }
+    if (circuitBreaker != null) {
+      circuitBreaker.onSuccess(elapsedNanos);
+    }
+  }
+
+  /**
+   * 记录一次失败的取连接或语句执行,只有数据源本身的错误才计入错误率
+   */
+  void recordFailure(long elapsedNanos, SQLException e) {
+    if (!SQLExceptions.isNodeFailure(e)) {
+      latencyStats.record(elapsedNanos, false);
+      return;
+    }
+    latencyStats.record(elapsedNanos, true);
+    if (concurrencyLimiter != null) {
+      concurrencyLimiter.onSample(elapsedNanos, true);
+    }
+    if (circuitBreaker != null) {
+      circuitBreaker.onFailure(SQLExceptions.isTimeout(e));
+    }
+  }
+
+  void setCircuitBreaker(CircuitBreaker circuitBreaker) {
+    this.circuitBreaker = circuitBreaker;
+  }
+
+  void setConcurrencyLimiter(ConcurrencyLimiter concurrencyLimiter) {
+    this.concurrencyLimiter = concurrencyLimiter;
+  }
+
+  void setBulkhead(Bulkhead bulkhead) {
+    this.bulkhead = bulkhead;
+  }
+
+  /**
+   * 物理连接上的PreparedStatement缓存,内置连接池中的连接使用连接池保留的缓存,在多次借用之间共享
+   */
+  StatementCache statementCache(Connection connection, int maxSize, LongAdder evictions) {
+    if (pool != null) {
+      StatementCache cache = pool.statementCache(connection, maxSize, evictions);
+      if (cache != null) {
+        return cache;
+      }
+    }
+    return new StatementCache(maxSize, evictions, false);
+  }
+
+  NodePool getPool() {
+    return pool;
+  }
+
+  void setPool(NodePool pool) {
+    this.pool = pool;
+  }
+
+  /**
+   * 内置连接池中的空闲连接数,不使用内置连接池时返回-1
+   */
+  public int getIdleConnections() {
+    return pool == null ? -1 : pool.getIdle();
+  }
+
+  /**
+   * 并发数是否已经达到自适应的上限,达到上限时读请求优先分配到其它从库
+   */
+  boolean isSaturated() {
+    return concurrencyLimiter != null && concurrencyLimiter.isSaturated();
+  }
+
+  /**
+   * 当前的并发上限,不限制并发时返回-1
+   */
+  public int getConcurrencyLimit() {
+    return concurrencyLimiter == null ? -1 : concurrencyLimiter.getLimit();
+  }
+
+  LatencyStats getLatencyStats() {
+    return latencyStats;
+  }
+
+  public DataSource getDataSource() {
+    return dataSource;
+  }
+
+  public int getWeight() {
+    return weight;
+  }
+
+  /**
+   * 拓扑变化时调整权重,节点上的统计数据和熔断状态保留
+   */
+  void setWeight(int weight) {
+    checkArgument(weight > 0, "weight must be positive: %s", weight);
+    this.weight = weight;
+  }
+
+  /**
+   * 可用,复制延迟没有超过上限,并且没有熔断
+   */
+  public boolean isAvailable() {
+    return available && !lagging && (circuitBreaker == null || circuitBreaker.allowsTraffic());
+  }
+
+  void setAvailable(boolean available) {
+    this.available = available;
+  }
+
+  /**
+   * @param lagMillis    检测到的复制延迟,负数表示无法得到延迟,按延迟超限处理
+   * @param maxLagMillis 允许的最大延迟
+   */
+  void updateReplicationLag(long lagMillis, long maxLagMillis) {
+    this.replicationLagMillis = lagMillis;
+    this.lagging = lagMillis < 0 || lagMillis > maxLagMillis;
+  }
+
+  public boolean isLagging() {
+    return lagging;
+  }
+
+  public long getReplicationLagMillis() {
+    return replicationLagMillis;
+  }
+
+  public int getActiveConnections() {
+    return activeConnections.get();
+  }
+
+  @Override public String toString() {
+    return "DataSourceNode{" + dataSource + ", weight=" + weight + ", available=" + available
+        + ", lagging=" + lagging + '}';
+  }
+}
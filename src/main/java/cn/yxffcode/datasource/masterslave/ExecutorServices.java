@@ -0,0 +1,83 @@
+package cn.yxffcode.datasource.masterslave;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 创建内部使用的线程池
+ *
+ * @author gaohang
+ */
+final class ExecutorServices {
+  private static final Logger LOGGER = LoggerFactory.getLogger(ExecutorServices.class);
+
+  private ExecutorServices() {
+  }
+
+  /**
+   * JDK支持虚拟线程(21及以上)时,返回每个任务一个虚拟线程的ExecutorService,否则返回null
+   */
+  static ExecutorService newVirtualThreadExecutor() {
+    try {
+      Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      return (ExecutorService) method.invoke(null);
+    } catch (NoSuchMethodException e) {
+      return null;
+    } catch (Exception e) {
+      LOGGER.warn("create virtual thread executor failed", e);
+      return null;
+    }
+  }
+
+  /**
+   * 有界的线程池,线程和队列都满时拒绝任务
+   *
+   * @param queueCapacity 为0时不排队,没有空闲线程时直接拒绝
+   */
+  static ExecutorService newBoundedExecutor(String namePrefix, int threads, int queueCapacity) {
+    BlockingQueue<Runnable> queue = queueCapacity == 0 ? new SynchronousQueue<Runnable>()
+        : new LinkedBlockingQueue<Runnable>(queueCapacity);
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+        queue, daemonThreadFactory(namePrefix), new ThreadPoolExecutor.AbortPolicy());
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+
+  /**
+   * 优先使用虚拟线程,JDK不支持时使用有界的线程池
+   */
+  static ExecutorService newExecutor(String namePrefix, int threads, int queueCapacity) {
+    ExecutorService executor = newVirtualThreadExecutor();
+    if (executor != null) {
+      return executor;
+    }
+    return newBoundedExecutor(namePrefix, threads, queueCapacity);
+  }
+
+  static ThreadFactory daemonThreadFactory(final String namePrefix) {
+    return new ThreadFactory() {
+      private final AtomicInteger threadCounter = new AtomicInteger();
+
+      @Override public Thread newThread(Runnable r) {
+        Thread t = new Thread(r);
+        t.setName(namePrefix + threadCounter.getAndIncrement());
+        t.setDaemon(true);
+        if (t.getPriority() != Thread.NORM_PRIORITY) {
+          t.setPriority(Thread.NORM_PRIORITY);
+        }
+        return t;
+      }
+    };
+  }
+}
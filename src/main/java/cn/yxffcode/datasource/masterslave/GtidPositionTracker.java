@@ -0,0 +1,40 @@
+package cn.yxffcode.datasource.masterslave;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * 基于MySQL GTID的复制位点,master和从库都需要开启gtid_mode
+ * <p/>
+ * 使用master上的gtid_executed作为位点,它包含当前会话的写,也可能包含其它会话的写,
+ * 因此等待的时间可能略长于只等待当前会话的写,但不会读到旧数据
+ *
+ * @author gaohang
+ */
+public class GtidPositionTracker implements ReplicationPositionTracker {
+
+  @Override public String currentPosition(Connection masterConnection) throws SQLException {
+    try (Statement statement = masterConnection.createStatement();
+         ResultSet resultSet = statement.executeQuery("SELECT @@GLOBAL.gtid_executed")) {
+      if (!resultSet.next()) {
+        return null;
+      }
+      String gtidSet = resultSet.getString(1);
+      return gtidSet == null || gtidSet.isEmpty() ? null : gtidSet;
+    }
+  }
+
+  @Override public boolean hasApplied(Connection slaveConnection, String position)
+      throws SQLException {
+    try (PreparedStatement statement = slaveConnection
+        .prepareStatement("SELECT GTID_SUBSET(?, @@GLOBAL.gtid_executed)")) {
+      statement.setString(1, position);
+      try (ResultSet resultSet = statement.executeQuery()) {
+        return resultSet.next() && resultSet.getInt(1) == 1;
+      }
+    }
+  }
+}
@@ -0,0 +1,78 @@
+package cn.yxffcode.datasource.masterslave;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * 通过心跳表得到复制延迟,master定时写入当前时间,从库上读到的时间与当前时间之差即为延迟
+ * <p/>
+ * 心跳表需要预先创建,例如:
+ * <pre>
+ *   create table masterslave_heartbeat (id int primary key, ts bigint not null);
+ *   insert into masterslave_heartbeat values (1, 0);
+ * </pre>
+ * 时间由应用写入并由应用比较,不受数据库服务器之间时钟偏差的影响,
+ * 但测得的延迟最多会比实际多一个心跳间隔
+ *
+ * @author gaohang
+ */
+public class HeartbeatLagProbe implements ReplicationLagProbe {
+
+  private String table = "masterslave_heartbeat";
+  private int heartbeatId = 1;
+  /**
+   * 是否由当前应用写心跳,多个应用共用同一个主从组时只需要一个应用写
+   */
+  private boolean writeHeartbeat = true;
+
+  @Override public long lagMillis(Connection slaveConnection) throws SQLException {
+    try (PreparedStatement statement = slaveConnection
+        .prepareStatement("select ts from " + table + " where id = ?")) {
+      statement.setInt(1, heartbeatId);
+      try (ResultSet resultSet = statement.executeQuery()) {
+        if (!resultSet.next()) {
+          return -1;
+        }
+        return Math.max(0, System.currentTimeMillis() - resultSet.getLong(1));
+      }
+    }
+  }
+
+  /**
+   * 在master上写入心跳
+   */
+  void writeHeartbeat(Connection masterConnection) throws SQLException {
+    try (PreparedStatement statement = masterConnection
+        .prepareStatement("update " + table + " set ts = ? where id = ?")) {
+      statement.setLong(1, System.currentTimeMillis());
+      statement.setInt(2, heartbeatId);
+      statement.executeUpdate();
+    }
+  }
+
+  public String getTable() {
+    return table;
+  }
+
+  public void setTable(String table) {
+    this.table = table;
+  }
+
+  public int getHeartbeatId() {
+    return heartbeatId;
+  }
+
+  public void setHeartbeatId(int heartbeatId) {
+    this.heartbeatId = heartbeatId;
+  }
+
+  public boolean isWriteHeartbeat() {
+    return writeHeartbeat;
+  }
+
+  public void setWriteHeartbeat(boolean writeHeartbeat) {
+    this.writeHeartbeat = writeHeartbeat;
+  }
+}
@@ -0,0 +1,20 @@
+package cn.yxffcode.datasource.masterslave;
+
+/**
+ * 随机选出两个可用的从库,取当前响应最快的一个
+ * <p/>
+ * 评分为EWMA耗时(按错误率放大)乘以活跃连接数加1,这样即使某个从库很快,
+ * 也不会在它开始变慢之前把所有请求都压上去
+ *
+ * @author gaohang
+ */
+final class LatencyAwareLoadBalancer extends PowerOfTwoChoicesLoadBalancer {
+
+  @Override protected int compare(DataSourceNode a, DataSourceNode b) {
+    return Double.compare(cost(a), cost(b));
+  }
+
+  private static double cost(DataSourceNode node) {
+    return node.getLatencyStats().score() * (node.getActiveConnections() + 1);
+  }
+}
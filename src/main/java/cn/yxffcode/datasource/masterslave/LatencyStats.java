@@ -0,0 +1,162 @@
+package cn.yxffcode.datasource.masterslave;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 单个数据源的执行耗时与错误率统计,使用指数加权移动平均(EWMA)
+ * <p/>
+ * 请求线程只累加到分段的{@link LongAdder}中,不分配对象也不竞争同一个变量;
+ * 读取评分时每隔{@link #FOLD_INTERVAL_NANOS}由一个线程把累加值合并到EWMA中
+ * <p/>
+ * 另外按2的幂(微秒)分桶记录成功执行的耗时分布,用于估算分位数,分布每秒衰减一半
+ *
+ * @author gaohang
+ */
+final class LatencyStats {
+
+  private static final long FOLD_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+  /**
+   * EWMA的时间常数,越小对最近的变化越敏感
+   */
+  private static final double DECAY_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+  /**
+   * 错误率对评分的放大系数,错误率为100%时评分放大到11倍
+   */
+  private static final double ERROR_PENALTY = 10;
+
+  private static final int MIN_PERCENTILE_SAMPLES = 20;
+
+  private static final long HISTOGRAM_DECAY_NANOS = TimeUnit.SECONDS.toNanos(1);
+  /**
+   * 第i个桶记录耗时在[2^(i-1), 2^i)微秒之间的执行,最后一个桶记录所有更长的执行
+   */
+  private static final int BUCKETS = 32;
+
+  private final LongAdder totalNanos = new LongAdder();
+  private final LongAdder calls = new LongAdder();
+  private final LongAdder errors = new LongAdder();
+
+  private final AtomicLong lastFoldNanos = new AtomicLong(System.nanoTime());
+  private volatile double ewmaLatencyNanos;
+  private volatile double ewmaErrorRate;
+
+  private final LongAdder[] histogram = new LongAdder[BUCKETS];
+  private final AtomicLong lastDecayNanos = new AtomicLong(System.nanoTime());
+
+  LatencyStats() {
+    for (int i = 0; i < BUCKETS; i++) {
+      histogram[i] = new LongAdder();
+    }
+  }
+
+  void record(long elapsedNanos, boolean failed) {
+    totalNanos.add(elapsedNanos);
+    calls.increment();
+    if (failed) {
+      errors.increment();
+    } else {
+      long micros = elapsedNanos / 1000;
+      int bucket = 64 - Long.numberOfLeadingZeros(micros);
+      histogram[bucket < BUCKETS ? bucket : BUCKETS - 1].increment();
+    }
+  }
+
+  /**
+   * 估算成功执行耗时的分位数
+   *
+   * @param percentile 取值(0, 1),例如0.95
+   * @return 分位数对应的纳秒数,没有足够的样本时返回-1
+   */
+  long percentileNanos(double percentile) {
+    maybeDecayHistogram();
+    long total = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      total += histogram[i].sum();
+    }
+    if (total < MIN_PERCENTILE_SAMPLES) {
+      return -1;
+    }
+    double target = total * percentile;
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      long count = histogram[i].sum();
+      if (count == 0) {
+        continue;
+      }
+      if (seen + count >= target) {
+        //在桶内线性插值
+        long lower = i == 0 ? 0 : 1L << (i - 1);
+        long upper = 1L << i;
+        double fraction = (target - seen) / count;
+        return (long) ((lower + (upper - lower) * fraction) * 1000);
+      }
+      seen += count;
+    }
+    return (1L << (BUCKETS - 1)) * 1000;
+  }
+
+  private void maybeDecayHistogram() {
+    long now = System.nanoTime();
+    long last = lastDecayNanos.get();
+    if (now - last < HISTOGRAM_DECAY_NANOS || !lastDecayNanos.compareAndSet(last, now)) {
+      return;
+    }
+    for (int i = 0; i < BUCKETS; i++) {
+      LongAdder bucket = histogram[i];
+      long count = bucket.sumThenReset();
+      bucket.add(count >> 1);
+    }
+  }
+
+  /**
+   * 平均耗时(纳秒)
+   */
+  double latencyNanos() {
+    maybeFold();
+    return ewmaLatencyNanos;
+  }
+
+  /**
+   * 错误率,取值[0, 1]
+   */
+  double errorRate() {
+    maybeFold();
+    return ewmaErrorRate;
+  }
+
+  /**
+   * 综合耗时与错误率的评分,越小越好
+   */
+  double score() {
+    maybeFold();
+    return ewmaLatencyNanos * (1 + ERROR_PENALTY * ewmaErrorRate);
+  }
+
+  private void maybeFold() {
+    long now = System.nanoTime();
+    long last = lastFoldNanos.get();
+    long elapsed = now - last;
+    if (elapsed < FOLD_INTERVAL_NANOS || !lastFoldNanos.compareAndSet(last, now)) {
+      return;
+    }
+    long n = calls.sumThenReset();
+    long sum = totalNanos.sumThenReset();
+    long e = errors.sumThenReset();
+    double weight = 1 - Math.exp(-elapsed / DECAY_NANOS);
+    if (n == 0) {
+      //没有流量时向0衰减,使之前慢的节点有机会重新被选中
+      ewmaLatencyNanos -= ewmaLatencyNanos * weight;
+      ewmaErrorRate -= ewmaErrorRate * weight;
+      return;
+    }
+    double latency = (double) sum / n;
+    double errorRate = (double) e / n;
+    double oldLatency = ewmaLatencyNanos;
+    ewmaLatencyNanos = oldLatency == 0 ? latency : oldLatency + (latency - oldLatency) * weight;
+    ewmaErrorRate += (errorRate - ewmaErrorRate) * weight;
+  }
+}
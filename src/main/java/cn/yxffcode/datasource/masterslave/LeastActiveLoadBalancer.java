@@ -0,0 +1,35 @@
+package cn.yxffcode.datasource.masterslave;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 选择活跃连接数最少的从库,活跃连接数相同时随机选择其中一个
+ *
+ * @author gaohang
+ */
+final class LeastActiveLoadBalancer implements LoadBalancer {
+
+  @Override public DataSourceNode select(List<DataSourceNode> slaves) {
+    DataSourceNode selected = null;
+    int leastActive = Integer.MAX_VALUE;
+    int sameCount = 0;
+    for (int i = 0, size = slaves.size(); i < size; i++) {
+      DataSourceNode node = slaves.get(i);
+      if (!node.isAvailable()) {
+        continue;
+      }
+      int active = node.getActiveConnections();
+      if (active < leastActive) {
+        selected = node;
+        leastActive = active;
+        sameCount = 1;
+      } else if (active == leastActive
+          && ThreadLocalRandom.current().nextInt(++sameCount) == 0) {
+        //蓄水池抽样,使活跃数相同的从库被选中的概率相同
+        selected = node;
+      }
+    }
+    return selected;
+  }
+}
@@ -0,0 +1,51 @@
+package cn.yxffcode.datasource.masterslave;
+
+/**
+ * 内置的从库负载均衡策略
+ *
+ * @author gaohang
+ */
+public enum LoadBalanceStrategy {
+  /**
+   * 轮询
+   */
+  ROUND_ROBIN {
+    @Override public LoadBalancer create() {
+      return new RoundRobinLoadBalancer();
+    }
+  },
+  /**
+   * 按权重随机
+   */
+  WEIGHTED_RANDOM {
+    @Override public LoadBalancer create() {
+      return new WeightedRandomLoadBalancer();
+    }
+  },
+  /**
+   * 选择活跃连接数最少的从库
+   */
+  LEAST_ACTIVE {
+    @Override public LoadBalancer create() {
+      return new LeastActiveLoadBalancer();
+    }
+  },
+  /**
+   * 随机选两个从库,取活跃连接数较少的一个
+   */
+  POWER_OF_TWO_CHOICES {
+    @Override public LoadBalancer create() {
+      return new PowerOfTwoChoicesLoadBalancer();
+    }
+  },
+  /**
+   * 随机选两个从库,取根据实际执行耗时和错误率统计出的当前响应最快的一个
+   */
+  LATENCY_AWARE {
+    @Override public LoadBalancer create() {
+      return new LatencyAwareLoadBalancer();
+    }
+  };
+
+  public abstract LoadBalancer create();
+}
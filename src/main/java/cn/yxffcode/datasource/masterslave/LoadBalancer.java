@@ -0,0 +1,17 @@
+package cn.yxffcode.datasource.masterslave;
+
+import java.util.List;
+
+/**
+ * 从多个从库中选择一个处理读请求,实现必须是线程安全的
+ *
+ * @author gaohang
+ */
+public interface LoadBalancer {
+
+  /**
+   * @param slaves 所有从库,其中可能包含不可用的从库,不可用的从库不能被选中
+   * @return 被选中的从库,没有可用的从库时返回null
+   */
+  DataSourceNode select(List<DataSourceNode> slaves);
+}
@@ -1,43 +1,129 @@
 package cn.yxffcode.datasource.masterslave;
 
 import cn.yxffcode.datasource.AbstractConnection;
+import cn.yxffcode.datasource.SQLParser;
+import cn.yxffcode.datasource.masterslave.StatementCache.StatementKey;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import java.sql.Connection;
 import java.sql.DatabaseMetaData;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLClientInfoException;
 import java.sql.SQLException;
 import java.sql.SQLWarning;
 import java.sql.Statement;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Properties;
 
 /**
  * 实现读写分离的数据库连接,持有读连接和写连接
  * <p/>
  * 如果有写连接,则复用写连接,否则通过读写操作创建连接,总体策略上则表示在同一个连接上,
  * 如果先发生读,则使用从库,当有写发生后,读写都切到主库
+ * <p/>
+ * 如果设置了{@link ReplicationPositionTracker},自动提交模式下的写不会让连接一直停留在主库上:
+ * 写完成后记录复制位点,之后的读在从库应用到该位点之前使用主库,应用之后回到从库
+ * <p/>
+ * 标记为只读的连接(或处于spring的只读事务中)不再按语句类型路由,整个连接都使用同一个从库,
+ * 写语句按{@link ReadOnlyWritePolicy}处理
  *
  * @author gaohang on 16/2/26.
  */
 class MasterslaveConnection extends AbstractConnection {
   private static final Logger LOGGER = LoggerFactory.getLogger(MasterslaveConnection.class);
+  /**
+   * 一个逻辑连接上最多记录的set语句数,赋值相同变量的语句只记录最后一条
+   */
+  static final int MAX_SESSION_STATEMENTS = 64;
 
   private final MasterslaveDataSource groupDataSource;
+  /**
+   * 创建连接时的拓扑快照,拓扑变化后连接仍然使用原来的节点直到关闭
+   */
+  private final Topology topology;
 
+  private DataSourceNode readNode;
+  private DataSourceNode writeNode;
   private Connection readConnection;
   private Connection writeConnection;
   private List<MasterslaveStatement> openedStatements = new ArrayList<>(1);
+  /**
+   * 通过路由注释指定了从库分组,且当前读连接不在该分组中时使用的连接
+   */
+  private Map<String, Connection> groupConnections;
+  private Map<String, DataSourceNode> groupNodes;
+  private Map<String, String> groupTrafficClasses;
+
+  /**
+   * 通过client info在连接上指定的流量类别
+   */
+  private String trafficClass;
+  /**
+   * 取得读连接和写连接时使用的流量类别,归还时释放对应的配额
+   */
+  private String readTrafficClass;
+  private String writeTrafficClass;
+
+  /**
+   * 从库需要应用到的复制位点,为null表示读可以使用从库
+   */
+  private String pendingPosition;
+  /**
+   * 最近一次写之后的复制位点,读连接所在的从库应用之后仍然保留,对冲读换到的其它从库也需要应用到该位点
+   */
+  private String writtenPosition;
+  /**
+   * 写之后没有得到复制位点,读只能使用主库
+   */
+  private boolean pinned;
+  /**
+   * 通过{@link #setReadOnly(boolean)}标记为只读
+   */
+  private boolean readOnly;
+  /**
+   * 已经切换到主库,读连接不会再被使用,等其上打开的结果集关闭后提前归还
+   */
+  private boolean readRetired;
+  /**
+   * 读连接提前归还的时间,用于统计节省的持有时间,0表示没有提前归还
+   */
+  private long readReleasedNanos;
+  /**
+   * 已经取得的物理连接上的会话状态
+   */
+  private final Map<Connection, SessionState> sessions = new IdentityHashMap<>(4);
+  /**
+   * 逻辑连接上的会话状态有还没有同步到物理连接的修改,在下一次执行语句之前一起同步
+   */
+  private boolean sessionDirty;
+  private String schema;
+  private Properties clientInfo;
+  /**
+   * 已经取得的物理连接上的PreparedStatement缓存,物理连接归还时移除
+   */
+  private Map<Connection, StatementCache> statementCaches;
+  /**
+   * 执行过的set语句,按赋值的变量去重,在之后取得的物理连接上按执行顺序重放
+   */
+  private Map<String, String> sessionStatements;
 
   public MasterslaveConnection(MasterslaveDataSource groupDataSource) {
     this.groupDataSource = groupDataSource;
+    this.topology = groupDataSource.getTopology();
   }
 
   public MasterslaveConnection(MasterslaveDataSource groupDataSource, String username,
                                String password) {
     this.groupDataSource = groupDataSource;
+    this.topology = groupDataSource.getTopology();
     this.username = username;
     this.password = password;
   }
@@ -46,17 +132,232 @@ class MasterslaveConnection extends AbstractConnection {
     return writeConnection != null;
   }
 
+  DataSourceNode getReadNode() {
+    return readNode;
+  }
+
+  DataSourceNode getWriteNode() {
+    return writeNode;
+  }
+
+  /**
+   * 通过{@link #targetConnection(boolean)}得到的物理连接所属的数据源
+   */
+  DataSourceNode nodeOf(Connection connection) {
+    if (connection == writeConnection) {
+      return writeNode;
+    }
+    if (connection == readConnection || groupConnections == null) {
+      return readNode;
+    }
+    for (Map.Entry<String, Connection> entry : groupConnections.entrySet()) {
+      if (entry.getValue() == connection) {
+        return groupNodes.get(entry.getKey());
+      }
+    }
+    return readNode;
+  }
+
+  /**
+   * 路由注释强制使用从库时的连接,不受是否已经有写连接的影响
+   *
+   * @param group 从库分组,为null时使用当前的读连接
+   */
+  Connection slaveConnection(String group) throws SQLException {
+    if (group == null) {
+      if (readConnection == null) {
+        acquireReadConnection();
+      }
+      return synced(readConnection);
+    }
+    if (readConnection != null && groupDataSource.isInGroup(topology, readNode, group)) {
+      return synced(readConnection);
+    }
+    if (readConnection == null) {
+      recordReadHoldSaved();
+      readNode = groupDataSource.readNode(topology, group);
+      readTrafficClass = trafficClass(true);
+      readConnection = readNode.getConnection(readTrafficClass, sessionStatements);
+      return synced(readConnection);
+    }
+    if (groupConnections == null) {
+      groupConnections = new HashMap<>(2);
+      groupNodes = new HashMap<>(2);
+      groupTrafficClasses = new HashMap<>(2);
+    }
+    Connection connection = groupConnections.get(group);
+    if (connection == null) {
+      DataSourceNode node = groupDataSource.readNode(topology, group);
+      String nodeTrafficClass = trafficClass(true);
+      connection = node.getConnection(nodeTrafficClass, sessionStatements);
+      groupNodes.put(group, node);
+      groupTrafficClasses.put(group, nodeTrafficClass);
+      groupConnections.put(group, connection);
+    }
+    return synced(connection);
+  }
+
+  /**
+   * 取物理连接时使用的流量类别:连接上指定的类别优先,其次是当前线程上指定的类别
+   */
+  String trafficClass(boolean read) {
+    if (trafficClass != null) {
+      return trafficClass;
+    }
+    String current = TrafficClass.current();
+    if (current != null) {
+      return current;
+    }
+    return read ? TrafficClass.ONLINE_READ : TrafficClass.ONLINE_WRITE;
+  }
+
+  @Override public void setClientInfo(String name, String value) throws SQLClientInfoException {
+    if (TrafficClass.CLIENT_INFO_NAME.equals(name)) {
+      this.trafficClass = value;
+      return;
+    }
+    Properties properties = new Properties();
+    if (clientInfo != null) {
+      properties.putAll(clientInfo);
+    }
+    if (value == null) {
+      properties.remove(name);
+    } else {
+      properties.setProperty(name, value);
+    }
+    this.clientInfo = properties;
+    sessionDirty = true;
+  }
+
+  /**
+   * client info在下一次执行语句时通过一次调用同步到物理连接
+   */
+  @Override public void setClientInfo(Properties properties) throws SQLClientInfoException {
+    Properties copy = new Properties();
+    for (String name : properties.stringPropertyNames()) {
+      if (TrafficClass.CLIENT_INFO_NAME.equals(name)) {
+        this.trafficClass = properties.getProperty(name);
+      } else {
+        copy.setProperty(name, properties.getProperty(name));
+      }
+    }
+    this.clientInfo = copy;
+    sessionDirty = true;
+  }
+
+  @Override public String getClientInfo(String name) throws SQLException {
+    if (TrafficClass.CLIENT_INFO_NAME.equals(name)) {
+      return trafficClass;
+    }
+    return clientInfo == null ? null : clientInfo.getProperty(name);
+  }
+
+  @Override public Properties getClientInfo() throws SQLException {
+    Properties properties = new Properties();
+    if (clientInfo != null) {
+      properties.putAll(clientInfo);
+    }
+    if (trafficClass != null) {
+      properties.setProperty(TrafficClass.CLIENT_INFO_NAME, trafficClass);
+    }
+    return properties;
+  }
+
+  boolean isWriteConnection(Connection connection) {
+    return connection == writeConnection;
+  }
+
+  /**
+   * 写之后的读是否可以回到从库,只有自动提交模式并且设置了{@link ReplicationPositionTracker}时可以
+   */
+  boolean isUnpinEnabled() {
+    return isAutoCommit && groupDataSource.getPositionTracker() != null;
+  }
+
+  /**
+   * 连接被标记为只读,或当前线程处于spring的只读事务中
+   */
+  boolean isReadOnlyRouting() {
+    return readOnly || TransactionSynchronizationManager.isCurrentTransactionReadOnly();
+  }
+
+  ReadOnlyWritePolicy getReadOnlyWritePolicy() {
+    return groupDataSource.getReadOnlyWritePolicy();
+  }
+
+  /**
+   * 只读路由时使用的连接,在物理连接上设置只读,使驱动和数据库可以做只读优化;
+   * 标记只读之前已经有写连接时仍然使用写连接,保证能读到之前的写
+   */
+  Connection readOnlyConnection() throws SQLException {
+    if (writeConnection != null) {
+      return writeConnection;
+    }
+    if (readConnection == null) {
+      acquireReadConnection();
+    }
+    session(readConnection).setReadOnly(true);
+    return readConnection;
+  }
+
+  @Override public boolean isReadOnly() throws SQLException {
+    checkClosed();
+    return readOnly;
+  }
+
+  /**
+   * 只读连接上的语句都在同一个从库上执行,不再解析语句类型
+   */
+  @Override public void setReadOnly(boolean readOnly) throws SQLException {
+    checkClosed();
+    if (this.readOnly == readOnly) {
+      return;
+    }
+    this.readOnly = readOnly;
+    sessionDirty = true;
+  }
+
+  /**
+   * 写语句执行成功后调用,记录从库需要应用到的复制位点
+   */
+  void afterWrite() throws SQLException {
+    if (!isUnpinEnabled() || writeConnection == null) {
+      return;
+    }
+    String position = groupDataSource.getPositionTracker().currentPosition(writeConnection);
+    if (position == null) {
+      pinned = true;
+    } else {
+      pendingPosition = position;
+      writtenPosition = position;
+    }
+  }
+
+  String getWrittenPosition() {
+    return writtenPosition;
+  }
+
   public void setAutoCommit(boolean autoCommit0) throws SQLException {
     checkClosed();
     if (this.isAutoCommit == autoCommit0) {
       return;
     }
     this.isAutoCommit = autoCommit0;
+    //修改自动提交会提交当前事务,不能推迟
     if (this.writeConnection != null) {
-      this.writeConnection.setAutoCommit(autoCommit0);
+      session(writeConnection).setAutoCommit(autoCommit0);
     }
   }
 
+  @Override public void setTransactionIsolation(int transactionIsolation) throws SQLException {
+    checkClosed();
+    if (this.transactionIsolation == transactionIsolation) {
+      return;
+    }
+    this.transactionIsolation = transactionIsolation;
+    sessionDirty = true;
+  }
+
   public void commit() throws SQLException {
     checkClosed();
     if (isAutoCommit) {
@@ -92,9 +393,16 @@ class MasterslaveConnection extends AbstractConnection {
     }
   }
 
+  /**
+   * 重复关闭没有影响,物理连接和配额只归还一次
+   */
   @Override public void close() throws SQLException {
+    if (closed) {
+      return;
+    }
     this.closed = true;
     SQLException last = null;
+    recordReadHoldSaved();
     //先关闭所有的statement
     for (MasterslaveStatement statement : openedStatements) {
       if (!statement.isClosed()) {
@@ -105,15 +413,36 @@ class MasterslaveConnection extends AbstractConnection {
         }
       }
     }
-    for (Connection connection : Arrays.asList(writeConnection, readConnection)) {
-      if (connection != null) {
+    if (writeConnection != null) {
+      try {
+        dropStatementCache(writeConnection);
+        writeNode.release(writeConnection, writeTrafficClass);
+      } catch (SQLException e) {
+        last = e;
+      }
+      writeConnection = null;
+    }
+    if (readConnection != null) {
+      try {
+        releaseReadConnection();
+      } catch (SQLException e) {
+        last = e;
+      }
+      readConnection = null;
+    }
+    if (groupConnections != null) {
+      for (Map.Entry<String, Connection> entry : groupConnections.entrySet()) {
         try {
-          connection.close();
+          dropStatementCache(entry.getValue());
+          groupNodes.get(entry.getKey())
+              .release(entry.getValue(), groupTrafficClasses.get(entry.getKey()));
         } catch (SQLException e) {
           last = e;
         }
       }
+      groupConnections = null;
     }
+    sessions.clear();
     if (last != null) {
       throw last;
     }
@@ -142,13 +471,13 @@ class MasterslaveConnection extends AbstractConnection {
 
   @Override public Statement createStatement(int resultSetType, int resultSetConcurrency)
       throws SQLException {
-    return new MasterslaveStatement(this, resultSetType, resultSetConcurrency, 0);
+    return register(new MasterslaveStatement(this, resultSetType, resultSetConcurrency, 0));
   }
 
   @Override
   public PreparedStatement prepareStatement(String sql, int resultSetType, int resultSetConcurrency)
       throws SQLException {
-    return new PreparedMasterslaveStatement(this, resultSetType, resultSetConcurrency, 0, sql);
+    return register(new PreparedMasterslaveStatement(this, resultSetType, resultSetConcurrency, 0, sql));
   }
 
   public DatabaseMetaData getMetaData() throws SQLException {
@@ -158,9 +487,7 @@ class MasterslaveConnection extends AbstractConnection {
     } else if (writeConnection != null) {
       return writeConnection.getMetaData();
     } else {
-      writeConnection = groupDataSource.readConnection();
-      normalizeConnection();
-      return writeConnection.getMetaData();
+      return targetConnection(true).getMetaData();
     }
   }
 
@@ -174,73 +501,482 @@ class MasterslaveConnection extends AbstractConnection {
       return;
     }
     this.catalog = catalog;
-    if (readConnection != null) {
-      readConnection.setCatalog(catalog);
-    }
-    if (writeConnection != null) {
-      writeConnection.setCatalog(catalog);
+    sessionDirty = true;
+  }
+
+  @Override public String getSchema() throws SQLException {
+    checkClosed();
+    return schema;
+  }
+
+  @Override public void setSchema(String schema) throws SQLException {
+    checkClosed();
+    if (schema.equals(this.schema)) {
+      return;
     }
+    this.schema = schema;
+    sessionDirty = true;
   }
 
   @Override public Statement createStatement() throws SQLException {
-    return new MasterslaveStatement(this);
+    return register(new MasterslaveStatement(this));
   }
 
   @Override public PreparedStatement prepareStatement(String sql) throws SQLException {
-    return new PreparedMasterslaveStatement(this, sql);
+    return register(new PreparedMasterslaveStatement(this, sql));
   }
 
   @Override public Statement createStatement(int resultSetType, int resultSetConcurrency,
                                              int resultSetHoldability) throws SQLException {
-    return new MasterslaveStatement(this, resultSetType, resultSetConcurrency,
-        resultSetHoldability);
+    return register(new MasterslaveStatement(this, resultSetType, resultSetConcurrency,
+        resultSetHoldability));
   }
 
   @Override
   public PreparedStatement prepareStatement(String sql, int resultSetType, int resultSetConcurrency,
                                             int resultSetHoldability) throws SQLException {
-    return new PreparedMasterslaveStatement(this, resultSetType, resultSetConcurrency,
-        resultSetHoldability, sql);
+    return register(new PreparedMasterslaveStatement(this, resultSetType, resultSetConcurrency,
+        resultSetHoldability, sql));
   }
 
   @Override public PreparedStatement prepareStatement(String sql, int autoGeneratedKeys)
       throws SQLException {
-    return new PreparedMasterslaveStatement(this, autoGeneratedKeys, sql);
+    return register(new PreparedMasterslaveStatement(this, autoGeneratedKeys, sql));
   }
 
   @Override public PreparedStatement prepareStatement(String sql, int[] columnIndexes)
       throws SQLException {
-    return new PreparedMasterslaveStatement(this, sql, columnIndexes);
+    return register(new PreparedMasterslaveStatement(this, sql, columnIndexes));
   }
 
   @Override public PreparedStatement prepareStatement(String sql, String[] columnNames)
       throws SQLException {
-    return new PreparedMasterslaveStatement(this, sql, columnNames);
+    return register(new PreparedMasterslaveStatement(this, sql, columnNames));
   }
 
   Connection targetConnection(boolean read) throws SQLException {
     if (writeConnection != null) {
-      return writeConnection;
+      if (!read || !isUnpinEnabled() || pinned || !slaveCaughtUp()) {
+        return writeConnection;
+      }
     }
     if (read && readConnection == null) {
-      readConnection = groupDataSource.readConnection();
+      acquireReadConnection();
     } else if (!read && writeConnection == null) {
-      writeConnection = groupDataSource.writeConnection();
-      normalizeConnection();
+      writeNode = groupDataSource.writeNode(topology);
+      writeTrafficClass = trafficClass(false);
+      writeConnection = writeNode.getConnection(writeTrafficClass, sessionStatements);
+      if (readConnection != null && !isUnpinEnabled()) {
+        //之后的读都在写连接上,读连接不会再被使用
+        readRetired = true;
+        releaseRetiredReadConnection();
+      }
+    }
+    return synced(read ? readConnection : writeConnection);
+  }
+
+  private <T extends MasterslaveStatement> T register(T statement) {
+    openedStatements.add(statement);
+    return statement;
+  }
+
+  /**
+   * 自动提交模式下是否每条读语句结束后就归还读连接
+   */
+  private boolean isStatementScopedRead() {
+    return isAutoCommit && !readOnly && groupDataSource.isStatementScopedReads();
+  }
+
+  /**
+   * 读语句执行完成后调用,按语句借用读连接时,在结果集关闭后归还读连接
+   */
+  void afterRead() {
+    if (readConnection != null && isStatementScopedRead()) {
+      readRetired = true;
+      releaseRetiredReadConnection();
+    }
+  }
+
+  /**
+   * 按语句借用读连接时,包装读连接上的结果集,结果集关闭时归还读连接;
+   * 对冲读胜出时包装对冲请求的结果集,关闭时归还对冲请求的连接
+   *
+   * @param connection 创建Statement时使用的物理连接,内置连接池中的连接上创建的Statement
+   *                   的getConnection()返回的不是这个连接
+   */
+  ResultSet wrapResultSet(MasterslaveStatement statement, Connection connection,
+                          ResultSet resultSet) {
+    if (!isStatementScopedRead()) {
+      return resultSet;
+    }
+    ReadHedger.HedgedRead hedge = statement.getWonHedge();
+    if (hedge != null) {
+      return ReadResultSetHandler.wrap(this, resultSet, statement, hedge);
+    }
+    if (readConnection == null || connection != readConnection) {
+      return resultSet;
+    }
+    return ReadResultSetHandler.wrap(this, resultSet);
+  }
+
+  /**
+   * Statement关闭时调用
+   */
+  void statementClosed(MasterslaveStatement statement) {
+    if (closed) {
+      return;
+    }
+    openedStatements.remove(statement);
+    releaseRetiredReadConnection();
+  }
+
+  /**
+   * 读连接已经不会再被使用时,在其上没有打开的结果集后提前归还,不再占用从库连接池
+   */
+  void releaseRetiredReadConnection() {
+    if (closed || !readRetired || readConnection == null) {
+      return;
+    }
+    try {
+      for (int i = 0, size = openedStatements.size(); i < size; i++) {
+        if (openedStatements.get(i).hasOpenResultSet(readConnection)) {
+          return;
+        }
+      }
+    } catch (SQLException e) {
+      //无法确定结果集是否已经关闭,等连接关闭时再归还
+      LOGGER.debug("check open result set failed", e);
+      return;
+    }
+    try {
+      for (int i = 0, size = openedStatements.size(); i < size; i++) {
+        openedStatements.get(i).closeStatementsOn(readConnection);
+      }
+      releaseReadConnection();
+    } catch (SQLException e) {
+      LOGGER.debug("release retired read connection failed", e);
+    }
+    readConnection = null;
+    readRetired = false;
+    readReleasedNanos = System.nanoTime();
+  }
+
+  /**
+   * 统计提前归还的读连接少占用的时间,到连接关闭或重新获取读连接为止
+   */
+  private void recordReadHoldSaved() {
+    if (readReleasedNanos != 0) {
+      groupDataSource.recordReadHoldSaved(System.nanoTime() - readReleasedNanos);
+      readReleasedNanos = 0;
     }
-    return read ? readConnection : writeConnection;
   }
 
-  private void normalizeConnection() throws SQLException {
-    if (!isAutoCommit) {
-      writeConnection.setAutoCommit(false);
+  private void releaseReadConnection() throws SQLException {
+    SessionState session = sessions.remove(readConnection);
+    if (session != null) {
+      session.setReadOnly(false);
     }
-    if (transactionIsolation != -1) {
-      writeConnection.setTransactionIsolation(transactionIsolation);
+    dropStatementCache(readConnection);
+    readNode.release(readConnection, readTrafficClass);
+  }
+
+  MasterslaveDataSource getGroupDataSource() {
+    return groupDataSource;
+  }
+
+  Topology getTopology() {
+    return topology;
+  }
+
+  /**
+   * 读连接出现连接级别的错误后,丢弃它并在另一个从库上重新获取读连接,没有其它可用的从库时使用写库;
+   * 其它Statement在该连接上的物理Statement先关闭,之后在新的读连接上重新创建
+   */
+  void switchReadConnection() throws SQLException {
+    DataSourceNode failed = readNode;
+    if (readConnection != null) {
+      for (int i = 0, size = openedStatements.size(); i < size; i++) {
+        try {
+          openedStatements.get(i).closeStatementsOn(readConnection);
+        } catch (SQLException e) {
+          LOGGER.debug("close statement on broken read connection failed", e);
+        }
+      }
+      try {
+        dropStatementCache(readConnection);
+        readNode.release(readConnection, readTrafficClass);
+      } catch (SQLException e) {
+        LOGGER.debug("close broken read connection failed", e);
+      }
+      sessions.remove(readConnection);
+      readConnection = null;
+    }
+    readNode = groupDataSource.readNode(topology, failed);
+    readTrafficClass = trafficClass(true);
+    readConnection = readNode.getConnection(readTrafficClass, sessionStatements);
+  }
+
+  private void acquireReadConnection() throws SQLException {
+    recordReadHoldSaved();
+    readNode = groupDataSource.readNode(topology);
+    if (readNode.isSaturated()) {
+      //并发达到上限时优先换一个从库,都达到上限时在原来的从库上短暂排队
+      DataSourceNode other = groupDataSource.otherSlave(topology, readNode);
+      if (other != null && !other.isSaturated()) {
+        readNode = other;
+      }
+    }
+    readTrafficClass = trafficClass(true);
+    try {
+      readConnection = readNode.getConnection(readTrafficClass, sessionStatements);
+    } catch (CircuitBreakerOpenException e) {
+      //选中之后熔断器的试探许可被其它线程用完了,改用写库
+      readNode = groupDataSource.writeNode(topology);
+      readConnection = readNode.getConnection(readTrafficClass, sessionStatements);
+    }
+  }
+
+  /**
+   * 从库是否已经应用了之前的写
+   */
+  private boolean slaveCaughtUp() throws SQLException {
+    if (pendingPosition == null) {
+      return true;
+    }
+    if (readConnection == null) {
+      acquireReadConnection();
+    }
+    if (readNode == writeNode) {
+      //没有可用的从库,读本身就在主库上
+      pendingPosition = null;
+      return true;
+    }
+    try {
+      if (!groupDataSource.getPositionTracker().hasApplied(readConnection, pendingPosition)) {
+        return false;
+      }
+    } catch (SQLException e) {
+      LOGGER.warn("check replication position failed, read from master", e);
+      return false;
+    }
+    pendingPosition = null;
+    return true;
+  }
+
+  /**
+   * 从物理连接的缓存中取出PreparedStatement,没有缓存时返回null
+   */
+  PreparedStatement cachedStatement(Connection connection, StatementKey key) {
+    StatementCache cache = statementCache(connection);
+    if (cache == null) {
+      return null;
     }
-    if (catalog != null) {
-      writeConnection.setCatalog(catalog);
+    PreparedStatement statement = cache.take(key);
+    groupDataSource.recordStatementCacheLookup(statement != null);
+    return statement;
+  }
+
+  /**
+   * 把不再使用的PreparedStatement放回物理连接的缓存
+   *
+   * @return 是否由缓存接管,物理连接已经归还或不缓存时返回false,需要调用方关闭
+   */
+  boolean cacheStatement(Connection connection, StatementKey key, PreparedStatement statement) {
+    StatementCache cache = statementCaches == null ? null : statementCaches.get(connection);
+    if (cache == null) {
+      return false;
+    }
+    cache.put(key, statement);
+    return true;
+  }
+
+  private StatementCache statementCache(Connection connection) {
+    int size = groupDataSource.getStatementCacheSize();
+    if (size <= 0) {
+      return null;
+    }
+    if (statementCaches == null) {
+      statementCaches = new IdentityHashMap<>(4);
+    }
+    StatementCache cache = statementCaches.get(connection);
+    if (cache == null) {
+      cache = nodeOf(connection).statementCache(connection, size,
+          groupDataSource.getStatementCacheEvictionCounter());
+      statementCaches.put(connection, cache);
+    }
+    return cache;
+  }
+
+  /**
+   * 物理连接归还之前调用,之后放回的Statement直接关闭;内置连接池的缓存随连接保留
+   */
+  private void dropStatementCache(Connection connection) {
+    if (statementCaches == null) {
+      return;
+    }
+    StatementCache cache = statementCaches.remove(connection);
+    if (cache != null && !cache.isPooled()) {
+      cache.close();
+    }
+  }
+
+  /**
+   * 物理连接第一次被使用时,把逻辑连接上已经设置的会话状态同步到物理连接
+   */
+  private Connection synced(Connection connection) throws SQLException {
+    if (!sessions.containsKey(connection)) {
+      session(connection);
+    }
+    return connection;
+  }
+
+  private SessionState session(Connection connection) throws SQLException {
+    SessionState session = sessions.get(connection);
+    if (session == null) {
+      session = new SessionState(connection);
+      sessions.put(connection, session);
+      syncSession(session);
+      if (sessionStatements != null) {
+        //内置连接池中的连接上可能已经执行过相同的语句
+        Map<String, String> applied = nodeOf(connection).appliedSessionStatements(connection);
+        for (Map.Entry<String, String> entry : sessionStatements.entrySet()) {
+          if (applied == null || !entry.getValue().equals(applied.get(entry.getKey()))) {
+            runSessionStatement(connection, entry.getKey(), entry.getValue());
+          }
+        }
+      }
+    }
+    return session;
+  }
+
+  /**
+   * 执行set语句:在已经取得的所有物理连接上执行,并记录下来在之后取得的物理连接上重放,
+   * 使主库和从库连接上的会话变量一致。还没有物理连接时先取得读连接,尽早发现语句中的错误
+   * <p/>
+   * 赋值相同变量的语句只重放最后一条,记录的语句超过{@link #MAX_SESSION_STATEMENTS}时抛出异常,
+   * 避免不断设置新的用户变量时无限增长;事务相关的set语句转成JDBC调用,
+   * 见{@link #applyTransactionStatement(String)}
+   */
+  void executeSessionStatement(String sql) throws SQLException {
+    checkClosed();
+    if (applyTransactionStatement(sql)) {
+      return;
+    }
+    String variables = SQLParser.getSetVariables(sql);
+    String key = variables != null ? variables : sql;
+    if (sessionStatements != null && sessionStatements.size() >= MAX_SESSION_STATEMENTS
+        && !sessionStatements.containsKey(key)) {
+      throw new SQLException("too many session variables set on the connection, max "
+          + MAX_SESSION_STATEMENTS + ": " + sql);
+    }
+    if (sessions.isEmpty()) {
+      targetConnection(true);
+    }
+    for (Connection connection : sessions.keySet()) {
+      runSessionStatement(connection, key, sql);
+    }
+    if (sessionStatements == null) {
+      sessionStatements = new LinkedHashMap<>(4);
+    }
+    //移到最后,保持和执行顺序一致
+    sessionStatements.remove(key);
+    sessionStatements.put(key, sql);
+  }
+
+  /**
+   * @param key 语句赋值的变量,内置连接池中的连接归还时保留执行过的语句,不需要重置
+   */
+  private void runSessionStatement(Connection connection, String key, String sql)
+      throws SQLException {
+    Statement statement = connection.createStatement();
+    try {
+      statement.execute(sql);
+    } finally {
+      statement.close();
+    }
+    nodeOf(connection).sessionApplied(connection, key, sql);
+  }
+
+  /**
+   * 给autocommit、隔离级别等事务相关变量赋值的set语句转成对应的JDBC调用;原样执行会绕过逻辑连接,
+   * 逻辑连接仍然按自动提交处理,读写分离和按语句借用读连接在服务端的事务中继续生效
+   *
+   * @return 是否是事务相关的set语句
+   * @throws SQLException 事务相关的set语句无法转换,例如只对下一个事务生效的set transaction、
+   *                      设置事务访问模式或值是占位符
+   */
+  boolean applyTransactionStatement(String sql) throws SQLException {
+    String variables = SQLParser.getSetVariables(sql);
+    if (variables == null || !isTransactionVariable(variables)) {
+      return false;
+    }
+    if (variables.equals("autocommit")) {
+      Boolean autoCommit = SQLParser.getAutoCommitValue(sql);
+      if (autoCommit != null) {
+        setAutoCommit(autoCommit);
+        return true;
+      }
+    } else if (variables.equals("transaction") || variables.equals("tx_isolation")
+        || variables.equals("transaction_isolation")) {
+      int level = SQLParser.getIsolationLevel(sql);
+      if (level != -1) {
+        setTransactionIsolation(level);
+        return true;
+      }
+    }
+    throw new SQLException("unsupported transaction setting, use setAutoCommit, "
+        + "setTransactionIsolation or setReadOnly instead: " + sql);
+  }
+
+  private static boolean isTransactionVariable(String variables) {
+    for (String variable : variables.split(",")) {
+      switch (variable) {
+        case "autocommit":
+        case "transaction":
+        case "tx_isolation":
+        case "transaction_isolation":
+        case "tx_read_only":
+        case "transaction_read_only":
+          return true;
+        default:
+          break;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * 在物理连接上执行了修改会话变量的语句,内置连接池中的连接归还时需要重置
+   */
+  void sessionModified(Connection connection) {
+    nodeOf(connection).sessionModified(connection);
+  }
+
+  /**
+   * 执行语句之前调用,把逻辑连接上累积的会话状态修改一起同步到已经取得的物理连接
+   */
+  void flushSession() throws SQLException {
+    if (!sessionDirty) {
+      return;
+    }
+    for (SessionState session : sessions.values()) {
+      syncSession(session);
+    }
+    sessionDirty = false;
+  }
+
+  /**
+   * 只发送物理连接上与逻辑连接不同的会话状态,事务相关的状态只同步到写连接
+   */
+  private void syncSession(SessionState session) throws SQLException {
+    if (session.getConnection() == writeConnection) {
+      session.setAutoCommit(isAutoCommit);
+      session.setTransactionIsolation(transactionIsolation);
+      session.setReadOnly(readOnly && getReadOnlyWritePolicy() == ReadOnlyWritePolicy.REJECT);
     }
+    session.setCatalog(catalog);
+    session.setSchema(schema);
+    session.setClientInfo(clientInfo);
   }
 
 }
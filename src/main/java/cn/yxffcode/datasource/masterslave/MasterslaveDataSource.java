@@ -5,47 +5,141 @@ import org.springframework.jdbc.datasource.AbstractDataSource;
 import javax.sql.DataSource;
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.google.common.base.Preconditions.checkNotNull;
 
 /**
- * 支持读写分离的DataSource,适用于一主一从场景
+ * 支持读写分离的DataSource,适用于一主多从场景,读请求通过{@link LoadBalancer}分配到从库
+ * <p/>
+ * 主从节点保存在不可变的{@link Topology}快照中,运行时可以整体替换
  *
  * @author gaohang on 16/2/26.
  */
 class MasterslaveDataSource extends AbstractDataSource {
 
-  private DataSource master;
-  private DataSource slave;
+  /**
+   * 当前的拓扑快照,拓扑变化时整体替换
+   */
+  private volatile Topology topology;
+  private LoadBalancer loadBalancer = new RoundRobinLoadBalancer();
   private boolean slaveWritable;
+  /**
+   * 设置后自动提交模式下写之后的读在从库追上之后可以回到从库
+   */
+  private ReplicationPositionTracker positionTracker;
+  /**
+   * 读在连接级别的错误后最多重试的次数,0表示不重试
+   */
+  private int readRetries;
+  private RetryBudget retryBudget = new RetryBudget(0.1, 10);
+  /**
+   * 为null表示不使用对冲读
+   */
+  private ReadHedger readHedger;
+  private ReadOnlyWritePolicy readOnlyWritePolicy = ReadOnlyWritePolicy.REJECT;
+  /**
+   * 自动提交模式下读连接只在一条语句及其结果集的范围内借用
+   */
+  private boolean statementScopedReads;
+  /**
+   * 切换到主库后提前归还读连接的次数,以及因此少占用从库连接的总时间
+   */
+  private final LongAdder earlyReadReleases = new LongAdder();
+  private final LongAdder readHoldNanosSaved = new LongAdder();
+  /**
+   * 每个物理连接缓存的PreparedStatement数,0表示不缓存
+   */
+  private int statementCacheSize;
+  private final LongAdder statementCacheHits = new LongAdder();
+  private final LongAdder statementCacheMisses = new LongAdder();
+  private final LongAdder statementCacheEvictions = new LongAdder();
+  /**
+   * 批量执行的insert ... values (...)是否改写成多行insert,以及改写后一条语句的大致字节数上限
+   */
+  private boolean rewriteBatchedInserts;
+  private long maxBatchPacketSize = 4 * 1024 * 1024;
 
-  private volatile boolean masterAvailable = true;
-  private volatile boolean slaveAvailable = true;
-
-  Connection readConnection() throws SQLException {
-    if (slave == null || !slaveAvailable) {
-      return writeConnection();
+  /**
+   * 选择处理读请求的数据源,没有可用的从库时使用写库
+   */
+  DataSourceNode readNode(Topology topology) {
+    DataSourceNode slave = loadBalancer.select(topology.getSlaves());
+    if (slave == null) {
+      return writeNode(topology);
     }
-    return slave.getConnection();
+    return slave;
   }
 
-  Connection readConnection(String username, String password) throws SQLException {
-    if (slave == null || !slaveAvailable) {
-      return writeConnection(username, password);
+  /**
+   * 选择指定分组中的从库
+   *
+   * @throws SQLException 分组不存在或分组中没有可用的从库
+   */
+  DataSourceNode readNode(Topology topology, String group) throws SQLException {
+    List<DataSourceNode> nodes = topology.getSlaveGroups().get(group);
+    if (nodes == null) {
+      throw new SQLException("slave group not found:" + group);
     }
-    return slave.getConnection(username, password);
+    DataSourceNode node = loadBalancer.select(nodes);
+    if (node == null) {
+      throw new SQLException("no available slave in group:" + group);
+    }
+    return node;
   }
 
-  Connection writeConnection() throws SQLException {
-    if (!masterAvailable && slaveWritable && slaveAvailable) {
-      return slave.getConnection();
+  boolean isInGroup(Topology topology, DataSourceNode node, String group) {
+    List<DataSourceNode> nodes = topology.getSlaveGroups().get(group);
+    return nodes != null && nodes.contains(node);
+  }
+
+  /**
+   * 选择一个不同于failed的数据源处理读请求,没有其它可用的从库时使用写库
+   */
+  DataSourceNode readNode(Topology topology, DataSourceNode failed) {
+    DataSourceNode slave = otherSlave(topology, failed);
+    return slave != null ? slave : writeNode(topology);
+  }
+
+  /**
+   * 选择一个不同于excluded的可用从库,没有时返回null
+   * <p/>
+   * 负载均衡在去掉excluded的从库列表上选择,最少活跃、P2C等确定性的策略会一直选中excluded,
+   * 不能靠重复选择避开
+   */
+  DataSourceNode otherSlave(Topology topology, DataSourceNode excluded) {
+    List<DataSourceNode> slaves = topology.getSlaves();
+    int index = slaves.indexOf(excluded);
+    if (index < 0) {
+      return loadBalancer.select(slaves);
     }
-    return master.getConnection();
+    List<DataSourceNode> others = new ArrayList<>(slaves.size() - 1);
+    others.addAll(slaves.subList(0, index));
+    others.addAll(slaves.subList(index + 1, slaves.size()));
+    return loadBalancer.select(others);
   }
 
-  Connection writeConnection(String username, String password) throws SQLException {
-    if (!masterAvailable && slaveWritable && slaveAvailable) {
-      return slave.getConnection();
+  /**
+   * 选择处理写请求的数据源,master不可用且从库可写时使用从库
+   */
+  DataSourceNode writeNode(Topology topology) {
+    DataSourceNode master = topology.getMaster();
+    if (!master.isAvailable() && slaveWritable) {
+      DataSourceNode slave = loadBalancer.select(topology.getSlaves());
+      if (slave != null) {
+        return slave;
+      }
     }
-    return master.getConnection(username, password);
+    return master;
+  }
+
+  /**
+   * 在当前拓扑中查找DataSource对应的节点,没有找到时返回null
+   */
+  DataSourceNode nodeOf(DataSource dataSource) {
+    return topology.nodeOf(dataSource);
   }
 
   @Override public Connection getConnection() throws SQLException {
@@ -56,36 +150,161 @@ class MasterslaveDataSource extends AbstractDataSource {
     return new MasterslaveConnection(this, username, password);
   }
 
-  public DataSource getMaster() {
-    return master;
+  Topology getTopology() {
+    return topology;
   }
 
-  public void setMaster(DataSource master) {
-    this.master = master;
+  /**
+   * 发布新的拓扑,之后创建的连接使用新的拓扑,已经创建的连接仍然使用原来的节点
+   */
+  void setTopology(Topology topology) {
+    checkNotNull(topology);
+    this.topology = topology;
   }
 
-  public DataSource getSlave() {
-    return slave;
+  public DataSourceNode getMaster() {
+    return topology.getMaster();
   }
 
-  public void setSlave(DataSource slave) {
-    this.slave = slave;
+  public List<DataSourceNode> getSlaves() {
+    return topology.getSlaves();
   }
 
-  public boolean isMasterAvailable() {
-    return masterAvailable;
+  public LoadBalancer getLoadBalancer() {
+    return loadBalancer;
   }
 
-  public void setMasterAvailable(boolean masterAvailable) {
-    this.masterAvailable = masterAvailable;
+  public void setLoadBalancer(LoadBalancer loadBalancer) {
+    checkNotNull(loadBalancer);
+    this.loadBalancer = loadBalancer;
   }
 
+  public boolean isMasterAvailable() {
+    return topology.getMaster().isAvailable();
+  }
+
+  /**
+   * 是否至少有一个从库可用
+   */
   public boolean isSlaveAvailable() {
-    return slaveAvailable;
+    List<DataSourceNode> slaves = topology.getSlaves();
+    for (int i = 0, size = slaves.size(); i < size; i++) {
+      if (slaves.get(i).isAvailable()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  public ReplicationPositionTracker getPositionTracker() {
+    return positionTracker;
+  }
+
+  public void setPositionTracker(ReplicationPositionTracker positionTracker) {
+    this.positionTracker = positionTracker;
+  }
+
+  public int getReadRetries() {
+    return readRetries;
+  }
+
+  public void setReadRetries(int readRetries) {
+    this.readRetries = readRetries;
+  }
+
+  RetryBudget getRetryBudget() {
+    return retryBudget;
+  }
+
+  void setRetryBudget(RetryBudget retryBudget) {
+    checkNotNull(retryBudget);
+    this.retryBudget = retryBudget;
+  }
+
+  ReadHedger getReadHedger() {
+    return readHedger;
+  }
+
+  void setReadHedger(ReadHedger readHedger) {
+    this.readHedger = readHedger;
+  }
+
+  public ReadOnlyWritePolicy getReadOnlyWritePolicy() {
+    return readOnlyWritePolicy;
+  }
+
+  public void setReadOnlyWritePolicy(ReadOnlyWritePolicy readOnlyWritePolicy) {
+    checkNotNull(readOnlyWritePolicy);
+    this.readOnlyWritePolicy = readOnlyWritePolicy;
+  }
+
+  void recordReadHoldSaved(long nanos) {
+    earlyReadReleases.increment();
+    readHoldNanosSaved.add(nanos);
+  }
+
+  public long getEarlyReadReleases() {
+    return earlyReadReleases.sum();
+  }
+
+  public long getReadHoldNanosSaved() {
+    return readHoldNanosSaved.sum();
+  }
+
+  void recordStatementCacheLookup(boolean hit) {
+    if (hit) {
+      statementCacheHits.increment();
+    } else {
+      statementCacheMisses.increment();
+    }
+  }
+
+  LongAdder getStatementCacheEvictionCounter() {
+    return statementCacheEvictions;
+  }
+
+  public long getStatementCacheHits() {
+    return statementCacheHits.sum();
+  }
+
+  public long getStatementCacheMisses() {
+    return statementCacheMisses.sum();
+  }
+
+  public long getStatementCacheEvictions() {
+    return statementCacheEvictions.sum();
+  }
+
+  public int getStatementCacheSize() {
+    return statementCacheSize;
+  }
+
+  public void setStatementCacheSize(int statementCacheSize) {
+    this.statementCacheSize = statementCacheSize;
+  }
+
+  public boolean isRewriteBatchedInserts() {
+    return rewriteBatchedInserts;
+  }
+
+  public void setRewriteBatchedInserts(boolean rewriteBatchedInserts) {
+    this.rewriteBatchedInserts = rewriteBatchedInserts;
+  }
+
+  public long getMaxBatchPacketSize() {
+    return maxBatchPacketSize;
+  }
+
+  public void setMaxBatchPacketSize(long maxBatchPacketSize) {
+    this.maxBatchPacketSize = maxBatchPacketSize;
+  }
+
+  public boolean isStatementScopedReads() {
+    return statementScopedReads;
   }
 
-  public void setSlaveAvailable(boolean slaveAvailable) {
-    this.slaveAvailable = slaveAvailable;
+  public void setStatementScopedReads(boolean statementScopedReads) {
+    this.statementScopedReads = statementScopedReads;
   }
 
   public boolean isSlaveWritable() {
@@ -1,21 +1,52 @@
 package cn.yxffcode.datasource.masterslave;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.FactoryBean;
 import org.springframework.beans.factory.InitializingBean;
 
 import javax.sql.DataSource;
+import java.io.File;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 /**
  * @author gaohang on 16/3/1.
  */
-public class MasterslaveDataSourceFactoryBean implements FactoryBean<DataSource>, InitializingBean {
+public class MasterslaveDataSourceFactoryBean
+    implements FactoryBean<DataSource>, InitializingBean, DisposableBean {
+  private static final Logger LOGGER =
+      LoggerFactory.getLogger(MasterslaveDataSourceFactoryBean.class);
 
   private MasterslaveDataSource masterslaveDataSource;
 
   private DataSource master;
-  private DataSource slave;
+  private List<DataSource> slaves = new ArrayList<>();
+  /**
+   * 与slaves一一对应的权重,不设置时所有从库的权重为1
+   */
+  private List<Integer> slaveWeights;
+  /**
+   * 从库分组,SQL中通过{@code /*+ slave:分组名 *}{@code /}指定使用某个分组中的从库;
+   * 分组中的数据源如果不在slaves中,则只处理指定了该分组的请求
+   */
+  private Map<String, List<DataSource>> slaveGroups = Collections.emptyMap();
+  private LoadBalanceStrategy loadBalanceStrategy = LoadBalanceStrategy.ROUND_ROBIN;
+  /**
+   * 自定义的负载均衡实现,设置后loadBalanceStrategy不再生效
+   */
+  private LoadBalancer loadBalancer;
   private long initialDelay = 15 * 1000;
   private long monitorPeriod = 15 * 1000;
   private int recheckTimes = 3;
@@ -24,43 +55,428 @@ public class MasterslaveDataSourceFactoryBean implements FactoryBean<DataSource>
   private String detectSql = "select 1";
   private boolean healthcheck;
   private boolean slaveWritable;
+  /**
+   * 设置后定时检测从库的复制延迟,延迟超过maxReplicationLag的从库不再接收读请求
+   */
+  private ReplicationLagProbe replicationLagProbe;
+  private long maxReplicationLag = 5 * 1000;
+  private long lagCheckPeriod = 1000;
+  /**
+   * 设置后,自动提交模式下写之后的读在从库应用了该写之后回到从库,而不是一直使用主库
+   */
+  private ReplicationPositionTracker replicationPositionTracker;
+  /**
+   * 设置后每个物理数据源使用独立的熔断器,根据实际请求的错误率和超时率熔断
+   */
+  private CircuitBreakerConfig circuitBreaker;
+  /**
+   * 设置后每个物理数据源使用独立的自适应并发限制,并发达到上限的从库不再接收新的读请求
+   */
+  private ConcurrencyLimitConfig concurrencyLimit;
+  /**
+   * 流量类别在每个数据源上的配额,见{@link TrafficClass};没有配置的类别不受限制
+   */
+  private Map<String, TrafficClassQuota> trafficClassQuotas = Collections.emptyMap();
+  /**
+   * 设置后使用内置的连接池,master和slaves可以直接配置不带连接池的DataSource
+   */
+  private PoolConfig pool;
+  /**
+   * 读在连接级别的错误后最多在其它从库上重试的次数,没有其它可用的从库时在master上重试
+   */
+  private int readRetries;
+  /**
+   * 每秒允许的重试次数占读请求数的比例
+   */
+  private double retryBudgetRatio = 0.1;
+  /**
+   * 每秒至少允许的重试次数
+   */
+  private int minRetriesPerSecond = 10;
+  /**
+   * 是否开启对冲读:读语句超过hedgeDelay毫秒没有返回时,在另一个从库上执行同一条语句,先返回的胜出
+   */
+  private boolean hedgeReads;
+  /**
+   * 为0时使用原始请求所在从库的hedgePercentile分位耗时
+   */
+  private long hedgeDelay;
+  private double hedgePercentile = 0.95;
+  /**
+   * 对冲请求数占读请求数的最大比例
+   */
+  private double hedgeBudgetRatio = 0.05;
+  /**
+   * JDK不支持虚拟线程时,执行对冲请求的线程数
+   */
+  private int hedgeThreads = 16;
+  /**
+   * 拓扑文件路径,设置后主从组由文件定义,文件修改后自动重新加载
+   */
+  private String topologyFile;
+  private long topologyCheckPeriod = 5 * 1000;
+  /**
+   * 根据拓扑文件中的配置创建数据源
+   */
+  private DataSourceCreator dataSourceCreator;
+  /**
+   * 拓扑变化后等待被移除的数据源上的连接归还的最长时间
+   */
+  private long drainTimeout = 30 * 1000;
 
-  @Override public DataSource getObject() throws Exception {
-    masterslaveDataSource = new MasterslaveDataSource();
-    masterslaveDataSource.setMaster(master);
-    if (slave == null) {
-      masterslaveDataSource.setSlaveAvailable(false);
-    } else {
-      masterslaveDataSource.setSlave(slave);
-      masterslaveDataSource.setSlaveWritable(slaveWritable);
-    }
-    if (healthcheck) {
-      ConcurrentDataSourceHealthChecker healthchecker =
-          new ConcurrentDataSourceHealthChecker() {
-            @Override protected void onAvailable(DataSource dataSource) {
-              if (dataSource == master) {
-                masterslaveDataSource.setMasterAvailable(true);
-              } else {
-                masterslaveDataSource.setSlaveAvailable(true);
-              }
+  /**
+   * 启动时在每个数据源上预先打开的连接数,0表示不预热
+   */
+  private int warmupConnections;
+  /**
+   * 预热时预处理的热点SQL,按读写分离的规则在对应的数据源上预处理
+   */
+  private List<String> warmupSqls = Collections.emptyList();
+  /**
+   * 预热的最长时间,超过后不再等待,数据源照常提供服务
+   */
+  private long warmupTimeout = 10 * 1000;
+  private volatile boolean warmedUp;
+
+  private ConcurrentDataSourceHealthChecker healthchecker;
+  private NodeDrainer drainer;
+  private TopologyFileWatcher topologyWatcher;
+  private ConnectionPool connectionPool;
+  /**
+   * 只读连接上出现写语句时的处理方式
+   */
+  private ReadOnlyWritePolicy readOnlyWritePolicy = ReadOnlyWritePolicy.REJECT;
+  /**
+   * 自动提交模式下读连接只在一条语句及其结果集的范围内借用
+   */
+  private boolean statementScopedReads;
+  /**
+   * 每个物理连接缓存的PreparedStatement数,0表示不缓存
+   */
+  private int statementCacheSize;
+  /**
+   * 批量执行的insert ... values (...)是否改写成多行insert
+   */
+  private boolean rewriteBatchedInserts;
+  /**
+   * 改写后一条多行insert的大致字节数上限,不能超过数据库的max_allowed_packet
+   */
+  private long maxBatchPacketSize = 4 * 1024 * 1024;
+
+  @Override public synchronized DataSource getObject() throws Exception {
+    if (masterslaveDataSource != null) {
+      return masterslaveDataSource;
+    }
+    if (topologyFile != null) {
+      topologyWatcher = new TopologyFileWatcher(new File(topologyFile), dataSourceCreator, this);
+      topologyWatcher.load();
+    }
+    MasterslaveDataSource dataSource = new MasterslaveDataSource();
+    Topology topology = buildTopology(null);
+    dataSource.setTopology(topology);
+    dataSource.setSlaveWritable(slaveWritable);
+    dataSource.setPositionTracker(replicationPositionTracker);
+    dataSource.setReadRetries(readRetries);
+    dataSource.setRetryBudget(new RetryBudget(retryBudgetRatio, minRetriesPerSecond));
+    if (hedgeReads) {
+      dataSource.setReadHedger(new ReadHedger(dataSource, hedgeDelay,
+          hedgePercentile, hedgeBudgetRatio, hedgeThreads));
+    }
+    dataSource.setReadOnlyWritePolicy(readOnlyWritePolicy);
+    dataSource.setStatementScopedReads(statementScopedReads);
+    dataSource.setStatementCacheSize(statementCacheSize);
+    dataSource.setRewriteBatchedInserts(rewriteBatchedInserts);
+    dataSource.setMaxBatchPacketSize(maxBatchPacketSize);
+    dataSource.setLoadBalancer(
+        loadBalancer != null ? loadBalancer : loadBalanceStrategy.create());
+    warmUp(dataSource, topology, topology.getNodes());
+    masterslaveDataSource = dataSource;
+    if (healthcheck || replicationLagProbe != null) {
+      healthchecker = createHealthChecker();
+      List<DataSource> dataSources = new ArrayList<>(topology.getNodes().size());
+      for (DataSourceNode node : topology.getNodes()) {
+        dataSources.add(node.getDataSource());
+      }
+      if (healthcheck) {
+        healthchecker.check(dataSources.toArray(new DataSource[dataSources.size()]));
+      }
+      monitorReplicationLag(topology);
+    }
+    if (topologyWatcher != null) {
+      topologyWatcher.start(topologyCheckPeriod);
+    }
+    return masterslaveDataSource;
+  }
+
+  /**
+   * spring容器关闭时停止后台线程,并关闭由本对象创建的数据源
+   */
+  @Override public synchronized void destroy() {
+    if (topologyWatcher != null) {
+      topologyWatcher.stop();
+    }
+    if (healthchecker != null) {
+      healthchecker.shutdown();
+      healthchecker = null;
+    }
+    if (drainer != null) {
+      drainer.close();
+      drainer = null;
+    }
+    if (masterslaveDataSource != null && masterslaveDataSource.getReadHedger() != null) {
+      masterslaveDataSource.getReadHedger().close();
+    }
+    if (connectionPool != null) {
+      connectionPool.close();
+      connectionPool = null;
+    }
+    //最后关闭拓扑文件中配置的数据源,此时已经没有使用它们的后台任务
+    if (topologyWatcher != null) {
+      topologyWatcher.close();
+      topologyWatcher = null;
+    }
+  }
+
+  /**
+   * 运行时替换主从组的拓扑,可以增删从库、调整权重或切换主从角色
+   * <p/>
+   * 已经在拓扑中的数据源保留原来的统计数据和熔断状态;之后创建的连接使用新的拓扑,
+   * 已经创建的连接仍然使用原来的节点直到关闭;被移除的数据源在连接全部归还(或超过drainTimeout)后
+   * 不再使用,由调用方负责关闭
+   */
+  public void updateTopology(DataSource master, List<DataSource> slaves,
+                             List<Integer> slaveWeights,
+                             Map<String, List<DataSource>> slaveGroups) {
+    updateTopology(master, slaves, slaveWeights, slaveGroups,
+        Collections.<DataSource>emptySet());
+  }
+
+  /**
+   * @param owned 由调用方创建、被移除后随节点一起关闭的数据源,例如拓扑文件中配置的数据源
+   */
+  synchronized void updateTopology(DataSource master, List<DataSource> slaves,
+                                   List<Integer> slaveWeights,
+                                   Map<String, List<DataSource>> slaveGroups,
+                                   Set<DataSource> owned) {
+    checkNotNull(master);
+    checkNotNull(slaves);
+    checkNotNull(slaveGroups);
+    checkArgument(slaveWeights == null || slaveWeights.size() == slaves.size(),
+        "slaveWeights must have the same size as slaves");
+    this.master = master;
+    this.slaves = slaves;
+    this.slaveWeights = slaveWeights;
+    this.slaveGroups = slaveGroups;
+    if (masterslaveDataSource == null) {
+      //还没有初始化,getObject时使用
+      return;
+    }
+    Topology old = masterslaveDataSource.getTopology();
+    Topology topology = buildTopology(old);
+    List<DataSourceNode> addedNodes = new ArrayList<>();
+    List<DataSource> added = new ArrayList<>();
+    for (DataSourceNode node : topology.getNodes()) {
+      if (old.nodeOf(node.getDataSource()) == null) {
+        addedNodes.add(node);
+        added.add(node.getDataSource());
+      }
+    }
+    //新加入的数据源预热之后再接收流量
+    warmUp(masterslaveDataSource, topology, addedNodes);
+    masterslaveDataSource.setTopology(topology);
+    LOGGER.info("topology updated:{}", topology);
+
+    for (DataSourceNode node : old.getNodes()) {
+      if (topology.nodeOf(node.getDataSource()) == null) {
+        if (healthchecker != null) {
+          healthchecker.cancel(node.getDataSource());
+        }
+        if (drainer == null) {
+          drainer = new NodeDrainer(drainTimeout);
+        }
+        drainer.drain(node, owned.contains(node.getDataSource()));
+      }
+    }
+    if (healthchecker != null) {
+      if (healthcheck) {
+        healthchecker.check(added.toArray(new DataSource[added.size()]));
+      }
+      healthchecker.cancelReplicationLagMonitor();
+      monitorReplicationLag(topology);
+    }
+  }
+
+  public void updateTopology(DataSource master, List<DataSource> slaves) {
+    updateTopology(master, slaves, null, Collections.<String, List<DataSource>>emptyMap());
+  }
+
+  private void warmUp(MasterslaveDataSource dataSource, Topology topology,
+                      List<DataSourceNode> nodes) {
+    if (warmupConnections <= 0) {
+      warmedUp = true;
+      return;
+    }
+    try {
+      warmedUp = new ConnectionWarmer(warmupConnections, warmupSqls, warmupTimeout,
+          statementCacheSize, dataSource.getStatementCacheEvictionCounter())
+          .warmUp(topology, nodes);
+    } catch (SQLException e) {
+      //预热失败不影响启动
+      LOGGER.warn("warm-up failed", e);
+    }
+  }
+
+  /**
+   * 最近一次预热(启动或拓扑变化时)是否在warmupTimeout内完成
+   */
+  public boolean isWarmedUp() {
+    return warmedUp;
+  }
+
+  /**
+   * 事务中切换到master后提前归还从库连接的次数
+   */
+  public long getEarlyReadReleases() {
+    return masterslaveDataSource == null ? 0 : masterslaveDataSource.getEarlyReadReleases();
+  }
+
+  /**
+   * 提前归还从库连接累计少占用的时间(毫秒)
+   */
+  public long getReadConnectionHoldTimeSaved() {
+    return masterslaveDataSource == null ? 0
+        : TimeUnit.NANOSECONDS.toMillis(masterslaveDataSource.getReadHoldNanosSaved());
+  }
+
+  /**
+   * PreparedStatement缓存命中的次数
+   */
+  public long getStatementCacheHits() {
+    return masterslaveDataSource == null ? 0 : masterslaveDataSource.getStatementCacheHits();
+  }
+
+  /**
+   * PreparedStatement缓存没有命中,在物理连接上prepare的次数
+   */
+  public long getStatementCacheMisses() {
+    return masterslaveDataSource == null ? 0 : masterslaveDataSource.getStatementCacheMisses();
+  }
+
+  /**
+   * 超过缓存上限被淘汰的PreparedStatement数
+   */
+  public long getStatementCacheEvictions() {
+    return masterslaveDataSource == null ? 0
+        : masterslaveDataSource.getStatementCacheEvictions();
+  }
+
+  /**
+   * 根据当前的属性创建拓扑,old中已有的数据源复用原来的节点
+   */
+  private Topology buildTopology(Topology old) {
+    //本次拓扑中的节点,同一个数据源在多个角色中时使用同一个节点
+    Map<DataSource, DataSourceNode> nodes = new IdentityHashMap<>();
+    DataSourceNode masterNode = node(old, nodes, master, 1);
+    //从库切换为主库时清除复制延迟的状态
+    masterNode.updateReplicationLag(0, maxReplicationLag);
+    List<DataSourceNode> slaveNodes = new ArrayList<>(slaves.size());
+    for (int i = 0; i < slaves.size(); i++) {
+      int weight = slaveWeights == null ? 1 : slaveWeights.get(i);
+      slaveNodes.add(node(old, nodes, slaves.get(i), weight));
+    }
+    Map<String, List<DataSourceNode>> groupNodes = new HashMap<>();
+    for (Map.Entry<String, List<DataSource>> group : slaveGroups.entrySet()) {
+      List<DataSourceNode> members = new ArrayList<>(group.getValue().size());
+      for (DataSource dataSource : group.getValue()) {
+        DataSourceNode node = nodes.get(dataSource);
+        members.add(node != null ? node : node(old, nodes, dataSource, 1));
+      }
+      groupNodes.put(group.getKey(), members);
+    }
+    return new Topology(masterNode, slaveNodes, groupNodes);
+  }
+
+  private DataSourceNode node(Topology old, Map<DataSource, DataSourceNode> nodes,
+                              DataSource dataSource, int weight) {
+    DataSourceNode node = nodes.get(dataSource);
+    if (node == null) {
+      node = old == null ? null : old.nodeOf(dataSource);
+      if (node == null) {
+        node = createNode(dataSource, weight);
+      }
+      nodes.put(dataSource, node);
+    }
+    node.setWeight(weight);
+    return node;
+  }
+
+  private ConcurrentDataSourceHealthChecker createHealthChecker() {
+    ConcurrentDataSourceHealthChecker healthchecker =
+        new ConcurrentDataSourceHealthChecker() {
+          @Override protected void onAvailable(DataSource dataSource) {
+            DataSourceNode node = masterslaveDataSource.nodeOf(dataSource);
+            if (node != null) {
+              node.setAvailable(true);
             }
+          }
 
-            @Override protected void onUnavailable(DataSource dataSource) {
-              if (dataSource == master) {
-                masterslaveDataSource.setMasterAvailable(false);
-              } else {
-                masterslaveDataSource.setSlaveAvailable(false);
-              }
+          @Override protected void onUnavailable(DataSource dataSource) {
+            DataSourceNode node = masterslaveDataSource.nodeOf(dataSource);
+            if (node != null) {
+              node.setAvailable(false);
             }
-          };
-      healthchecker.setInitialDelay(initialDelay);
-      healthchecker.setMonitorPeriod(monitorPeriod);
-      healthchecker.setRecheckTimes(recheckTimes);
-      healthchecker.setRecheckInterval(recheckInterval);
-      healthchecker.setDetectSql(detectSql);
-      healthchecker.check(master, slave);
+          }
+
+          @Override protected void onReplicationLag(DataSource dataSource, long lagMillis) {
+            DataSourceNode node = masterslaveDataSource.nodeOf(dataSource);
+            if (node != null && node != masterslaveDataSource.getMaster()) {
+              node.updateReplicationLag(lagMillis, maxReplicationLag);
+            }
+          }
+        };
+    healthchecker.setInitialDelay(initialDelay);
+    healthchecker.setMonitorPeriod(monitorPeriod);
+    healthchecker.setRecheckTimes(recheckTimes);
+    healthchecker.setRecheckInterval(recheckInterval);
+    healthchecker.setThreadCount(threadCount);
+    healthchecker.setDetectSql(detectSql);
+    healthchecker.setLagProbe(replicationLagProbe);
+    healthchecker.setLagCheckPeriod(lagCheckPeriod);
+    return healthchecker;
+  }
+
+  private void monitorReplicationLag(Topology topology) {
+    if (replicationLagProbe == null) {
+      return;
     }
-    return masterslaveDataSource;
+    List<DataSource> slaveDataSources = new ArrayList<>(topology.getNodes().size());
+    for (DataSourceNode node : topology.getNodes()) {
+      if (node != topology.getMaster()) {
+        slaveDataSources.add(node.getDataSource());
+      }
+    }
+    healthchecker.monitorReplicationLag(topology.getMaster().getDataSource(),
+        slaveDataSources.toArray(new DataSource[slaveDataSources.size()]));
+  }
+
+  private DataSourceNode createNode(DataSource dataSource, int weight) {
+    DataSourceNode node = new DataSourceNode(dataSource, weight);
+    if (circuitBreaker != null) {
+      node.setCircuitBreaker(new CircuitBreaker(dataSource.toString(), circuitBreaker));
+    }
+    if (concurrencyLimit != null) {
+      node.setConcurrencyLimiter(new ConcurrencyLimiter(concurrencyLimit));
+    }
+    if (!trafficClassQuotas.isEmpty()) {
+      node.setBulkhead(new Bulkhead(trafficClassQuotas));
+    }
+    if (pool != null) {
+      if (connectionPool == null) {
+        connectionPool = new ConnectionPool(pool);
+      }
+      node.setPool(connectionPool.create(dataSource));
+    }
+    return node;
   }
 
   @Override public Class<?> getObjectType() {
@@ -79,12 +495,56 @@ public class MasterslaveDataSourceFactoryBean implements FactoryBean<DataSource>
     this.master = master;
   }
 
-  public DataSource getSlave() {
-    return slave;
+  /**
+   * 一主一从时的配置方式,等价于只有一个元素的slaves
+   */
+  public void setSlave(DataSource slave) {
+    checkNotNull(slave);
+    this.slaves = new ArrayList<>(1);
+    this.slaves.add(slave);
   }
 
-  public void setSlave(DataSource slave) {
-    this.slave = slave;
+  public List<DataSource> getSlaves() {
+    return slaves;
+  }
+
+  public void setSlaves(List<DataSource> slaves) {
+    checkNotNull(slaves);
+    this.slaves = slaves;
+  }
+
+  public List<Integer> getSlaveWeights() {
+    return slaveWeights;
+  }
+
+  public void setSlaveWeights(List<Integer> slaveWeights) {
+    this.slaveWeights = slaveWeights;
+  }
+
+  public Map<String, List<DataSource>> getSlaveGroups() {
+    return slaveGroups;
+  }
+
+  public void setSlaveGroups(Map<String, List<DataSource>> slaveGroups) {
+    checkNotNull(slaveGroups);
+    this.slaveGroups = slaveGroups;
+  }
+
+  public LoadBalanceStrategy getLoadBalanceStrategy() {
+    return loadBalanceStrategy;
+  }
+
+  public void setLoadBalanceStrategy(LoadBalanceStrategy loadBalanceStrategy) {
+    checkNotNull(loadBalanceStrategy);
+    this.loadBalanceStrategy = loadBalanceStrategy;
+  }
+
+  public LoadBalancer getLoadBalancer() {
+    return loadBalancer;
+  }
+
+  public void setLoadBalancer(LoadBalancer loadBalancer) {
+    this.loadBalancer = loadBalancer;
   }
 
   public long getInitialDelay() {
@@ -151,7 +611,244 @@ public class MasterslaveDataSourceFactoryBean implements FactoryBean<DataSource>
     this.slaveWritable = slaveWritable;
   }
 
+  public ReplicationLagProbe getReplicationLagProbe() {
+    return replicationLagProbe;
+  }
+
+  public void setReplicationLagProbe(ReplicationLagProbe replicationLagProbe) {
+    this.replicationLagProbe = replicationLagProbe;
+  }
+
+  public long getMaxReplicationLag() {
+    return maxReplicationLag;
+  }
+
+  public void setMaxReplicationLag(long maxReplicationLag) {
+    this.maxReplicationLag = maxReplicationLag;
+  }
+
+  public long getLagCheckPeriod() {
+    return lagCheckPeriod;
+  }
+
+  public void setLagCheckPeriod(long lagCheckPeriod) {
+    this.lagCheckPeriod = lagCheckPeriod;
+  }
+
+  public ReplicationPositionTracker getReplicationPositionTracker() {
+    return replicationPositionTracker;
+  }
+
+  public void setReplicationPositionTracker(
+      ReplicationPositionTracker replicationPositionTracker) {
+    this.replicationPositionTracker = replicationPositionTracker;
+  }
+
+  public CircuitBreakerConfig getCircuitBreaker() {
+    return circuitBreaker;
+  }
+
+  public void setCircuitBreaker(CircuitBreakerConfig circuitBreaker) {
+    this.circuitBreaker = circuitBreaker;
+  }
+
+  public ConcurrencyLimitConfig getConcurrencyLimit() {
+    return concurrencyLimit;
+  }
+
+  public void setConcurrencyLimit(ConcurrencyLimitConfig concurrencyLimit) {
+    this.concurrencyLimit = concurrencyLimit;
+  }
+
+  public Map<String, TrafficClassQuota> getTrafficClassQuotas() {
+    return trafficClassQuotas;
+  }
+
+  public void setTrafficClassQuotas(Map<String, TrafficClassQuota> trafficClassQuotas) {
+    checkNotNull(trafficClassQuotas);
+    this.trafficClassQuotas = trafficClassQuotas;
+  }
+
+  public PoolConfig getPool() {
+    return pool;
+  }
+
+  public void setPool(PoolConfig pool) {
+    this.pool = pool;
+  }
+
+  public int getReadRetries() {
+    return readRetries;
+  }
+
+  public void setReadRetries(int readRetries) {
+    this.readRetries = readRetries;
+  }
+
+  public double getRetryBudgetRatio() {
+    return retryBudgetRatio;
+  }
+
+  public void setRetryBudgetRatio(double retryBudgetRatio) {
+    this.retryBudgetRatio = retryBudgetRatio;
+  }
+
+  public int getMinRetriesPerSecond() {
+    return minRetriesPerSecond;
+  }
+
+  public void setMinRetriesPerSecond(int minRetriesPerSecond) {
+    this.minRetriesPerSecond = minRetriesPerSecond;
+  }
+
+  public boolean isHedgeReads() {
+    return hedgeReads;
+  }
+
+  public void setHedgeReads(boolean hedgeReads) {
+    this.hedgeReads = hedgeReads;
+  }
+
+  public long getHedgeDelay() {
+    return hedgeDelay;
+  }
+
+  public void setHedgeDelay(long hedgeDelay) {
+    this.hedgeDelay = hedgeDelay;
+  }
+
+  public double getHedgePercentile() {
+    return hedgePercentile;
+  }
+
+  public void setHedgePercentile(double hedgePercentile) {
+    this.hedgePercentile = hedgePercentile;
+  }
+
+  public double getHedgeBudgetRatio() {
+    return hedgeBudgetRatio;
+  }
+
+  public void setHedgeBudgetRatio(double hedgeBudgetRatio) {
+    this.hedgeBudgetRatio = hedgeBudgetRatio;
+  }
+
+  public int getHedgeThreads() {
+    return hedgeThreads;
+  }
+
+  public void setHedgeThreads(int hedgeThreads) {
+    this.hedgeThreads = hedgeThreads;
+  }
+
+  public ReadOnlyWritePolicy getReadOnlyWritePolicy() {
+    return readOnlyWritePolicy;
+  }
+
+  public void setReadOnlyWritePolicy(ReadOnlyWritePolicy readOnlyWritePolicy) {
+    this.readOnlyWritePolicy = readOnlyWritePolicy;
+  }
+
+  public boolean isStatementScopedReads() {
+    return statementScopedReads;
+  }
+
+  public void setStatementScopedReads(boolean statementScopedReads) {
+    this.statementScopedReads = statementScopedReads;
+  }
+
+  public boolean isRewriteBatchedInserts() {
+    return rewriteBatchedInserts;
+  }
+
+  public void setRewriteBatchedInserts(boolean rewriteBatchedInserts) {
+    this.rewriteBatchedInserts = rewriteBatchedInserts;
+  }
+
+  public long getMaxBatchPacketSize() {
+    return maxBatchPacketSize;
+  }
+
+  public void setMaxBatchPacketSize(long maxBatchPacketSize) {
+    checkArgument(maxBatchPacketSize > 0, "maxBatchPacketSize must be positive: %s",
+        maxBatchPacketSize);
+    this.maxBatchPacketSize = maxBatchPacketSize;
+  }
+
+  public int getStatementCacheSize() {
+    return statementCacheSize;
+  }
+
+  public void setStatementCacheSize(int statementCacheSize) {
+    checkArgument(statementCacheSize >= 0, "statementCacheSize must not be negative: %s",
+        statementCacheSize);
+    this.statementCacheSize = statementCacheSize;
+  }
+
+  public String getTopologyFile() {
+    return topologyFile;
+  }
+
+  public void setTopologyFile(String topologyFile) {
+    this.topologyFile = topologyFile;
+  }
+
+  public long getTopologyCheckPeriod() {
+    return topologyCheckPeriod;
+  }
+
+  public void setTopologyCheckPeriod(long topologyCheckPeriod) {
+    this.topologyCheckPeriod = topologyCheckPeriod;
+  }
+
+  public DataSourceCreator getDataSourceCreator() {
+    return dataSourceCreator;
+  }
+
+  public void setDataSourceCreator(DataSourceCreator dataSourceCreator) {
+    this.dataSourceCreator = dataSourceCreator;
+  }
+
+  public long getDrainTimeout() {
+    return drainTimeout;
+  }
+
+  public void setDrainTimeout(long drainTimeout) {
+    this.drainTimeout = drainTimeout;
+  }
+
+  public int getWarmupConnections() {
+    return warmupConnections;
+  }
+
+  public void setWarmupConnections(int warmupConnections) {
+    this.warmupConnections = warmupConnections;
+  }
+
+  public List<String> getWarmupSqls() {
+    return warmupSqls;
+  }
+
+  public void setWarmupSqls(List<String> warmupSqls) {
+    checkNotNull(warmupSqls);
+    this.warmupSqls = warmupSqls;
+  }
+
+  public long getWarmupTimeout() {
+    return warmupTimeout;
+  }
+
+  public void setWarmupTimeout(long warmupTimeout) {
+    this.warmupTimeout = warmupTimeout;
+  }
+
   @Override public void afterPropertiesSet() throws Exception {
+    if (topologyFile != null) {
+      checkNotNull(dataSourceCreator, "dataSourceCreator is required for topologyFile");
+      return;
+    }
     checkNotNull(master);
+    checkArgument(slaveWeights == null || slaveWeights.size() == slaves.size(),
+        "slaveWeights must have the same size as slaves");
   }
 }
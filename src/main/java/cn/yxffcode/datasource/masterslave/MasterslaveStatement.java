@@ -2,6 +2,7 @@ package cn.yxffcode.datasource.masterslave;
 
 
 import cn.yxffcode.datasource.AbstractStatement;
+import cn.yxffcode.datasource.RouteHint;
 import cn.yxffcode.datasource.SQLParser;
 import cn.yxffcode.datasource.SqlType;
 
@@ -20,10 +21,49 @@ import java.util.List;
  * @author gaohang on 16/2/26.
  */
 class MasterslaveStatement extends AbstractStatement {
+  /**
+   * 没有指定autoGeneratedKeys,不是{@link Statement}中定义的值
+   */
+  static final int NO_AUTO_GENERATED_KEYS = -1;
+
   private final MasterslaveConnection masterslaveConnection;
 
+  /**
+   * 每个路由一个物理Statement,多次执行之间复用
+   */
   private Statement readStatement;
   private Statement writeStatement;
+  /**
+   * readStatement和writeStatement所在的物理连接
+   */
+  private Connection readStatementConnection;
+  private Connection writeStatementConnection;
+
+  /**
+   * 当前执行语句的物理连接所属的数据源,用于记录执行耗时
+   */
+  private DataSourceNode executingNode;
+  /**
+   * 当前执行的语句是否是写
+   */
+  private boolean writing;
+  /**
+   * 当前执行的语句是否使用读连接
+   */
+  private boolean onReadConnection;
+  /**
+   * 当前执行的语句是否在只读连接固定使用的从库上,此时不重试也不对冲,
+   * REJECT策略下语句类型没有解析,可能是写
+   */
+  private boolean readOnlyPinned;
+  /**
+   * 最近一次执行实际使用的Statement,对冲读胜出时是对冲请求的Statement
+   */
+  Statement executedStatement;
+  /**
+   * 最近一次胜出的对冲读,在下一次执行或关闭时释放
+   */
+  private ReadHedger.HedgedRead wonHedge;
 
   private List<ResultSet> openedResultSets = new ArrayList<>(1);
 
@@ -45,22 +85,94 @@ class MasterslaveStatement extends AbstractStatement {
   }
 
   private Statement detectStatement(String sql) throws SQLException {
-    if (writeStatement != null) {
+    readOnlyPinned = false;
+    RouteHint hint = SQLParser.getRouteHint(sql);
+    if (hint != null) {
+      return detectStatement(sql, hint);
+    }
+    if (masterslaveConnection.isReadOnlyRouting()) {
+      return readOnlyStatement(sql);
+    }
+    if (writeStatement != null && !masterslaveConnection.isUnpinEnabled()) {
+      executingNode = masterslaveConnection.getWriteNode();
+      writing = true;
+      onReadConnection = false;
       return writeStatement;
     }
     SqlType sqlType = SQLParser.getSqlType(sql);
     boolean read = sqlType.isRead();
-    Connection connection = masterslaveConnection.targetConnection(read);
-    if (read) {
-      readStatement =
-          connection.createStatement(resultSetType, resultSetConcurrency, resultSetHoldability);
-      normalizeStatement(readStatement);
-    } else {
-      writeStatement =
-          connection.createStatement(resultSetType, resultSetConcurrency, resultSetHoldability);
-      normalizeStatement(writeStatement);
+    writing = !read;
+    //取读连接失败时也可以重试
+    onReadConnection = read;
+    return statementOn(masterslaveConnection.targetConnection(read));
+  }
+
+  /**
+   * 只读连接上的语句,策略为{@link ReadOnlyWritePolicy#REJECT}时不解析语句类型
+   */
+  private Statement readOnlyStatement(String sql) throws SQLException {
+    if (masterslaveConnection.getReadOnlyWritePolicy() == ReadOnlyWritePolicy.PROMOTE
+        && !SQLParser.getSqlType(sql).isRead()) {
+      writing = true;
+      return statementOn(masterslaveConnection.targetConnection(false));
+    }
+    writing = false;
+    readOnlyPinned = true;
+    return statementOn(masterslaveConnection.readOnlyConnection());
+  }
+
+  private Statement statementOn(Connection connection) throws SQLException {
+    executingNode = masterslaveConnection.nodeOf(connection);
+    onReadConnection = !masterslaveConnection.isWriteConnection(connection);
+    if (!onReadConnection) {
+      return writeStatementOn(connection);
     }
-    return sqlType.isRead() ? readStatement : writeStatement;
+    return readStatementOn(connection);
+  }
+
+  private Statement writeStatementOn(Connection connection) throws SQLException {
+    if (writeStatement == null) {
+      writeStatement = createPhysicalStatement(connection);
+      writeStatementConnection = connection;
+    }
+    return writeStatement;
+  }
+
+  /**
+   * 读连接或指定的从库连接上的Statement,连接没有变化时复用上一次的Statement
+   */
+  private Statement readStatementOn(Connection connection) throws SQLException {
+    if (readStatement != null) {
+      if (readStatementConnection == connection) {
+        return readStatement;
+      }
+      Statement previous = readStatement;
+      readStatement = null;
+      readStatementConnection = null;
+      previous.close();
+    }
+    readStatement = createPhysicalStatement(connection);
+    readStatementConnection = connection;
+    return readStatement;
+  }
+
+  /**
+   * 按路由注释选择连接,指定从库时不再解析语句类型
+   */
+  private Statement detectStatement(String sql, RouteHint hint) throws SQLException {
+    if (hint.isMaster()) {
+      writing = !SQLParser.getSqlType(sql).isRead();
+      onReadConnection = false;
+      Connection connection = masterslaveConnection.targetConnection(false);
+      executingNode = masterslaveConnection.nodeOf(connection);
+      return writeStatementOn(connection);
+    }
+    writing = false;
+    //指定的从库不做重试
+    onReadConnection = false;
+    Connection connection = masterslaveConnection.slaveConnection(hint.getSlaveGroup());
+    executingNode = masterslaveConnection.nodeOf(connection);
+    return readStatementOn(connection);
   }
 
   protected void normalizeStatement(Statement statement) throws SQLException {
@@ -81,24 +193,176 @@ class MasterslaveStatement extends AbstractStatement {
   }
 
   @Override public boolean execute(String sql) throws SQLException {
-    checkClosed();
-    Statement statement = detectStatement(sql);
-    boolean isResultSet = statement.execute(sql);
-    afterExecute(statement, isResultSet);
-    return isResultSet;
+    return executeRouted(sql, NO_AUTO_GENERATED_KEYS, null, null);
   }
 
   @Override public boolean execute(String sql, int autoGeneratedKeys) throws SQLException {
+    return executeRouted(sql, autoGeneratedKeys, null, null);
+  }
+
+  @Override public boolean execute(String sql, int[] columnIndexes) throws SQLException {
+    return executeRouted(sql, NO_AUTO_GENERATED_KEYS, columnIndexes, null);
+  }
+
+  @Override public boolean execute(String sql, String[] columnNames) throws SQLException {
+    return executeRouted(sql, NO_AUTO_GENERATED_KEYS, null, columnNames);
+  }
+
+  /**
+   * 选择Statement并执行,读在连接级别的错误后可以在其它数据源上重试
+   */
+  private boolean executeRouted(String sql, int autoGeneratedKeys, int[] columnIndexes,
+                                String[] columnNames) throws SQLException {
     checkClosed();
-    Statement statement = detectStatement(sql);
-    boolean isResultSet = statement.execute(sql, autoGeneratedKeys);
-    afterExecute(statement, isResultSet);
+    closeResultSets();
+    releaseHedge();
+    masterslaveConnection.releaseRetiredReadConnection();
+    masterslaveConnection.flushSession();
+    if (SQLParser.isSetStatement(sql)) {
+      masterslaveConnection.executeSessionStatement(sql);
+      currentResultSet = null;
+      updateCount = 0;
+      return false;
+    }
+    int retries = 0;
+    while (true) {
+      Statement statement;
+      boolean isResultSet;
+      try {
+        statement = detectStatement(sql);
+        isResultSet = executeOn(statement, sql, autoGeneratedKeys, columnIndexes, columnNames);
+      } catch (SQLException e) {
+        if (!canRetry(e, retries)) {
+          throw e;
+        }
+        retries++;
+        //切换时关闭所有Statement在坏掉的读连接上的物理Statement
+        masterslaveConnection.switchReadConnection();
+        continue;
+      }
+      if (writing) {
+        masterslaveConnection.afterWrite();
+      }
+      afterExecute(executedStatement, isResultSet);
+      if (!writing) {
+        masterslaveConnection.afterRead();
+      }
+      return isResultSet;
+    }
+  }
+
+  private boolean executeOn(Statement statement, final String sql, int autoGeneratedKeys,
+                            int[] columnIndexes, String[] columnNames) throws SQLException {
+    DataSourceNode node = executingNode;
+    node.checkCircuit();
+    executedStatement = statement;
+    ReadHedger.HedgedRead hedge = null;
+    if (onReadConnection) {
+      MasterslaveDataSource groupDataSource = masterslaveConnection.getGroupDataSource();
+      groupDataSource.getRetryBudget().onRequest();
+      ReadHedger readHedger = groupDataSource.getReadHedger();
+      if (readHedger != null && !writing && !readOnlyPinned && columnIndexes == null && columnNames == null
+          && autoGeneratedKeys == NO_AUTO_GENERATED_KEYS) {
+        hedge = readHedger.schedule(this, statement, node, sql, new ReadHedger.HedgeCall() {
+          @Override public Statement prepare(Connection connection) throws SQLException {
+            return createPhysicalStatement(connection);
+          }
+
+          @Override public boolean execute(Statement statement) throws SQLException {
+            return statement.execute(sql);
+          }
+        });
+      }
+    }
+    long start = System.nanoTime();
+    boolean isResultSet;
+    try {
+      if (columnIndexes != null) {
+        isResultSet = statement.execute(sql, columnIndexes);
+      } else if (columnNames != null) {
+        isResultSet = statement.execute(sql, columnNames);
+      } else if (autoGeneratedKeys != NO_AUTO_GENERATED_KEYS) {
+        isResultSet = statement.execute(sql, autoGeneratedKeys);
+      } else {
+        isResultSet = statement.execute(sql);
+      }
+    } catch (SQLException e) {
+      if (hedge != null && hedge.onPrimaryDone()) {
+        //被对冲请求取消,只记录耗时
+        node.recordSuccess(System.nanoTime() - start);
+        return adoptHedge(hedge);
+      }
+      node.recordFailure(System.nanoTime() - start, e);
+      node.connectionFailed(connectionOf(statement), e);
+      throw e;
+    }
+    node.recordSuccess(System.nanoTime() - start);
+    if (hedge != null && hedge.onPrimaryDone()) {
+      if (isResultSet) {
+        statement.getResultSet().close();
+      }
+      return adoptHedge(hedge);
+    }
     return isResultSet;
   }
 
+  boolean adoptHedge(ReadHedger.HedgedRead hedge) {
+    wonHedge = hedge;
+    executedStatement = hedge.getStatement();
+    return hedge.isResultSet();
+  }
+
+  void releaseHedge() {
+    if (wonHedge != null) {
+      wonHedge.release();
+      wonHedge = null;
+    }
+  }
+
+  /**
+   * hedge还是最近一次胜出的对冲读时释放它,它的结果集在之后的执行中已经被关闭时不做任何事
+   */
+  void releaseHedge(ReadHedger.HedgedRead hedge) {
+    if (wonHedge == hedge) {
+      releaseHedge();
+    }
+  }
+
+  ReadHedger.HedgedRead getWonHedge() {
+    return wonHedge;
+  }
+
+  /**
+   * 在指定的物理连接上创建与当前Statement设置相同的Statement
+   */
+  Statement createPhysicalStatement(Connection connection) throws SQLException {
+    Statement statement =
+        connection.createStatement(resultSetType, resultSetConcurrency, resultSetHoldability);
+    normalizeStatement(statement);
+    return statement;
+  }
+
+  /**
+   * 只有读连接上的读,在返回任何数据之前发生的连接级别错误才重试,并且受重试预算限制;
+   * 只读连接固定使用一个从库,不重试
+   */
+  private boolean canRetry(SQLException e, int retries) {
+    return !writing && onReadConnection && !readOnlyPinned && canRetryRead(e, retries);
+  }
+
+  /**
+   * 读连接上的读发生错误后是否可以在其它数据源上重试
+   */
+  boolean canRetryRead(SQLException e, int retries) {
+    return retries < masterslaveConnection.getGroupDataSource().getReadRetries()
+        && SQLExceptions.isConnectionError(e)
+        && masterslaveConnection.getGroupDataSource().getRetryBudget().tryRetry();
+  }
+
   private void afterExecute(Statement statement, boolean isResultSet) throws SQLException {
     if (isResultSet) {
-      currentResultSet = statement.getResultSet();
+      currentResultSet = masterslaveConnection.wrapResultSet(this, connectionOf(statement),
+          statement.getResultSet());
       openedResultSets.add(currentResultSet);
       updateCount = 0;
     } else {
@@ -107,22 +371,6 @@ class MasterslaveStatement extends AbstractStatement {
     }
   }
 
-  @Override public boolean execute(String sql, int[] columnIndexes) throws SQLException {
-    checkClosed();
-    Statement statement = detectStatement(sql);
-    boolean isResultSet = statement.execute(sql, columnIndexes);
-    afterExecute(statement, isResultSet);
-    return isResultSet;
-  }
-
-  @Override public boolean execute(String sql, String[] columnNames) throws SQLException {
-    checkClosed();
-    Statement statement = detectStatement(sql);
-    boolean isResultSet = statement.execute(sql, columnNames);
-    afterExecute(statement, isResultSet);
-    return isResultSet;
-  }
-
   @Override public int executeUpdate(String sql, int autoGeneratedKeys) throws SQLException {
     execute(sql, autoGeneratedKeys);
     return updateCount;
@@ -134,26 +382,22 @@ class MasterslaveStatement extends AbstractStatement {
   }
 
   @Override public int executeUpdate(String sql, String[] columnNames) throws SQLException {
+    execute(sql, columnNames);
     return updateCount;
   }
 
   @Override public SQLWarning getWarnings() throws SQLException {
-    if (writeStatement == null) {
+    if (writeStatement != null) {
       return writeStatement.getWarnings();
     }
-    if (readStatement == null) {
+    if (readStatement != null) {
       return readStatement.getWarnings();
     }
     return null;
   }
 
   @Override public void addBatch(String sql) throws SQLException {
-    if (writeStatement == null) {
-      writeStatement = masterslaveConnection.targetConnection(false).createStatement(resultSetType,
-          resultSetConcurrency, resultSetHoldability);
-      normalizeStatement(writeStatement);
-    }
-    writeStatement.addBatch(sql);
+    writeStatementOn(masterslaveConnection.targetConnection(false)).addBatch(sql);
   }
 
   @Override public void clearBatch() throws SQLException {
@@ -164,7 +408,16 @@ class MasterslaveStatement extends AbstractStatement {
 
   @Override public int[] executeBatch() throws SQLException {
     if (writeStatement != null) {
-      return writeStatement.executeBatch();
+      masterslaveConnection.flushSession();
+      int[] result;
+      try {
+        result = writeStatement.executeBatch();
+      } catch (SQLException e) {
+        masterslaveConnection.getWriteNode().connectionFailed(writeStatementConnection, e);
+        throw e;
+      }
+      masterslaveConnection.afterWrite();
+      return result;
     }
     return new int[0];
   }
@@ -174,6 +427,14 @@ class MasterslaveStatement extends AbstractStatement {
   }
 
   @Override public void close() throws SQLException {
+    try {
+      doClose();
+    } finally {
+      masterslaveConnection.statementClosed(this);
+    }
+  }
+
+  void doClose() throws SQLException {
     closed = true;
     //先关闭ResultSet
     SQLException last = null;
@@ -186,6 +447,7 @@ class MasterslaveStatement extends AbstractStatement {
         }
       }
     }
+    releaseHedge();
     for (Statement statement : Arrays.asList(readStatement, writeStatement)) {
       if (statement != null) {
         try {
@@ -200,6 +462,69 @@ class MasterslaveStatement extends AbstractStatement {
     }
   }
 
+  /**
+   * 执行新的语句之前关闭上一次执行打开的ResultSet
+   */
+  void closeResultSets() throws SQLException {
+    if (openedResultSets.isEmpty()) {
+      return;
+    }
+    SQLException last = null;
+    for (int i = 0, size = openedResultSets.size(); i < size; i++) {
+      ResultSet resultSet = openedResultSets.get(i);
+      try {
+        if (!resultSet.isClosed()) {
+          resultSet.close();
+        }
+      } catch (SQLException e) {
+        last = e;
+      }
+    }
+    openedResultSets.clear();
+    currentResultSet = null;
+    if (last != null) {
+      throw last;
+    }
+  }
+
+  /**
+   * 是否有在connection上打开且还没有关闭的ResultSet
+   */
+  boolean hasOpenResultSet(Connection connection) throws SQLException {
+    for (int i = 0, size = openedResultSets.size(); i < size; i++) {
+      ResultSet resultSet = openedResultSets.get(i);
+      if (!resultSet.isClosed() && connectionOf(resultSet.getStatement()) == connection) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * 物理Statement所在的物理连接,内置连接池中的连接上创建的Statement的getConnection()返回的不是取得的连接
+   */
+  private Connection connectionOf(Statement statement) throws SQLException {
+    if (statement == readStatement) {
+      return readStatementConnection;
+    }
+    if (statement == writeStatement) {
+      return writeStatementConnection;
+    }
+    return statement.getConnection();
+  }
+
+  /**
+   * connection将被归还时调用,关闭在其上创建的Statement
+   */
+  void closeStatementsOn(Connection connection) throws SQLException {
+    if (readStatement != null && readStatementConnection == connection) {
+      Statement statement = readStatement;
+      readStatement = null;
+      readStatementConnection = null;
+      statement.close();
+    }
+  }
+
   /* ========================================================================
    * 以下为简单支持的方法
    * ======================================================================*/
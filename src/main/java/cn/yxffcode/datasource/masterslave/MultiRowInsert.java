@@ -0,0 +1,85 @@
+package cn.yxffcode.datasource.masterslave;
+
+import cn.yxffcode.datasource.SQLParser;
+
+/**
+ * 把insert ... values (?, ...)改写成一次插入多行的insert ... values (?, ...), (?, ...), ...
+ * <p/>
+ * 只有一组值且所有占位符都在这组值中的insert/replace可以改写,见{@link SQLParser#getValuesTuple(String)};
+ * 最近一次使用的行数对应的SQL被保留,批量中行数相同的分块使用同一个字符串
+ *
+ * @author gaohang
+ */
+final class MultiRowInsert {
+  /**
+   * 一条语句中占位符的个数上限(MySQL的限制)
+   */
+  private static final int MAX_PLACEHOLDERS = 65535;
+
+  private final String prefix;
+  private final String tuple;
+  private final String suffix;
+  private final int placeholdersPerRow;
+
+  private int lastRows;
+  private String lastSql;
+
+  private MultiRowInsert(String sql, int[] range) {
+    this.prefix = sql.substring(0, range[0]);
+    this.tuple = sql.substring(range[0], range[1]);
+    this.suffix = sql.substring(range[1]);
+    this.placeholdersPerRow = SQLParser.countPlaceholders(tuple);
+  }
+
+  /**
+   * @return sql不能改写时返回null
+   */
+  static MultiRowInsert of(String sql) {
+    int[] range = SQLParser.getValuesTuple(sql);
+    return range == null ? null : new MultiRowInsert(sql, range);
+  }
+
+  /**
+   * 一次插入rows行的SQL
+   */
+  String sql(int rows) {
+    if (rows == lastRows) {
+      return lastSql;
+    }
+    StringBuilder sql = new StringBuilder(
+        prefix.length() + suffix.length() + rows * (tuple.length() + 1));
+    sql.append(prefix).append(tuple);
+    for (int i = 1; i < rows; i++) {
+      sql.append(',').append(tuple);
+    }
+    sql.append(suffix);
+    lastRows = rows;
+    lastSql = sql.toString();
+    return lastSql;
+  }
+
+  /**
+   * 一行在SQL中占用的字符数
+   */
+  int rowLength() {
+    return tuple.length() + 1;
+  }
+
+  /**
+   * 不包含任何一行时SQL的字符数
+   */
+  int baseLength() {
+    return prefix.length() + suffix.length();
+  }
+
+  int getPlaceholdersPerRow() {
+    return placeholdersPerRow;
+  }
+
+  /**
+   * 受占位符个数限制,一条语句最多插入的行数
+   */
+  int maxRows() {
+    return Math.max(1, MAX_PLACEHOLDERS / placeholdersPerRow);
+  }
+}
@@ -0,0 +1,111 @@
+package cn.yxffcode.datasource.masterslave;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 拓扑变化后,等待被移除的节点上的连接全部归还,再关闭节点的内置连接池,
+ * 由本组件创建的DataSource(拓扑文件中配置的)同时关闭,其它的DataSource由使用方负责关闭
+ * <p/>
+ * 被移除的节点不会再被新的连接选中,但之前创建的{@link MasterslaveConnection}仍然在使用它,
+ * 超过drainTimeout还没有归还的连接不再等待
+ *
+ * @author gaohang
+ */
+final class NodeDrainer {
+  private static final Logger LOGGER = LoggerFactory.getLogger(NodeDrainer.class);
+
+  private static final long CHECK_INTERVAL_MILLIS = 100;
+
+  private final long drainTimeoutMillis;
+  private final ScheduledExecutorService scheduler;
+  /**
+   * 还在等待连接归还的节点和是否需要关闭它的DataSource,关闭时不再等待,直接关闭
+   */
+  private final Map<DataSourceNode, Boolean> draining = new ConcurrentHashMap<>();
+
+  NodeDrainer(long drainTimeoutMillis) {
+    this.drainTimeoutMillis = drainTimeoutMillis;
+    this.scheduler = Executors.newSingleThreadScheduledExecutor(
+        ExecutorServices.daemonThreadFactory("masterslave-drain-"));
+  }
+
+  /**
+   * @param closeDataSource 是否关闭节点的DataSource,只有DataSource由本组件创建时才关闭
+   */
+  void drain(DataSourceNode node, boolean closeDataSource) {
+    LOGGER.info("draining removed node:{}", node);
+    draining.put(node, closeDataSource);
+    scheduler.execute(new DrainTask(node));
+  }
+
+  /**
+   * 停止等待,立即关闭还在等待连接归还的节点
+   */
+  void close() {
+    scheduler.shutdownNow();
+    for (DataSourceNode node : draining.keySet()) {
+      closeNode(node);
+    }
+  }
+
+  private void closeNode(DataSourceNode node) {
+    Boolean closeDataSource = draining.remove(node);
+    if (closeDataSource == null) {
+      return;
+    }
+    if (node.getPool() != null) {
+      node.getPool().close();
+    }
+    if (closeDataSource) {
+      close(node.getDataSource());
+    } else {
+      LOGGER.info("drained node, leave the data source to the owner:{}", node.getDataSource());
+    }
+  }
+
+  private final class DrainTask implements Runnable {
+    private final DataSourceNode node;
+    private final long deadline;
+
+    private DrainTask(DataSourceNode node) {
+      this.node = node;
+      this.deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(drainTimeoutMillis);
+    }
+
+    @Override public void run() {
+      int active = node.getActiveConnections();
+      if (active > 0 && System.nanoTime() - deadline < 0) {
+        scheduler.schedule(this, CHECK_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        return;
+      }
+      if (active > 0) {
+        LOGGER.warn("drain timeout, closing node with {} active connections:{}", active, node);
+      }
+      closeNode(node);
+    }
+  }
+
+  /**
+   * DataSource实现了{@link AutoCloseable}(大多数连接池都实现了)时关闭它,否则由使用方负责关闭
+   */
+  private static void close(DataSource dataSource) {
+    if (!(dataSource instanceof AutoCloseable)) {
+      LOGGER.info("drained node is not closeable, leave it to the owner:{}", dataSource);
+      return;
+    }
+    try {
+      ((AutoCloseable) dataSource).close();
+      LOGGER.info("drained node closed:{}", dataSource);
+    } catch (Exception e) {
+      LOGGER.error("close drained node failed:{}", dataSource, e);
+    }
+  }
+}
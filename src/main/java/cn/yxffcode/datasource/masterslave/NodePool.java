@@ -0,0 +1,581 @@
+package cn.yxffcode.datasource.masterslave;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.sql.Statement;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 一个数据源的连接池,由{@link ConnectionPool}创建
+ * <p/>
+ * 取连接时先尝试当前线程上次归还的连接,再扫描共享的连接列表,都通过CAS修改连接的状态,不加锁;
+ * 没有空闲连接且有全局名额时创建新的连接,否则等待其它线程归还的连接直接移交过来
+ * <p/>
+ * 返回给调用方的是代理连接,关闭时归还到池中,并恢复被修改过的autoCommit、readOnly、
+ * 事务隔离级别、catalog和schema;直接执行过set语句的连接归还时执行重置语句或关闭,
+ * 通过{@link #sessionApplied}记录的set语句随连接保留,借出时借用方的会话不包含这些语句才重置或关闭;
+ * 出现过连接级别错误的连接归还时关闭,空闲较久的连接借出前检查是否可用
+ *
+ * @author gaohang
+ */
+final class NodePool {
+  private static final Logger LOGGER = LoggerFactory.getLogger(NodePool.class);
+
+  private static final int NOT_IN_USE = 0;
+  private static final int IN_USE = 1;
+  private static final int REMOVED = 2;
+
+  /**
+   * 等待时每隔一段时间重新扫描连接列表并尝试取得全局名额
+   */
+  private static final long WAIT_SLICE_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+  private static final int HANDOFF_SPINS = 16;
+  /**
+   * 需求每个周期的衰减比例
+   */
+  private static final double DEMAND_DECAY = 0.8;
+
+  private final ConnectionPool owner;
+  private final DataSource dataSource;
+
+  private final List<PooledEntry> entries = new CopyOnWriteArrayList<>();
+  private final ThreadLocal<PooledEntry> lastUsed = new ThreadLocal<>();
+  private final SynchronousQueue<PooledEntry> handoff = new SynchronousQueue<>(true);
+  private final AtomicInteger waiters = new AtomicInteger();
+  private final AtomicInteger inUse = new AtomicInteger();
+  /**
+   * 本周期内同时使用的最大连接数
+   */
+  private final AtomicInteger peakInUse = new AtomicInteger();
+  /**
+   * 最近的需求,取各周期峰值的衰减最大值
+   */
+  private volatile int demand;
+  private volatile boolean closed;
+
+  NodePool(ConnectionPool owner, DataSource dataSource) {
+    this.owner = owner;
+    this.dataSource = dataSource;
+  }
+
+  /**
+   * 取一个代理连接,关闭代理连接时归还
+   *
+   * @param session 借用方在连接上需要的set语句,按赋值的变量索引,为null表示不需要
+   */
+  Connection getConnection(Map<String, String> session) throws SQLException {
+    PooledEntry entry = borrow(session);
+    onBorrowed(entry);
+    return (Connection) Proxy.newProxyInstance(NodePool.class.getClassLoader(),
+        new Class<?>[] {Connection.class}, new Lease(entry));
+  }
+
+  /**
+   * 取一个可用的连接,空闲超过validationIdleTime的连接先检查,不可用或会话与借用方不同
+   * 且无法重置时关闭并重新取
+   */
+  private PooledEntry borrow(Map<String, String> session) throws SQLException {
+    while (true) {
+      PooledEntry entry = acquire();
+      if (isAlive(entry) && entry.matchSession(session, owner.getSessionResetSql())) {
+        return entry;
+      }
+      entry.state.set(REMOVED);
+      remove(entry);
+    }
+  }
+
+  private boolean isAlive(PooledEntry entry) {
+    long validationIdleNanos = owner.getValidationIdleNanos();
+    if (validationIdleNanos < 0
+        || System.nanoTime() - entry.lastAccessNanos < validationIdleNanos) {
+      return true;
+    }
+    try {
+      return entry.connection.isValid(owner.getValidationTimeoutSeconds());
+    } catch (SQLException e) {
+      LOGGER.debug("validate pooled connection failed:{}", dataSource, e);
+      return false;
+    }
+  }
+
+  private PooledEntry acquire() throws SQLException {
+    checkOpen();
+    PooledEntry last = lastUsed.get();
+    if (last != null && last.state.compareAndSet(NOT_IN_USE, IN_USE)) {
+      return last;
+    }
+    PooledEntry entry = scan();
+    if (entry != null) {
+      return entry;
+    }
+    long deadline = System.nanoTime() + owner.getBorrowTimeoutNanos();
+    waiters.incrementAndGet();
+    try {
+      while (true) {
+        if (owner.reserve(this)) {
+          return create(IN_USE);
+        }
+        long remaining = deadline - System.nanoTime();
+        if (remaining <= 0) {
+          throw new SQLTransientConnectionException(
+              "connection pool exhausted, waited " + TimeUnit.NANOSECONDS.toMillis(
+                  owner.getBorrowTimeoutNanos()) + "ms:" + dataSource, "08001");
+        }
+        entry = handoff.poll(Math.min(remaining, WAIT_SLICE_NANOS), TimeUnit.NANOSECONDS);
+        if (entry != null && entry.state.compareAndSet(NOT_IN_USE, IN_USE)) {
+          return entry;
+        }
+        entry = scan();
+        if (entry != null) {
+          return entry;
+        }
+        checkOpen();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SQLTransientConnectionException("interrupted while waiting for connection", e);
+    } finally {
+      waiters.decrementAndGet();
+    }
+  }
+
+  private PooledEntry scan() {
+    for (PooledEntry entry : entries) {
+      if (entry.state.compareAndSet(NOT_IN_USE, IN_USE)) {
+        return entry;
+      }
+    }
+    return null;
+  }
+
+  private void onBorrowed(PooledEntry entry) {
+    int current = inUse.incrementAndGet();
+    while (true) {
+      int peak = peakInUse.get();
+      if (current <= peak || peakInUse.compareAndSet(peak, current)) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * 已经占用了全局名额,创建物理连接
+   */
+  private PooledEntry create(int state) throws SQLException {
+    Connection connection;
+    try {
+      connection = dataSource.getConnection();
+    } catch (SQLException e) {
+      owner.unreserve();
+      throw e;
+    }
+    PooledEntry entry = new PooledEntry(connection, state);
+    entries.add(entry);
+    return entry;
+  }
+
+  private void giveBack(PooledEntry entry) {
+    inUse.decrementAndGet();
+    if (closed || entry.broken || !entry.reset(owner.getSessionResetSql())) {
+      entry.state.set(REMOVED);
+      remove(entry);
+      return;
+    }
+    entry.lastAccessNanos = System.nanoTime();
+    entry.state.set(NOT_IN_USE);
+    lastUsed.set(entry);
+    for (int i = 0; i < HANDOFF_SPINS && waiters.get() > 0; i++) {
+      if (entry.state.get() != NOT_IN_USE || handoff.offer(entry)) {
+        return;
+      }
+      Thread.yield();
+    }
+  }
+
+  /**
+   * 通过{@link #getConnection(Map)}取得的连接上的PreparedStatement缓存,连接不是本池的连接时返回null
+   */
+  StatementCache statementCache(Connection connection, int maxSize, LongAdder evictions) {
+    PooledEntry entry = entryOf(connection);
+    if (entry == null) {
+      return null;
+    }
+    if (entry.statementCache == null) {
+      entry.statementCache = new StatementCache(maxSize, evictions, true);
+    }
+    return entry.statementCache;
+  }
+
+  /**
+   * 在通过{@link #getConnection(Map)}取得的连接上创建的Statement出现连接级别的错误后调用,
+   * Statement直接来自物理连接,错误不经过代理连接,归还时需要据此关闭物理连接
+   */
+  void discard(Connection connection) {
+    PooledEntry entry = entryOf(connection);
+    if (entry != null) {
+      entry.broken = true;
+    }
+  }
+
+  /**
+   * 在通过{@link #getConnection(Map)}取得的连接上直接执行了修改会话变量的语句,
+   * 这些修改不经过代理连接,归还时重置会话或关闭物理连接
+   */
+  void sessionModified(Connection connection) {
+    PooledEntry entry = entryOf(connection);
+    if (entry != null) {
+      entry.sessionModified = true;
+    }
+  }
+
+  /**
+   * 借用方在通过{@link #getConnection(Map)}取得的连接上执行了set语句,语句随连接保留,
+   * 归还时不需要重置,下次借出时借用方的会话中有相同的语句就不用再执行
+   *
+   * @param key 语句赋值的变量
+   */
+  void sessionApplied(Connection connection, String key, String sql) {
+    PooledEntry entry = entryOf(connection);
+    if (entry != null) {
+      if (entry.sessionStatements == null) {
+        entry.sessionStatements = new LinkedHashMap<>(4);
+      }
+      entry.sessionStatements.remove(key);
+      entry.sessionStatements.put(key, sql);
+    }
+  }
+
+  /**
+   * 连接上已经执行过的set语句,按赋值的变量索引,连接不是本池的连接时返回null
+   */
+  Map<String, String> appliedSessionStatements(Connection connection) {
+    PooledEntry entry = entryOf(connection);
+    return entry == null ? null : entry.sessionStatements;
+  }
+
+  private static PooledEntry entryOf(Connection connection) {
+    if (!Proxy.isProxyClass(connection.getClass())) {
+      return null;
+    }
+    InvocationHandler handler = Proxy.getInvocationHandler(connection);
+    return handler instanceof Lease ? ((Lease) handler).entry : null;
+  }
+
+  private void remove(PooledEntry entry) {
+    if (entries.remove(entry)) {
+      owner.unreserve();
+      if (entry.statementCache != null) {
+        entry.statementCache.close();
+      }
+      try {
+        entry.connection.close();
+      } catch (SQLException e) {
+        LOGGER.debug("close pooled connection failed:{}", dataSource, e);
+      }
+    }
+  }
+
+  /**
+   * 保留的连接超出需求的数量,只计算可以回收的空闲连接
+   */
+  int surplus(int minIdle) {
+    int target = Math.max(Math.max(demand, inUse.get() + waiters.get()), minIdle);
+    return entries.size() - target;
+  }
+
+  /**
+   * 关闭空闲时间不少于minIdleNanos的空闲连接
+   *
+   * @return 关闭的连接数
+   */
+  int evictIdle(long minIdleNanos, int max) {
+    int evicted = 0;
+    long now = System.nanoTime();
+    for (PooledEntry entry : entries) {
+      if (evicted >= max) {
+        break;
+      }
+      if (now - entry.lastAccessNanos >= minIdleNanos
+          && entry.state.compareAndSet(NOT_IN_USE, REMOVED)) {
+        remove(entry);
+        evicted++;
+      }
+    }
+    return evicted;
+  }
+
+  /**
+   * 由{@link ConnectionPool}的后台线程周期性调用:更新需求,回收多余的空闲连接,补足minIdle
+   */
+  void housekeep(int minIdle, long idleTimeoutNanos) {
+    int peak = peakInUse.getAndSet(inUse.get());
+    demand = Math.max(peak, (int) (demand * DEMAND_DECAY));
+    int surplus = surplus(minIdle);
+    if (surplus > 0) {
+      evictIdle(idleTimeoutNanos, surplus);
+    }
+    //补足minIdle时不从其它数据源回收连接
+    while (!closed && entries.size() < minIdle && owner.tryReserve()) {
+      try {
+        create(NOT_IN_USE);
+      } catch (SQLException e) {
+        LOGGER.warn("fill pool failed:{}", dataSource, e);
+        return;
+      }
+    }
+  }
+
+  /**
+   * 数据源从拓扑中移除后调用,关闭空闲连接,使用中的连接在归还时关闭
+   */
+  void close() {
+    closed = true;
+    owner.unregister(this);
+    evictIdle(0, Integer.MAX_VALUE);
+  }
+
+  private void checkOpen() throws SQLException {
+    if (closed) {
+      throw new SQLException("connection pool closed:" + dataSource);
+    }
+  }
+
+  int getIdle() {
+    return entries.size() - inUse.get();
+  }
+
+  int getInUse() {
+    return inUse.get();
+  }
+
+  int getDemand() {
+    return demand;
+  }
+
+  @Override public String toString() {
+    return "NodePool{" + dataSource + ", total=" + entries.size() + ", inUse=" + inUse.get()
+        + ", demand=" + demand + '}';
+  }
+
+  /**
+   * 池中的一个物理连接
+   */
+  private static final class PooledEntry {
+    private final Connection connection;
+    private final AtomicInteger state;
+    private volatile long lastAccessNanos;
+    /**
+     * 出现过连接级别的错误,归还时直接关闭
+     */
+    private volatile boolean broken;
+    /**
+     * 连接上缓存的PreparedStatement,只由持有连接的线程访问,连接关闭时关闭
+     */
+    private StatementCache statementCache;
+    /**
+     * 执行过没有记录的set等语句,会话变量可能与新建的连接不同,只由持有连接的线程访问
+     */
+    private boolean sessionModified;
+    /**
+     * 通过{@link NodePool#sessionApplied}记录的set语句,按赋值的变量索引,归还时保留,
+     * 只由持有连接的线程访问
+     */
+    private Map<String, String> sessionStatements;
+
+    //以下状态只由持有连接的线程访问,被修改过时记录原来的值,归还时恢复
+    private boolean autoCommitChanged;
+    private boolean readOnlyChanged;
+    private boolean isolationChanged;
+    private int originalIsolation;
+    private boolean catalogChanged;
+    private String originalCatalog;
+    private boolean schemaChanged;
+    private String originalSchema;
+
+    private PooledEntry(Connection connection, int state) {
+      this.connection = connection;
+      this.state = new AtomicInteger(state);
+      this.lastAccessNanos = System.nanoTime();
+    }
+
+    /**
+     * 修改会话状态之前调用,第一次修改时记录原来的值
+     */
+    private void beforeChange(String method) throws SQLException {
+      switch (method) {
+        case "setAutoCommit":
+          autoCommitChanged = true;
+          break;
+        case "setReadOnly":
+          readOnlyChanged = true;
+          break;
+        case "setTransactionIsolation":
+          if (!isolationChanged) {
+            originalIsolation = connection.getTransactionIsolation();
+            isolationChanged = true;
+          }
+          break;
+        case "setCatalog":
+          if (!catalogChanged) {
+            originalCatalog = connection.getCatalog();
+            catalogChanged = true;
+          }
+          break;
+        case "setSchema":
+          if (!schemaChanged) {
+            originalSchema = connection.getSchema();
+            schemaChanged = true;
+          }
+          break;
+        default:
+          break;
+      }
+    }
+
+    /**
+     * 连接上记录的set语句赋值的变量是否都在借用方的会话中,值不同的由借用方重新执行;
+     * 有借用方不需要的变量时执行重置语句
+     *
+     * @return 会话不同且无法重置时返回false,连接不能借给借用方
+     */
+    private boolean matchSession(Map<String, String> session, String sessionResetSql) {
+      if (sessionStatements == null || sessionStatements.isEmpty()) {
+        return true;
+      }
+      if (session != null && session.keySet().containsAll(sessionStatements.keySet())) {
+        return true;
+      }
+      try {
+        return resetSession(sessionResetSql);
+      } catch (SQLException e) {
+        LOGGER.debug("reset pooled connection session failed", e);
+        return false;
+      }
+    }
+
+    private boolean resetSession(String sessionResetSql) throws SQLException {
+      if (sessionResetSql == null) {
+        return false;
+      }
+      Statement statement = connection.createStatement();
+      try {
+        statement.execute(sessionResetSql);
+      } finally {
+        statement.close();
+      }
+      sessionModified = false;
+      sessionStatements = null;
+      return true;
+    }
+
+    /**
+     * 恢复被修改过的会话状态,未提交的事务回滚
+     *
+     * @param sessionResetSql 执行过没有记录的set语句时执行的重置语句,为null时不能恢复
+     * @return 是否成功,失败时连接不能再使用
+     */
+    private boolean reset(String sessionResetSql) {
+      try {
+        if (autoCommitChanged) {
+          if (!connection.getAutoCommit()) {
+            connection.rollback();
+            connection.setAutoCommit(true);
+          }
+          autoCommitChanged = false;
+        }
+        if (readOnlyChanged) {
+          if (connection.isReadOnly()) {
+            connection.setReadOnly(false);
+          }
+          readOnlyChanged = false;
+        }
+        if (isolationChanged) {
+          connection.setTransactionIsolation(originalIsolation);
+          isolationChanged = false;
+        }
+        if (catalogChanged) {
+          if (originalCatalog != null) {
+            connection.setCatalog(originalCatalog);
+          }
+          catalogChanged = false;
+        }
+        if (schemaChanged) {
+          if (originalSchema != null) {
+            connection.setSchema(originalSchema);
+          }
+          schemaChanged = false;
+        }
+        return !sessionModified || resetSession(sessionResetSql);
+      } catch (SQLException e) {
+        LOGGER.debug("reset pooled connection failed", e);
+        return false;
+      }
+    }
+  }
+
+  /**
+   * 一次借出的代理连接,关闭后不能再使用,重复关闭没有影响
+   */
+  private final class Lease implements InvocationHandler {
+    private final PooledEntry entry;
+    private boolean returned;
+
+    private Lease(PooledEntry entry) {
+      this.entry = entry;
+    }
+
+    @Override public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      String name = method.getName();
+      switch (name) {
+        case "close":
+          if (!returned) {
+            returned = true;
+            giveBack(entry);
+          }
+          return null;
+        case "isClosed":
+          return returned || entry.connection.isClosed();
+        case "equals":
+          return proxy == args[0];
+        case "hashCode":
+          return System.identityHashCode(proxy);
+        case "toString":
+          return "PooledConnection{" + entry.connection + '}';
+        default:
+          break;
+      }
+      if (returned) {
+        throw new SQLException("No operations allowed after connection closed.");
+      }
+      if (name.startsWith("set")) {
+        entry.beforeChange(name);
+      }
+      try {
+        return method.invoke(entry.connection, args);
+      } catch (InvocationTargetException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof SQLException && SQLExceptions.isConnectionError((SQLException) cause)) {
+          entry.broken = true;
+        }
+        throw cause;
+      }
+    }
+  }
+}
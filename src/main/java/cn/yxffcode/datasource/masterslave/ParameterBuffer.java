@@ -0,0 +1,520 @@
+package cn.yxffcode.datasource.masterslave;
+
+import java.io.InputStream;
+import java.io.Reader;
+import java.math.BigDecimal;
+import java.net.URL;
+import java.sql.Array;
+import java.sql.Blob;
+import java.sql.Clob;
+import java.sql.Date;
+import java.sql.NClob;
+import java.sql.PreparedStatement;
+import java.sql.Ref;
+import java.sql.RowId;
+import java.sql.SQLException;
+import java.sql.SQLXML;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.time.temporal.TemporalAccessor;
+import java.util.Arrays;
+import java.util.Calendar;
+
+/**
+ * 记录PreparedStatement上设置的参数,执行时才设置到选定的物理Statement上,
+ * 使路由可以推迟到执行时,并且可以在重试、对冲时重新设置
+ * <p/>
+ * 每个参数位置保存一个类型标记,基本类型的值保存在long数组中,不装箱;
+ * 对象参数保存在Object数组中,长度、sqlType等附加参数保存在各自的数组中
+ * <p/>
+ * 流类型的参数只能读取一次,设置了这类参数时{@link #isReplayable()}返回false
+ * <p/>
+ * {@link #clear()}之后下一次设置到物理Statement上时先清空物理Statement上的参数,
+ * 避免没有重新设置的参数沿用上一次执行的值
+ *
+ * @author gaohang
+ */
+final class ParameterBuffer {
+
+  private static final byte UNSET = 0;
+  static final byte NULL = 1;
+  static final byte NULL_TYPE_NAME = 2;
+  static final byte BOOLEAN = 3;
+  static final byte BYTE = 4;
+  static final byte SHORT = 5;
+  static final byte INT = 6;
+  static final byte LONG = 7;
+  static final byte FLOAT = 8;
+  static final byte DOUBLE = 9;
+  static final byte BIG_DECIMAL = 10;
+  static final byte STRING = 11;
+  static final byte BYTES = 12;
+  static final byte DATE = 13;
+  static final byte TIME = 14;
+  static final byte TIMESTAMP = 15;
+  static final byte OBJECT = 16;
+  static final byte OBJECT_TYPE = 17;
+  static final byte OBJECT_TYPE_SCALE = 18;
+  static final byte REF = 19;
+  static final byte BLOB = 20;
+  static final byte CLOB = 21;
+  static final byte ARRAY = 22;
+  static final byte URL = 23;
+  static final byte ROW_ID = 24;
+  static final byte NSTRING = 25;
+  static final byte NCLOB = 26;
+  static final byte SQLXML = 27;
+  /**
+   * 从这里开始是只能读取一次的流参数
+   */
+  private static final byte FIRST_STREAM = 64;
+  static final byte ASCII_STREAM = 64;
+  static final byte UNICODE_STREAM = 65;
+  static final byte BINARY_STREAM = 66;
+  static final byte CHARACTER_STREAM = 67;
+  static final byte NCHARACTER_STREAM = 68;
+  static final byte CLOB_READER = 69;
+  static final byte BLOB_STREAM = 70;
+  static final byte NCLOB_READER = 71;
+
+  /**
+   * 流参数没有指定长度
+   */
+  private static final long NO_LENGTH = -1;
+  /**
+   * 流参数的长度是int
+   */
+  private static final int INT_LENGTH = 1;
+
+  private byte[] kinds;
+  private long[] primitives;
+  private int[] extraInts;
+  private Object[] values;
+  private Object[] extras;
+  /**
+   * 已经设置的最大的参数位置
+   */
+  private int size;
+  /**
+   * 上一次设置到物理Statement之后是否清空过参数
+   */
+  private boolean cleared;
+
+  ParameterBuffer() {
+    this(8);
+  }
+
+  private ParameterBuffer(int capacity) {
+    kinds = new byte[capacity];
+    primitives = new long[capacity];
+    extraInts = new int[capacity];
+    values = new Object[capacity];
+    extras = new Object[capacity];
+  }
+
+  void setNull(int parameterIndex, int sqlType) throws SQLException {
+    slot(parameterIndex, NULL, sqlType, 0, null, null);
+  }
+
+  void setNull(int parameterIndex, int sqlType, String typeName) throws SQLException {
+    slot(parameterIndex, NULL_TYPE_NAME, sqlType, 0, null, typeName);
+  }
+
+  void setBoolean(int parameterIndex, boolean x) throws SQLException {
+    slot(parameterIndex, BOOLEAN, x ? 1 : 0, 0, null, null);
+  }
+
+  void setByte(int parameterIndex, byte x) throws SQLException {
+    slot(parameterIndex, BYTE, x, 0, null, null);
+  }
+
+  void setShort(int parameterIndex, short x) throws SQLException {
+    slot(parameterIndex, SHORT, x, 0, null, null);
+  }
+
+  void setInt(int parameterIndex, int x) throws SQLException {
+    slot(parameterIndex, INT, x, 0, null, null);
+  }
+
+  void setLong(int parameterIndex, long x) throws SQLException {
+    slot(parameterIndex, LONG, x, 0, null, null);
+  }
+
+  void setFloat(int parameterIndex, float x) throws SQLException {
+    slot(parameterIndex, FLOAT, Float.floatToRawIntBits(x), 0, null, null);
+  }
+
+  void setDouble(int parameterIndex, double x) throws SQLException {
+    slot(parameterIndex, DOUBLE, Double.doubleToRawLongBits(x), 0, null, null);
+  }
+
+  /**
+   * 设置对象参数
+   *
+   * @param kind 参数类型,为本类中的常量
+   */
+  void set(int parameterIndex, byte kind, Object x) throws SQLException {
+    slot(parameterIndex, kind, NO_LENGTH, 0, x, null);
+  }
+
+  /**
+   * 设置带Calendar的日期参数
+   */
+  void set(int parameterIndex, byte kind, Object x, Calendar cal) throws SQLException {
+    slot(parameterIndex, kind, NO_LENGTH, 0, x, cal);
+  }
+
+  void setObject(int parameterIndex, Object x, int targetSqlType) throws SQLException {
+    slot(parameterIndex, OBJECT_TYPE, targetSqlType, 0, x, null);
+  }
+
+  void setObject(int parameterIndex, Object x, int targetSqlType, int scaleOrLength)
+      throws SQLException {
+    slot(parameterIndex, OBJECT_TYPE_SCALE, targetSqlType, scaleOrLength, x, null);
+  }
+
+  /**
+   * 设置长度为int的流参数
+   */
+  void setStream(int parameterIndex, byte kind, Object x, int length) throws SQLException {
+    slot(parameterIndex, kind, length, INT_LENGTH, x, null);
+  }
+
+  /**
+   * 设置长度为long的流参数
+   */
+  void setStream(int parameterIndex, byte kind, Object x, long length) throws SQLException {
+    slot(parameterIndex, kind, length, 0, x, null);
+  }
+
+  private void slot(int parameterIndex, byte kind, long primitive, int extraInt, Object value,
+                    Object extra) throws SQLException {
+    if (parameterIndex <= 0) {
+      throw new SQLException("parameter index out of range:" + parameterIndex);
+    }
+    int i = parameterIndex - 1;
+    if (i >= kinds.length) {
+      grow(parameterIndex);
+    }
+    kinds[i] = kind;
+    primitives[i] = primitive;
+    extraInts[i] = extraInt;
+    values[i] = value;
+    extras[i] = extra;
+    if (parameterIndex > size) {
+      size = parameterIndex;
+    }
+  }
+
+  private void grow(int minCapacity) {
+    int capacity = Math.max(minCapacity, kinds.length << 1);
+    kinds = Arrays.copyOf(kinds, capacity);
+    primitives = Arrays.copyOf(primitives, capacity);
+    extraInts = Arrays.copyOf(extraInts, capacity);
+    values = Arrays.copyOf(values, capacity);
+    extras = Arrays.copyOf(extras, capacity);
+  }
+
+  void clear() {
+    Arrays.fill(kinds, 0, size, UNSET);
+    Arrays.fill(values, 0, size, null);
+    Arrays.fill(extras, 0, size, null);
+    size = 0;
+    cleared = true;
+  }
+
+  boolean isEmpty() {
+    return size == 0;
+  }
+
+  /**
+   * 是否可以设置到多个物理Statement上
+   */
+  boolean isReplayable() {
+    for (int i = 0; i < size; i++) {
+      if (kinds[i] >= FIRST_STREAM) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  ParameterBuffer copy() {
+    ParameterBuffer copy = new ParameterBuffer(Math.max(size, 1));
+    System.arraycopy(kinds, 0, copy.kinds, 0, size);
+    System.arraycopy(primitives, 0, copy.primitives, 0, size);
+    System.arraycopy(extraInts, 0, copy.extraInts, 0, size);
+    System.arraycopy(values, 0, copy.values, 0, size);
+    System.arraycopy(extras, 0, copy.extras, 0, size);
+    copy.size = size;
+    return copy;
+  }
+
+  /**
+   * 把参数设置到物理Statement上
+   */
+  void apply(PreparedStatement statement) throws SQLException {
+    if (cleared) {
+      statement.clearParameters();
+      cleared = false;
+    }
+    apply(statement, 0);
+  }
+
+  /**
+   * 把参数设置到物理Statement上,参数位置加上offset,用于多行insert中的一行
+   */
+  void apply(PreparedStatement statement, int offset) throws SQLException {
+    for (int i = 0; i < size; i++) {
+      apply(statement, i, offset + i + 1);
+    }
+  }
+
+  /**
+   * 参数发送到数据库时大致的字节数,用于多行insert分块;
+   * 长度未知的流参数、Blob、Clob等大小无法估计的参数返回-1
+   */
+  long estimatedSize() {
+    long total = 0;
+    for (int i = 0; i < size; i++) {
+      long parameterSize;
+      switch (kinds[i]) {
+        case UNSET:
+        case NULL:
+        case NULL_TYPE_NAME:
+          parameterSize = 4;
+          break;
+        case BOOLEAN:
+        case BYTE:
+        case SHORT:
+        case INT:
+        case LONG:
+        case FLOAT:
+        case DOUBLE:
+          parameterSize = 24;
+          break;
+        case BIG_DECIMAL:
+        case STRING:
+        case NSTRING:
+        case BYTES:
+        case DATE:
+        case TIME:
+        case TIMESTAMP:
+        case OBJECT:
+        case OBJECT_TYPE:
+        case OBJECT_TYPE_SCALE:
+        case URL:
+          parameterSize = estimatedSize(values[i]);
+          break;
+        default:
+          parameterSize = kinds[i] >= FIRST_STREAM && primitives[i] != NO_LENGTH
+              ? primitives[i] * 2 : -1;
+          break;
+      }
+      if (parameterSize < 0) {
+        return -1;
+      }
+      total += parameterSize;
+    }
+    return total;
+  }
+
+  /**
+   * 按运行时类型估计对象参数的字节数,无法估计时返回-1
+   */
+  private static long estimatedSize(Object value) {
+    if (value == null) {
+      return 4;
+    }
+    if (value instanceof String) {
+      //utf8最多3个字节,以及转义和引号
+      return ((String) value).length() * 3L + 2;
+    }
+    if (value instanceof byte[]) {
+      return ((byte[]) value).length * 2L + 3;
+    }
+    if (value instanceof BigDecimal || value instanceof URL) {
+      return value.toString().length() + 2;
+    }
+    if (value instanceof Number || value instanceof Boolean || value instanceof Character
+        || value instanceof java.util.Date || value instanceof Calendar
+        || value instanceof TemporalAccessor) {
+      return 32;
+    }
+    return -1;
+  }
+
+  private void apply(PreparedStatement statement, int i, int index) throws SQLException {
+    long primitive = primitives[i];
+    Object value = values[i];
+    switch (kinds[i]) {
+      case UNSET:
+        break;
+      case NULL:
+        statement.setNull(index, (int) primitive);
+        break;
+      case NULL_TYPE_NAME:
+        statement.setNull(index, (int) primitive, (String) extras[i]);
+        break;
+      case BOOLEAN:
+        statement.setBoolean(index, primitive != 0);
+        break;
+      case BYTE:
+        statement.setByte(index, (byte) primitive);
+        break;
+      case SHORT:
+        statement.setShort(index, (short) primitive);
+        break;
+      case INT:
+        statement.setInt(index, (int) primitive);
+        break;
+      case LONG:
+        statement.setLong(index, primitive);
+        break;
+      case FLOAT:
+        statement.setFloat(index, Float.intBitsToFloat((int) primitive));
+        break;
+      case DOUBLE:
+        statement.setDouble(index, Double.longBitsToDouble(primitive));
+        break;
+      case BIG_DECIMAL:
+        statement.setBigDecimal(index, (BigDecimal) value);
+        break;
+      case STRING:
+        statement.setString(index, (String) value);
+        break;
+      case BYTES:
+        statement.setBytes(index, (byte[]) value);
+        break;
+      case DATE:
+        if (extras[i] == null) {
+          statement.setDate(index, (Date) value);
+        } else {
+          statement.setDate(index, (Date) value, (Calendar) extras[i]);
+        }
+        break;
+      case TIME:
+        if (extras[i] == null) {
+          statement.setTime(index, (Time) value);
+        } else {
+          statement.setTime(index, (Time) value, (Calendar) extras[i]);
+        }
+        break;
+      case TIMESTAMP:
+        if (extras[i] == null) {
+          statement.setTimestamp(index, (Timestamp) value);
+        } else {
+          statement.setTimestamp(index, (Timestamp) value, (Calendar) extras[i]);
+        }
+        break;
+      case OBJECT:
+        statement.setObject(index, value);
+        break;
+      case OBJECT_TYPE:
+        statement.setObject(index, value, (int) primitive);
+        break;
+      case OBJECT_TYPE_SCALE:
+        statement.setObject(index, value, (int) primitive, extraInts[i]);
+        break;
+      case REF:
+        statement.setRef(index, (Ref) value);
+        break;
+      case BLOB:
+        statement.setBlob(index, (Blob) value);
+        break;
+      case CLOB:
+        statement.setClob(index, (Clob) value);
+        break;
+      case ARRAY:
+        statement.setArray(index, (Array) value);
+        break;
+      case URL:
+        statement.setURL(index, (URL) value);
+        break;
+      case ROW_ID:
+        statement.setRowId(index, (RowId) value);
+        break;
+      case NSTRING:
+        statement.setNString(index, (String) value);
+        break;
+      case NCLOB:
+        statement.setNClob(index, (NClob) value);
+        break;
+      case SQLXML:
+        statement.setSQLXML(index, (SQLXML) value);
+        break;
+      default:
+        applyStream(statement, i, index);
+        break;
+    }
+  }
+
+  @SuppressWarnings("deprecation")
+  private void applyStream(PreparedStatement statement, int i, int index) throws SQLException {
+    long length = primitives[i];
+    boolean intLength = extraInts[i] == INT_LENGTH;
+    Object value = values[i];
+    switch (kinds[i]) {
+      case ASCII_STREAM:
+        if (intLength) {
+          statement.setAsciiStream(index, (InputStream) value, (int) length);
+        } else if (length == NO_LENGTH) {
+          statement.setAsciiStream(index, (InputStream) value);
+        } else {
+          statement.setAsciiStream(index, (InputStream) value, length);
+        }
+        break;
+      case UNICODE_STREAM:
+        statement.setUnicodeStream(index, (InputStream) value, (int) length);
+        break;
+      case BINARY_STREAM:
+        if (intLength) {
+          statement.setBinaryStream(index, (InputStream) value, (int) length);
+        } else if (length == NO_LENGTH) {
+          statement.setBinaryStream(index, (InputStream) value);
+        } else {
+          statement.setBinaryStream(index, (InputStream) value, length);
+        }
+        break;
+      case CHARACTER_STREAM:
+        if (intLength) {
+          statement.setCharacterStream(index, (Reader) value, (int) length);
+        } else if (length == NO_LENGTH) {
+          statement.setCharacterStream(index, (Reader) value);
+        } else {
+          statement.setCharacterStream(index, (Reader) value, length);
+        }
+        break;
+      case NCHARACTER_STREAM:
+        if (length == NO_LENGTH) {
+          statement.setNCharacterStream(index, (Reader) value);
+        } else {
+          statement.setNCharacterStream(index, (Reader) value, length);
+        }
+        break;
+      case CLOB_READER:
+        if (length == NO_LENGTH) {
+          statement.setClob(index, (Reader) value);
+        } else {
+          statement.setClob(index, (Reader) value, length);
+        }
+        break;
+      case BLOB_STREAM:
+        if (length == NO_LENGTH) {
+          statement.setBlob(index, (InputStream) value);
+        } else {
+          statement.setBlob(index, (InputStream) value, length);
+        }
+        break;
+      case NCLOB_READER:
+        if (length == NO_LENGTH) {
+          statement.setNClob(index, (Reader) value);
+        } else {
+          statement.setNClob(index, (Reader) value, length);
+        }
+        break;
+      default:
+        throw new SQLException("unknown parameter type:" + kinds[i]);
+    }
+  }
+}
@@ -0,0 +1,86 @@
+package cn.yxffcode.datasource.masterslave;
+
+/**
+ * 内置连接池的配置,主库和所有从库共用一个全局的连接数上限
+ * <p/>
+ * 每个数据源保留的连接数按观察到的需求(同时使用的连接数)调整,全局上限用完时
+ * 从需求已经下降的数据源回收空闲连接,使容量在主库和从库之间转移
+ *
+ * @author gaohang
+ */
+public class PoolConfig {
+
+  /**
+   * 所有数据源的物理连接总数上限
+   */
+  private int maxTotal = 50;
+  /**
+   * 每个数据源至少保留的连接数
+   */
+  private int minIdle = 2;
+  /**
+   * 取连接最多等待的时间(毫秒)
+   */
+  private long borrowTimeout = 3000;
+  /**
+   * 超过需求的连接空闲多久(毫秒)后关闭
+   */
+  private long idleTimeout = 60000;
+  /**
+   * 空闲超过多久(毫秒)的连接在借出之前用{@link java.sql.Connection#isValid(int)}检查,小于0时不检查
+   */
+  private long validationIdleTime = 5000;
+  /**
+   * 连接上直接执行过set等修改会话变量的语句时,归还时执行的重置语句(例如PostgreSQL的RESET ALL);
+   * 为null时直接关闭这个连接。重置语句不应该释放服务端的预编译语句,否则缓存的PreparedStatement会失效
+   */
+  private String sessionResetSql;
+
+  public int getMaxTotal() {
+    return maxTotal;
+  }
+
+  public void setMaxTotal(int maxTotal) {
+    this.maxTotal = maxTotal;
+  }
+
+  public int getMinIdle() {
+    return minIdle;
+  }
+
+  public void setMinIdle(int minIdle) {
+    this.minIdle = minIdle;
+  }
+
+  public long getBorrowTimeout() {
+    return borrowTimeout;
+  }
+
+  public void setBorrowTimeout(long borrowTimeout) {
+    this.borrowTimeout = borrowTimeout;
+  }
+
+  public long getIdleTimeout() {
+    return idleTimeout;
+  }
+
+  public void setIdleTimeout(long idleTimeout) {
+    this.idleTimeout = idleTimeout;
+  }
+
+  public long getValidationIdleTime() {
+    return validationIdleTime;
+  }
+
+  public void setValidationIdleTime(long validationIdleTime) {
+    this.validationIdleTime = validationIdleTime;
+  }
+
+  public String getSessionResetSql() {
+    return sessionResetSql;
+  }
+
+  public void setSessionResetSql(String sessionResetSql) {
+    this.sessionResetSql = sessionResetSql;
+  }
+}
@@ -0,0 +1,59 @@
+package cn.yxffcode.datasource.masterslave;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 随机选出两个可用的从库,取其中负载较低的一个
+ * <p/>
+ * 与{@link LeastActiveLoadBalancer}相比不需要遍历所有从库,也不会让所有线程同时涌向同一个从库
+ *
+ * @author gaohang
+ */
+class PowerOfTwoChoicesLoadBalancer implements LoadBalancer {
+
+  @Override public DataSourceNode select(List<DataSourceNode> slaves) {
+    int size = slaves.size();
+    if (size == 0) {
+      return null;
+    }
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    if (size == 1) {
+      DataSourceNode node = slaves.get(0);
+      return node.isAvailable() ? node : null;
+    }
+    int first = random.nextInt(size);
+    int second = random.nextInt(size - 1);
+    if (second >= first) {
+      second++;
+    }
+    DataSourceNode a = slaves.get(first);
+    DataSourceNode b = slaves.get(second);
+    boolean aAvailable = a.isAvailable();
+    boolean bAvailable = b.isAvailable();
+    if (aAvailable && bAvailable) {
+      return compare(a, b) <= 0 ? a : b;
+    }
+    if (aAvailable) {
+      return a;
+    }
+    if (bAvailable) {
+      return b;
+    }
+    //两个都不可用,从第一个位置开始找下一个可用的从库
+    for (int i = 1; i < size; i++) {
+      DataSourceNode node = slaves.get((first + i) % size);
+      if (node.isAvailable()) {
+        return node;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * 比较两个从库的负载,返回值小于0表示a的负载更低
+   */
+  protected int compare(DataSourceNode a, DataSourceNode b) {
+    return Integer.compare(a.getActiveConnections(), b.getActiveConnections());
+  }
+}
@@ -1,15 +1,18 @@
 package cn.yxffcode.datasource.masterslave;
 
+import cn.yxffcode.datasource.RouteHint;
 import cn.yxffcode.datasource.SQLParser;
-import cn.yxffcode.datasource.SqlType;
+import cn.yxffcode.datasource.masterslave.StatementCache.StatementKey;
 
 import java.io.InputStream;
 import java.io.Reader;
 import java.math.BigDecimal;
 import java.net.URL;
 import java.sql.Array;
+import java.sql.BatchUpdateException;
 import java.sql.Blob;
 import java.sql.Clob;
+import java.sql.Connection;
 import java.sql.Date;
 import java.sql.NClob;
 import java.sql.ParameterMetaData;
@@ -20,9 +23,11 @@ import java.sql.ResultSetMetaData;
 import java.sql.RowId;
 import java.sql.SQLException;
 import java.sql.SQLXML;
+import java.sql.Statement;
 import java.sql.Time;
 import java.sql.Timestamp;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.List;
 
@@ -47,9 +52,33 @@ final class PreparedMasterslaveStatement extends MasterslaveStatement implements
    * 是否是读SQL
    */
   private boolean isReadStatement;
+  private boolean classified;
+
+  /**
+   * SQL开头的路由注释,没有时为null
+   */
+  private RouteHint routeHint;
 
   private final List<ResultSet> openedResultSets = new ArrayList<>(1);
 
+  /**
+   * 设置的参数,执行时才设置到物理Statement上
+   */
+  private final ParameterBuffer parameters = new ParameterBuffer();
+  /**
+   * addBatch记录的每一行参数,executeBatch时在写连接上执行
+   */
+  private List<ParameterBuffer> batch;
+  /**
+   * 是否要求返回自增键,要求时批量insert不改写成多行insert
+   */
+  private boolean generatedKeysRequested;
+  /**
+   * 批量insert改写成的多行insert,第一次批量执行时解析,不能改写时为null
+   */
+  private MultiRowInsert multiRowInsert;
+  private boolean multiRowInsertResolved;
+
   PreparedMasterslaveStatement(MasterslaveConnection masterslaveConnection, int resultSetType,
                                int resultSetConcurrency,
                                int resultSetHoldability, String preparingSql) throws SQLException {
@@ -71,17 +100,12 @@ final class PreparedMasterslaveStatement extends MasterslaveStatement implements
                                       final String preparingSql) throws SQLException {
     super(masterslaveConnection, 0, 0, 0);
     this.preparingSql = preparingSql;
-    SqlType sqlType = SQLParser.getSqlType(preparingSql);
-    this.isReadStatement = sqlType.isRead();
-    this.preparedStatementHolder = new AbstractPreparedStatementHolder() {
-      @Override protected PreparedStatement createReadStatement() throws SQLException {
-        return getMasterslaveConnection().targetConnection(true)
-            .prepareStatement(preparingSql, autoGeneratedKeys);
-      }
-
-      @Override protected PreparedStatement createWriteStatement() throws SQLException {
-        return getMasterslaveConnection().targetConnection(false)
-            .prepareStatement(preparingSql, autoGeneratedKeys);
+    this.generatedKeysRequested = autoGeneratedKeys == Statement.RETURN_GENERATED_KEYS;
+    initRoute();
+    this.preparedStatementHolder = new AbstractPreparedStatementHolder(
+        new StatementKey(preparingSql, 0, 0, 0, autoGeneratedKeys)) {
+      @Override protected PreparedStatement prepare(Connection connection) throws SQLException {
+        return connection.prepareStatement(preparingSql, autoGeneratedKeys);
       }
     };
   }
@@ -91,17 +115,12 @@ final class PreparedMasterslaveStatement extends MasterslaveStatement implements
                                       final String[] columnNames) throws SQLException {
     super(masterslaveConnection, 0, 0, 0);
     this.preparingSql = preparingSql;
-    SqlType sqlType = SQLParser.getSqlType(preparingSql);
-    this.isReadStatement = sqlType.isRead();
-    this.preparedStatementHolder = new AbstractPreparedStatementHolder() {
-      @Override protected PreparedStatement createReadStatement() throws SQLException {
-        return getMasterslaveConnection().targetConnection(true)
-            .prepareStatement(preparingSql, columnNames);
-      }
-
-      @Override protected PreparedStatement createWriteStatement() throws SQLException {
-        return getMasterslaveConnection().targetConnection(false)
-            .prepareStatement(preparingSql, columnNames);
+    this.generatedKeysRequested = true;
+    initRoute();
+    //按列指定自增键的语句不缓存
+    this.preparedStatementHolder = new AbstractPreparedStatementHolder(null) {
+      @Override protected PreparedStatement prepare(Connection connection) throws SQLException {
+        return connection.prepareStatement(preparingSql, columnNames);
       }
     };
   }
@@ -111,40 +130,48 @@ final class PreparedMasterslaveStatement extends MasterslaveStatement implements
                                       final int[] columnIndexes) throws SQLException {
     super(masterslaveConnection, 0, 0, 0);
     this.preparingSql = preparingSql;
-    SqlType sqlType = SQLParser.getSqlType(preparingSql);
-    this.isReadStatement = sqlType.isRead();
-    this.preparedStatementHolder = new AbstractPreparedStatementHolder() {
-      @Override protected PreparedStatement createReadStatement() throws SQLException {
-        return getMasterslaveConnection().targetConnection(true)
-            .prepareStatement(preparingSql, columnIndexes);
-      }
-
-      @Override protected PreparedStatement createWriteStatement() throws SQLException {
-        return getMasterslaveConnection().targetConnection(false)
-            .prepareStatement(preparingSql, columnIndexes);
+    this.generatedKeysRequested = true;
+    initRoute();
+    //按列指定自增键的语句不缓存
+    this.preparedStatementHolder = new AbstractPreparedStatementHolder(null) {
+      @Override protected PreparedStatement prepare(Connection connection) throws SQLException {
+        return connection.prepareStatement(preparingSql, columnIndexes);
       }
     };
   }
 
+  private void initRoute() throws SQLException {
+    this.routeHint = SQLParser.getRouteHint(preparingSql);
+  }
+
+  /**
+   * 第一次使用时才解析语句类型,指定从库的语句和只读连接上的语句可能不需要解析
+   */
+  private boolean isReadStatement() throws SQLException {
+    if (!classified) {
+      isReadStatement = (routeHint != null && !routeHint.isMaster())
+          || SQLParser.getSqlType(preparingSql).isRead();
+      classified = true;
+    }
+    return isReadStatement;
+  }
+
   private void initStatementHolderDefault() throws SQLException {
     if (preparedStatementHolder == null) {
-      this.preparedStatementHolder = new AbstractPreparedStatementHolder() {
-        @Override protected PreparedStatement createReadStatement() throws SQLException {
-          return getMasterslaveConnection().targetConnection(true).prepareStatement(preparingSql);
-        }
-
-        @Override protected PreparedStatement createWriteStatement() throws SQLException {
-          return getMasterslaveConnection().targetConnection(false).prepareStatement(preparingSql);
+      this.preparedStatementHolder = new AbstractPreparedStatementHolder(
+          new StatementKey(preparingSql, 0, 0, 0, NO_AUTO_GENERATED_KEYS)) {
+        @Override protected PreparedStatement prepare(Connection connection) throws SQLException {
+          return connection.prepareStatement(preparingSql);
         }
       };
-      isReadStatement = SQLParser.getSqlType(preparingSql).isRead();
+      initRoute();
     }
   }
 
-  @Override public void close() throws SQLException {
+  @Override void doClose() throws SQLException {
     SQLException last = null;
     try {
-      super.close();
+      super.doClose();
     } catch (SQLException e) {
       last = e;
     }
@@ -167,6 +194,48 @@ final class PreparedMasterslaveStatement extends MasterslaveStatement implements
     }
   }
 
+  @Override boolean hasOpenResultSet(Connection connection) throws SQLException {
+    if (super.hasOpenResultSet(connection)) {
+      return true;
+    }
+    for (int i = 0, size = openedResultSets.size(); i < size; i++) {
+      ResultSet resultSet = openedResultSets.get(i);
+      if (!resultSet.isClosed()
+          && preparedStatementHolder.connectionOf(resultSet.getStatement()) == connection) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @Override void closeResultSets() throws SQLException {
+    SQLException last = null;
+    try {
+      super.closeResultSets();
+    } catch (SQLException e) {
+      last = e;
+    }
+    for (int i = 0, size = openedResultSets.size(); i < size; i++) {
+      ResultSet resultSet = openedResultSets.get(i);
+      try {
+        if (!resultSet.isClosed()) {
+          resultSet.close();
+        }
+      } catch (SQLException e) {
+        last = e;
+      }
+    }
+    openedResultSets.clear();
+    if (last != null) {
+      throw last;
+    }
+  }
+
+  @Override void closeStatementsOn(Connection connection) throws SQLException {
+    super.closeStatementsOn(connection);
+    preparedStatementHolder.closeStatementsOn(connection);
+  }
+
   @Override public ResultSet executeQuery() throws SQLException {
     checkClosed();
     execute();
@@ -181,289 +250,544 @@ final class PreparedMasterslaveStatement extends MasterslaveStatement implements
 
   @Override public void setNull(int parameterIndex, int sqlType) throws SQLException {
     checkClosed();
-    preparedStatementHolder.detectStatement().setNull(parameterIndex, sqlType);
+    parameters.setNull(parameterIndex, sqlType);
   }
 
   @Override public void setBoolean(int parameterIndex, boolean x) throws SQLException {
     checkClosed();
-    preparedStatementHolder.detectStatement().setBoolean(parameterIndex, x);
+    parameters.setBoolean(parameterIndex, x);
   }
 
   @Override public void setByte(int parameterIndex, byte x) throws SQLException {
     checkClosed();
-    preparedStatementHolder.detectStatement().setByte(parameterIndex, x);
+    parameters.setByte(parameterIndex, x);
   }
 
   @Override public void setShort(int parameterIndex, short x) throws SQLException {
     checkClosed();
-    preparedStatementHolder.detectStatement().setShort(parameterIndex, x);
+    parameters.setShort(parameterIndex, x);
   }
 
   @Override public void setInt(int parameterIndex, int x) throws SQLException {
     checkClosed();
-    preparedStatementHolder.detectStatement().setInt(parameterIndex, x);
+    parameters.setInt(parameterIndex, x);
   }
 
   @Override public void setLong(int parameterIndex, long x) throws SQLException {
     checkClosed();
-    preparedStatementHolder.detectStatement().setLong(parameterIndex, x);
+    parameters.setLong(parameterIndex, x);
   }
 
   @Override public void setFloat(int parameterIndex, float x) throws SQLException {
     checkClosed();
-    preparedStatementHolder.detectStatement().setFloat(parameterIndex, x);
+    parameters.setFloat(parameterIndex, x);
   }
 
   @Override public void setDouble(int parameterIndex, double x) throws SQLException {
     checkClosed();
-    preparedStatementHolder.detectStatement().setDouble(parameterIndex, x);
+    parameters.setDouble(parameterIndex, x);
   }
 
   @Override public void setBigDecimal(int parameterIndex, BigDecimal x) throws SQLException {
     checkClosed();
-    preparedStatementHolder.detectStatement().setBigDecimal(parameterIndex, x);
+    parameters.set(parameterIndex, ParameterBuffer.BIG_DECIMAL, x);
   }
 
   @Override public void setString(int parameterIndex, String x) throws SQLException {
     checkClosed();
-    preparedStatementHolder.detectStatement().setString(parameterIndex, x);
+    parameters.set(parameterIndex, ParameterBuffer.STRING, x);
   }
 
   @Override public void setBytes(int parameterIndex, byte[] x) throws SQLException {
     checkClosed();
-    preparedStatementHolder.detectStatement().setBytes(parameterIndex, x);
+    parameters.set(parameterIndex, ParameterBuffer.BYTES, x);
   }
 
   @Override public void setDate(int parameterIndex, Date x) throws SQLException {
     checkClosed();
-    preparedStatementHolder.detectStatement().setDate(parameterIndex, x);
+    parameters.set(parameterIndex, ParameterBuffer.DATE, x);
   }
 
   @Override public void setTime(int parameterIndex, Time x) throws SQLException {
     checkClosed();
-    preparedStatementHolder.detectStatement().setTime(parameterIndex, x);
+    parameters.set(parameterIndex, ParameterBuffer.TIME, x);
   }
 
   @Override public void setTimestamp(int parameterIndex, Timestamp x) throws SQLException {
     checkClosed();
-    preparedStatementHolder.detectStatement().setTimestamp(parameterIndex, x);
+    parameters.set(parameterIndex, ParameterBuffer.TIMESTAMP, x);
   }
 
   @Override public void setAsciiStream(int parameterIndex, InputStream x, int length)
       throws SQLException {
     checkClosed();
-    preparedStatementHolder.detectStatement().setAsciiStream(parameterIndex, x, length);
+    parameters.setStream(parameterIndex, ParameterBuffer.ASCII_STREAM, x, length);
   }
 
+  @Deprecated
   @Override public void setUnicodeStream(int parameterIndex, InputStream x, int length)
       throws SQLException {
     checkClosed();
-    preparedStatementHolder.detectStatement().setUnicodeStream(parameterIndex, x, length);
+    parameters.setStream(parameterIndex, ParameterBuffer.UNICODE_STREAM, x, length);
   }
 
   @Override public void setBinaryStream(int parameterIndex, InputStream x, int length)
       throws SQLException {
     checkClosed();
-    preparedStatementHolder.detectStatement().setBinaryStream(parameterIndex, x, length);
+    parameters.setStream(parameterIndex, ParameterBuffer.BINARY_STREAM, x, length);
   }
 
   @Override public void clearParameters() throws SQLException {
     checkClosed();
-    preparedStatementHolder.detectStatement().clearParameters();
+    parameters.clear();
   }
 
   @Override public void setObject(int parameterIndex, Object x, int targetSqlType)
       throws SQLException {
     checkClosed();
-    preparedStatementHolder.detectStatement().setObject(parameterIndex, x, targetSqlType);
+    parameters.setObject(parameterIndex, x, targetSqlType);
   }
 
   @Override public void setObject(int parameterIndex, Object x) throws SQLException {
     checkClosed();
-    preparedStatementHolder.detectStatement().setObject(parameterIndex, x);
+    parameters.set(parameterIndex, ParameterBuffer.OBJECT, x);
   }
 
+  /**
+   * 执行时才选择节点并创建物理Statement,再设置记录的参数;
+   * 读连接上的读在连接级别的错误后可以换一个从库重试
+   */
   @Override public boolean execute() throws SQLException {
-    PreparedStatement stm = preparedStatementHolder.detectStatement();
-    boolean hasResultSet = stm.execute();
+    checkClosed();
+    closeResultSets();
+    releaseHedge();
+    MasterslaveConnection masterslaveConnection = getMasterslaveConnection();
+    masterslaveConnection.releaseRetiredReadConnection();
+    masterslaveConnection.flushSession();
+    int retries = 0;
+    boolean hasResultSet;
+    boolean sessionStatement = SQLParser.isSetStatement(preparingSql);
+    if (sessionStatement && masterslaveConnection.applyTransactionStatement(preparingSql)) {
+      updateCount = 0;
+      currentResultSet = null;
+      return false;
+    }
+    while (true) {
+      try {
+        PreparedStatement stm = preparedStatementHolder.detectStatement();
+        if (sessionStatement) {
+          masterslaveConnection.sessionModified(preparedStatementHolder.connectionOf(stm));
+        }
+        parameters.apply(stm);
+        hasResultSet = executeOn(stm, preparedStatementHolder.currentNode());
+      } catch (SQLException e) {
+        preparedStatementHolder.executed();
+        if (!preparedStatementHolder.onReadConnection() || !parameters.isReplayable()
+            || !canRetryRead(e, retries)) {
+          throw e;
+        }
+        retries++;
+        preparedStatementHolder.readFailed();
+        masterslaveConnection.switchReadConnection();
+        continue;
+      }
+      preparedStatementHolder.executed();
+      break;
+    }
+    if (preparedStatementHolder.onWriteConnection() && !isReadStatement()) {
+      masterslaveConnection.afterWrite();
+    }
     if (hasResultSet) {
-      currentResultSet = stm.getResultSet();
+      currentResultSet = masterslaveConnection.wrapResultSet(this,
+          preparedStatementHolder.connectionOf(executedStatement),
+          executedStatement.getResultSet());
       openedResultSets.add(currentResultSet);
     } else {
-      updateCount = stm.getUpdateCount();
+      updateCount = executedStatement.getUpdateCount();
       currentResultSet = null;
     }
+    if (!preparedStatementHolder.onWriteConnection()) {
+      masterslaveConnection.afterRead();
+    }
+    return hasResultSet;
+  }
+
+  private boolean executeOn(PreparedStatement stm, DataSourceNode node) throws SQLException {
+    node.checkCircuit();
+    executedStatement = stm;
+    ReadHedger.HedgedRead hedge = null;
+    if (preparedStatementHolder.onReadConnection()) {
+      MasterslaveDataSource groupDataSource = getMasterslaveConnection().getGroupDataSource();
+      groupDataSource.getRetryBudget().onRequest();
+      ReadHedger readHedger = groupDataSource.getReadHedger();
+      if (readHedger != null && isReadStatement() && parameters.isReplayable()) {
+        hedge = readHedger.schedule(this, stm, node, preparingSql, hedgeCall());
+      }
+    }
+    long start = System.nanoTime();
+    boolean hasResultSet;
+    try {
+      hasResultSet = stm.execute();
+    } catch (SQLException e) {
+      if (hedge != null && hedge.onPrimaryDone()) {
+        //被对冲请求取消,只记录耗时
+        node.recordSuccess(System.nanoTime() - start);
+        return adoptHedge(hedge);
+      }
+      node.recordFailure(System.nanoTime() - start, e);
+      node.connectionFailed(preparedStatementHolder.connectionOf(stm), e);
+      throw e;
+    }
+    node.recordSuccess(System.nanoTime() - start);
+    if (hedge != null && hedge.onPrimaryDone()) {
+      if (hasResultSet) {
+        stm.getResultSet().close();
+      }
+      return adoptHedge(hedge);
+    }
     return hasResultSet;
   }
 
+  /**
+   * 对冲请求在另一个线程上执行,使用当前参数的副本
+   */
+  private ReadHedger.HedgeCall hedgeCall() {
+    final ParameterBuffer snapshot = parameters.copy();
+    return new ReadHedger.HedgeCall() {
+      @Override public Statement prepare(Connection connection) throws SQLException {
+        PreparedStatement statement = preparedStatementHolder.prepareOn(connection);
+        snapshot.apply(statement);
+        return statement;
+      }
+
+      @Override public boolean execute(Statement statement) throws SQLException {
+        return ((PreparedStatement) statement).execute();
+      }
+    };
+  }
+
+  /**
+   * 只记录当前的参数,executeBatch时才在写连接上设置
+   */
   @Override public void addBatch() throws SQLException {
-    preparedStatementHolder.detectStatement().addBatch();
+    checkClosed();
+    if (batch == null) {
+      batch = new ArrayList<>();
+    }
+    batch.add(parameters.copy());
+  }
+
+  /**
+   * 只清空addBatch记录的参数,不影响以普通SQL执行时使用的Statement
+   */
+  @Override public void clearBatch() throws SQLException {
+    checkClosed();
+    batch = null;
+  }
+
+  /**
+   * 在写连接上批量执行,开启rewriteBatchedInserts时insert ... values (...)改写成多行insert,
+   * 按maxBatchPacketSize分块执行,每一行的结果为{@link Statement#SUCCESS_NO_INFO}
+   */
+  @Override public int[] executeBatch() throws SQLException {
+    checkClosed();
+    closeResultSets();
+    releaseHedge();
+    if (batch == null || batch.isEmpty()) {
+      return new int[0];
+    }
+    List<ParameterBuffer> rows = batch;
+    batch = null;
+    MasterslaveConnection masterslaveConnection = getMasterslaveConnection();
+    masterslaveConnection.flushSession();
+    MultiRowInsert insert = rows.size() > 1 ? multiRowInsert() : null;
+    Connection connection = null;
+    PreparedStatement stm = null;
+    DataSourceNode node;
+    if (insert != null) {
+      connection = masterslaveConnection.targetConnection(false);
+      node = masterslaveConnection.getWriteNode();
+    } else {
+      stm = preparedStatementHolder.batchStatement();
+      node = preparedStatementHolder.currentNode();
+      connection = preparedStatementHolder.connectionOf(stm);
+    }
+    node.checkCircuit();
+    long start = System.nanoTime();
+    int[] result;
+    try {
+      result = insert != null ? executeMultiRow(connection, insert, rows)
+          : executeRows(stm, rows);
+    } catch (SQLException e) {
+      node.recordFailure(System.nanoTime() - start, e);
+      node.connectionFailed(connection, e);
+      throw e;
+    }
+    node.recordSuccess(System.nanoTime() - start);
+    masterslaveConnection.afterWrite();
+    return result;
+  }
+
+  private int[] executeRows(PreparedStatement stm, List<ParameterBuffer> rows)
+      throws SQLException {
+    stm.clearParameters();
+    for (int i = 0, size = rows.size(); i < size; i++) {
+      rows.get(i).apply(stm);
+      stm.addBatch();
+    }
+    return stm.executeBatch();
+  }
+
+  /**
+   * 按包大小和占位符个数的限制分块,每块执行一条多行insert
+   */
+  private int[] executeMultiRow(Connection connection, MultiRowInsert insert,
+                                List<ParameterBuffer> rows) throws SQLException {
+    long maxPacketSize = getMasterslaveConnection().getGroupDataSource().getMaxBatchPacketSize();
+    int[] result = new int[rows.size()];
+    int from = 0;
+    try {
+      while (from < rows.size()) {
+        int to = from;
+        long packetSize = insert.baseLength();
+        while (to < rows.size() && to - from < insert.maxRows()) {
+          long rowSize = rows.get(to).estimatedSize();
+          if (rowSize < 0) {
+            //大小无法估计的行(长度未知的流、Blob、Clob等)单独一块
+            if (to == from) {
+              to++;
+            }
+            break;
+          }
+          rowSize += insert.rowLength();
+          if (to > from && packetSize + rowSize > maxPacketSize) {
+            break;
+          }
+          packetSize += rowSize;
+          to++;
+        }
+        executeChunk(connection, insert, rows, from, to);
+        Arrays.fill(result, from, to, Statement.SUCCESS_NO_INFO);
+        from = to;
+      }
+    } catch (SQLException e) {
+      throw new BatchUpdateException(e.getMessage(), e.getSQLState(), e.getErrorCode(),
+          Arrays.copyOf(result, from), e);
+    }
+    return result;
+  }
+
+  private void executeChunk(Connection connection, MultiRowInsert insert,
+                            List<ParameterBuffer> rows, int from, int to) throws SQLException {
+    MasterslaveConnection masterslaveConnection = getMasterslaveConnection();
+    String sql = insert.sql(to - from);
+    StatementKey key = new StatementKey(sql, 0, 0, 0, NO_AUTO_GENERATED_KEYS);
+    PreparedStatement statement = masterslaveConnection.cachedStatement(connection, key);
+    if (statement == null) {
+      statement = connection.prepareStatement(sql);
+    }
+    try {
+      normalizeStatement(statement);
+      int offset = 0;
+      for (int i = from; i < to; i++) {
+        rows.get(i).apply(statement, offset);
+        offset += insert.getPlaceholdersPerRow();
+      }
+      statement.executeUpdate();
+    } finally {
+      if (!masterslaveConnection.cacheStatement(connection, key, statement)) {
+        statement.close();
+      }
+    }
+  }
+
+  private MultiRowInsert multiRowInsert() {
+    if (generatedKeysRequested
+        || !getMasterslaveConnection().getGroupDataSource().isRewriteBatchedInserts()) {
+      return null;
+    }
+    if (!multiRowInsertResolved) {
+      multiRowInsert = MultiRowInsert.of(preparingSql);
+      multiRowInsertResolved = true;
+    }
+    return multiRowInsert;
   }
 
   @Override public void setCharacterStream(int parameterIndex, Reader reader, int length)
       throws SQLException {
     checkClosed();
-    preparedStatementHolder.detectStatement().setCharacterStream(parameterIndex, reader, length);
+    parameters.setStream(parameterIndex, ParameterBuffer.CHARACTER_STREAM, reader, length);
   }
 
   @Override public void setRef(int parameterIndex, Ref x) throws SQLException {
     checkClosed();
-    preparedStatementHolder.detectStatement().setRef(parameterIndex, x);
+    parameters.set(parameterIndex, ParameterBuffer.REF, x);
   }
 
   @Override public void setBlob(int parameterIndex, Blob x) throws SQLException {
     checkClosed();
-    preparedStatementHolder.detectStatement().setBlob(parameterIndex, x);
+    parameters.set(parameterIndex, ParameterBuffer.BLOB, x);
   }
 
   @Override public void setClob(int parameterIndex, Clob x) throws SQLException {
     checkClosed();
-    preparedStatementHolder.detectStatement().setClob(parameterIndex, x);
+    parameters.set(parameterIndex, ParameterBuffer.CLOB, x);
   }
 
   @Override public void setArray(int parameterIndex, Array x) throws SQLException {
     checkClosed();
-    preparedStatementHolder.detectStatement().setArray(parameterIndex, x);
+    parameters.set(parameterIndex, ParameterBuffer.ARRAY, x);
   }
 
   @Override public ResultSetMetaData getMetaData() throws SQLException {
-    return preparedStatementHolder.detectStatement().getMetaData();
+    PreparedStatement statement = preparedStatementHolder.detectStatement();
+    try {
+      return statement.getMetaData();
+    } finally {
+      //没有执行语句,下一次执行时重新选择Statement
+      preparedStatementHolder.executed();
+    }
   }
 
   @Override public void setDate(int parameterIndex, Date x, Calendar cal) throws SQLException {
     checkClosed();
-    preparedStatementHolder.detectStatement().setDate(parameterIndex, x, cal);
+    parameters.set(parameterIndex, ParameterBuffer.DATE, x, cal);
   }
 
   @Override public void setTime(int parameterIndex, Time x, Calendar cal) throws SQLException {
     checkClosed();
-    preparedStatementHolder.detectStatement().setTime(parameterIndex, x, cal);
+    parameters.set(parameterIndex, ParameterBuffer.TIME, x, cal);
   }
 
   @Override public void setTimestamp(int parameterIndex, Timestamp x, Calendar cal)
       throws SQLException {
     checkClosed();
-    preparedStatementHolder.detectStatement().setTimestamp(parameterIndex, x, cal);
+    parameters.set(parameterIndex, ParameterBuffer.TIMESTAMP, x, cal);
   }
 
   @Override public void setNull(int parameterIndex, int sqlType, String typeName)
       throws SQLException {
     checkClosed();
-    preparedStatementHolder.detectStatement().setNull(parameterIndex, sqlType, typeName);
+    parameters.setNull(parameterIndex, sqlType, typeName);
   }
 
   @Override public void setURL(int parameterIndex, URL x) throws SQLException {
     checkClosed();
-    preparedStatementHolder.detectStatement().setURL(parameterIndex, x);
+    parameters.set(parameterIndex, ParameterBuffer.URL, x);
   }
 
   @Override public ParameterMetaData getParameterMetaData() throws SQLException {
-    return preparedStatementHolder.detectStatement().getParameterMetaData();
+    PreparedStatement statement = preparedStatementHolder.detectStatement();
+    try {
+      return statement.getParameterMetaData();
+    } finally {
+      //没有执行语句,下一次执行时重新选择Statement
+      preparedStatementHolder.executed();
+    }
   }
 
   @Override public void setRowId(int parameterIndex, RowId x) throws SQLException {
     checkClosed();
-    preparedStatementHolder.detectStatement().setRowId(parameterIndex, x);
+    parameters.set(parameterIndex, ParameterBuffer.ROW_ID, x);
   }
 
   @Override public void setNString(int parameterIndex, String value) throws SQLException {
     checkClosed();
-    preparedStatementHolder.detectStatement().setNString(parameterIndex, value);
+    parameters.set(parameterIndex, ParameterBuffer.NSTRING, value);
   }
 
   @Override public void setNCharacterStream(int parameterIndex, Reader value, long length)
       throws SQLException {
     checkClosed();
-    preparedStatementHolder.detectStatement().setNCharacterStream(parameterIndex, value, length);
+    parameters.setStream(parameterIndex, ParameterBuffer.NCHARACTER_STREAM, value, length);
   }
 
   @Override public void setNClob(int parameterIndex, NClob value) throws SQLException {
     checkClosed();
-    preparedStatementHolder.detectStatement().setNClob(parameterIndex, value);
+    parameters.set(parameterIndex, ParameterBuffer.NCLOB, value);
   }
 
   @Override public void setClob(int parameterIndex, Reader reader, long length)
       throws SQLException {
     checkClosed();
-    preparedStatementHolder.detectStatement().setClob(parameterIndex, reader, length);
+    parameters.setStream(parameterIndex, ParameterBuffer.CLOB_READER, reader, length);
   }
 
   @Override public void setBlob(int parameterIndex, InputStream inputStream, long length)
       throws SQLException {
     checkClosed();
-    preparedStatementHolder.detectStatement().setBlob(parameterIndex, inputStream, length);
+    parameters.setStream(parameterIndex, ParameterBuffer.BLOB_STREAM, inputStream, length);
   }
 
   @Override public void setNClob(int parameterIndex, Reader reader, long length)
       throws SQLException {
     checkClosed();
-    preparedStatementHolder.detectStatement().setNClob(parameterIndex, reader, length);
+    parameters.setStream(parameterIndex, ParameterBuffer.NCLOB_READER, reader, length);
   }
 
   @Override public void setSQLXML(int parameterIndex, SQLXML xmlObject) throws SQLException {
     checkClosed();
-    preparedStatementHolder.detectStatement().setSQLXML(parameterIndex, xmlObject);
+    parameters.set(parameterIndex, ParameterBuffer.SQLXML, xmlObject);
   }
 
   @Override
   public void setObject(int parameterIndex, Object x, int targetSqlType, int scaleOrLength)
       throws SQLException {
     checkClosed();
-    preparedStatementHolder.detectStatement()
-        .setObject(parameterIndex, x, targetSqlType, scaleOrLength);
+    parameters.setObject(parameterIndex, x, targetSqlType, scaleOrLength);
   }
 
   @Override public void setAsciiStream(int parameterIndex, InputStream x, long length)
       throws SQLException {
     checkClosed();
-    preparedStatementHolder.detectStatement().setAsciiStream(parameterIndex, x, length);
+    parameters.setStream(parameterIndex, ParameterBuffer.ASCII_STREAM, x, length);
   }
 
   @Override public void setBinaryStream(int parameterIndex, InputStream x, long length)
       throws SQLException {
     checkClosed();
-    preparedStatementHolder.detectStatement().setBinaryStream(parameterIndex, x, length);
+    parameters.setStream(parameterIndex, ParameterBuffer.BINARY_STREAM, x, length);
   }
 
   @Override public void setCharacterStream(int parameterIndex, Reader reader, long length)
       throws SQLException {
     checkClosed();
-    preparedStatementHolder.detectStatement().setCharacterStream(parameterIndex, reader, length);
+    parameters.setStream(parameterIndex, ParameterBuffer.CHARACTER_STREAM, reader, length);
   }
 
   @Override public void setAsciiStream(int parameterIndex, InputStream x) throws SQLException {
     checkClosed();
-    preparedStatementHolder.detectStatement().setAsciiStream(parameterIndex, x);
+    parameters.set(parameterIndex, ParameterBuffer.ASCII_STREAM, x);
   }
 
   @Override public void setBinaryStream(int parameterIndex, InputStream x) throws SQLException {
     checkClosed();
-    preparedStatementHolder.detectStatement().setBinaryStream(parameterIndex, x);
+    parameters.set(parameterIndex, ParameterBuffer.BINARY_STREAM, x);
   }
 
   @Override public void setCharacterStream(int parameterIndex, Reader reader) throws SQLException {
     checkClosed();
-    preparedStatementHolder.detectStatement().setCharacterStream(parameterIndex, reader);
+    parameters.set(parameterIndex, ParameterBuffer.CHARACTER_STREAM, reader);
   }
 
   @Override public void setNCharacterStream(int parameterIndex, Reader value) throws SQLException {
     checkClosed();
-    preparedStatementHolder.detectStatement().setNCharacterStream(parameterIndex, value);
+    parameters.set(parameterIndex, ParameterBuffer.NCHARACTER_STREAM, value);
   }
 
   @Override public void setClob(int parameterIndex, Reader reader) throws SQLException {
     checkClosed();
-    preparedStatementHolder.detectStatement().setClob(parameterIndex, reader);
+    parameters.set(parameterIndex, ParameterBuffer.CLOB_READER, reader);
   }
 
   @Override public void setBlob(int parameterIndex, InputStream inputStream) throws SQLException {
     checkClosed();
-    preparedStatementHolder.detectStatement().setBlob(parameterIndex, inputStream);
+    parameters.set(parameterIndex, ParameterBuffer.BLOB_STREAM, inputStream);
   }
 
   @Override public void setNClob(int parameterIndex, Reader reader) throws SQLException {
     checkClosed();
-    preparedStatementHolder.detectStatement().setNClob(parameterIndex, reader);
+    parameters.set(parameterIndex, ParameterBuffer.NCLOB_READER, reader);
   }
 
   /**
@@ -472,13 +796,89 @@ final class PreparedMasterslaveStatement extends MasterslaveStatement implements
   interface PreparedStatementHolder {
     PreparedStatement detectStatement() throws SQLException;
 
+    /**
+     * 最近一次{@link #detectStatement()}返回的Statement所属的数据源
+     */
+    DataSourceNode currentNode();
+
+    /**
+     * 最近一次{@link #detectStatement()}返回的Statement是否在写连接上
+     */
+    boolean onWriteConnection();
+
+    /**
+     * 最近一次{@link #detectStatement()}返回的Statement是否在连接的读连接上,出错后可以换从库重试
+     */
+    boolean onReadConnection();
+
+    /**
+     * 语句执行完成后调用
+     */
+    void executed();
+
+    /**
+     * 读连接出现连接级别的错误后调用,丢弃读连接上的Statement
+     */
+    void readFailed();
+
+    /**
+     * 在指定的物理连接上创建与当前设置相同的PreparedStatement
+     */
+    PreparedStatement prepareOn(Connection connection) throws SQLException;
+
+    /**
+     * 批量执行使用的写连接上的Statement
+     */
+    PreparedStatement batchStatement() throws SQLException;
+
+    /**
+     * 物理Statement所在的物理连接
+     */
+    Connection connectionOf(Statement statement) throws SQLException;
+
+    /**
+     * 关闭在connection上创建的Statement
+     */
+    void closeStatementsOn(Connection connection) throws SQLException;
+
     void close() throws SQLException;
   }
 
 
   private abstract class AbstractPreparedStatementHolder implements PreparedStatementHolder {
+    /**
+     * 在物理连接的Statement缓存中使用的键,为null时不缓存
+     */
+    private final StatementKey cacheKey;
     private PreparedStatement readStatement;
     private PreparedStatement writeStatement;
+    /**
+     * readStatement和writeStatement所在的物理连接
+     */
+    private Connection readStatementConnection;
+    private Connection writeStatementConnection;
+    private DataSourceNode node;
+    private boolean onWrite;
+    /**
+     * 通过路由注释指定从库时readStatement所属的数据源
+     */
+    private DataSourceNode hintedNode;
+    /**
+     * 写之后读可以回到从库时,一次执行之前选定的Statement,执行之后重新选择
+     */
+    private PreparedStatement current;
+    /**
+     * 最近一次选择的Statement是否是按路由注释指定的从库上的Statement
+     */
+    private boolean hinted;
+    /**
+     * 最近一次选择的Statement是否在只读连接固定使用的从库上,此时不重试也不对冲
+     */
+    private boolean readOnlyPinned;
+
+    AbstractPreparedStatementHolder(StatementKey cacheKey) {
+      this.cacheKey = cacheKey;
+    }
 
     @Override public PreparedStatement detectStatement() throws SQLException {
       /*
@@ -486,47 +886,255 @@ final class PreparedMasterslaveStatement extends MasterslaveStatement implements
        * 2.检查是否有master的连接,有则创建master statement
        * 3.没有master则取slave
        */
+      MasterslaveConnection masterslaveConnection = getMasterslaveConnection();
+      if (current != null) {
+        return current;
+      }
+      hinted = false;
+      readOnlyPinned = false;
+      if (routeHint != null) {
+        return hintedStatement(masterslaveConnection);
+      }
+      if (masterslaveConnection.isReadOnlyRouting()) {
+        return readOnlyStatement(masterslaveConnection);
+      }
+      if (masterslaveConnection.isUnpinEnabled()) {
+        current = routeStatement(masterslaveConnection);
+        return current;
+      }
       if (writeStatement != null) {
+        node = masterslaveConnection.getWriteNode();
+        onWrite = true;
         return writeStatement;
       }
 
       //
-      MasterslaveConnection masterslaveConnection = getMasterslaveConnection();
       if (masterslaveConnection.hasWriteConnection()) {
-        writeStatement = createWriteStatement();
-        normalizeStatement(writeStatement);
+        createWriteStatement(masterslaveConnection.targetConnection(false));
+        node = masterslaveConnection.getWriteNode();
+        onWrite = true;
         return writeStatement;
       }
-      if (isReadStatement) {
-        if (readStatement != null) {
-          return readStatement;
-        }
-        readStatement = createReadStatement();
-        normalizeStatement(readStatement);
+      if (isReadStatement()) {
+        readStatementOn(masterslaveConnection.targetConnection(true));
+        node = masterslaveConnection.getReadNode();
+        onWrite = false;
         return readStatement;
       } else {
-        writeStatement = createWriteStatement();
-        normalizeStatement(writeStatement);
+        createWriteStatement(masterslaveConnection.targetConnection(false));
+        node = masterslaveConnection.getWriteNode();
+        onWrite = true;
+        return writeStatement;
+      }
+    }
+
+    /**
+     * 由连接决定这次执行使用读连接还是写连接
+     */
+    private PreparedStatement routeStatement(MasterslaveConnection masterslaveConnection)
+        throws SQLException {
+      Connection target = masterslaveConnection.targetConnection(isReadStatement());
+      if (masterslaveConnection.isWriteConnection(target)) {
+        if (writeStatement == null) {
+          createWriteStatement(target);
+        }
+        node = masterslaveConnection.getWriteNode();
+        onWrite = true;
+        return writeStatement;
+      }
+      readStatementOn(target);
+      node = masterslaveConnection.getReadNode();
+      onWrite = false;
+      return readStatement;
+    }
+
+    /**
+     * 只读连接上的Statement,策略为{@link ReadOnlyWritePolicy#REJECT}时不解析语句类型
+     */
+    private PreparedStatement readOnlyStatement(MasterslaveConnection masterslaveConnection)
+        throws SQLException {
+      Connection target;
+      if (masterslaveConnection.getReadOnlyWritePolicy() == ReadOnlyWritePolicy.PROMOTE
+          && !isReadStatement()) {
+        target = masterslaveConnection.targetConnection(false);
+      } else {
+        target = masterslaveConnection.readOnlyConnection();
+      }
+      if (masterslaveConnection.isWriteConnection(target)) {
+        if (writeStatement == null) {
+          createWriteStatement(target);
+        }
+        node = masterslaveConnection.getWriteNode();
+        onWrite = true;
+        return writeStatement;
+      }
+      readStatementOn(target);
+      node = masterslaveConnection.getReadNode();
+      onWrite = false;
+      readOnlyPinned = true;
+      return readStatement;
+    }
+
+    /**
+     * 按路由注释选择Statement,指定从库时即使已经有写连接也在从库上执行
+     */
+    private PreparedStatement hintedStatement(MasterslaveConnection masterslaveConnection)
+        throws SQLException {
+      if (routeHint.isMaster()) {
+        if (writeStatement == null) {
+          createWriteStatement(masterslaveConnection.targetConnection(false));
+        }
+        node = masterslaveConnection.getWriteNode();
+        onWrite = true;
         return writeStatement;
       }
+      hinted = true;
+      Connection connection = masterslaveConnection.slaveConnection(routeHint.getSlaveGroup());
+      readStatementOn(connection);
+      hintedNode = masterslaveConnection.nodeOf(connection);
+      node = hintedNode;
+      onWrite = false;
+      return readStatement;
+    }
+
+    @Override public DataSourceNode currentNode() {
+      return node;
+    }
+
+    @Override public boolean onWriteConnection() {
+      return onWrite;
+    }
+
+    @Override public boolean onReadConnection() {
+      return !onWrite && !hinted && !readOnlyPinned;
+    }
+
+    @Override public void executed() {
+      current = null;
+    }
+
+    @Override public void readFailed() {
+      //连接已经不可用,Statement不再放回缓存,直接关闭
+      PreparedStatement statement = readStatement;
+      readStatement = null;
+      readStatementConnection = null;
+      current = null;
+      if (statement != null) {
+        try {
+          statement.close();
+        } catch (SQLException e) {
+          //连接已经坏掉,关闭失败可以忽略
+        }
+      }
+    }
+
+    @Override public PreparedStatement prepareOn(Connection connection) throws SQLException {
+      PreparedStatement statement = prepare(connection);
+      normalizeStatement(statement);
+      return statement;
+    }
+
+    /**
+     * connection上的读Statement,原来的readStatement不在connection上时(读连接已经切换或归还)
+     * 放回原来连接的缓存或关闭,在connection上重新取得
+     */
+    private PreparedStatement readStatementOn(Connection connection) throws SQLException {
+      if (readStatement != null && readStatementConnection != connection) {
+        PreparedStatement previous = readStatement;
+        Connection previousConnection = readStatementConnection;
+        readStatement = null;
+        readStatementConnection = null;
+        current = null;
+        giveBack(previousConnection, previous);
+      }
+      if (readStatement == null) {
+        createReadStatement(connection);
+      }
+      return readStatement;
+    }
+
+    private void createReadStatement(Connection connection) throws SQLException {
+      readStatement = obtain(connection);
+      readStatementConnection = connection;
+    }
+
+    private void createWriteStatement(Connection connection) throws SQLException {
+      writeStatement = obtain(connection);
+      writeStatementConnection = connection;
+    }
+
+    /**
+     * 优先使用物理连接上缓存的Statement
+     */
+    private PreparedStatement obtain(Connection connection) throws SQLException {
+      PreparedStatement statement = null;
+      if (cacheKey != null) {
+        statement = getMasterslaveConnection().cachedStatement(connection, cacheKey);
+      }
+      if (statement == null) {
+        statement = prepare(connection);
+      }
+      normalizeStatement(statement);
+      return statement;
+    }
+
+    /**
+     * 不再使用的Statement放回物理连接的缓存,不缓存时关闭
+     */
+    private void giveBack(Connection connection, PreparedStatement statement)
+        throws SQLException {
+      if (cacheKey == null
+          || !getMasterslaveConnection().cacheStatement(connection, cacheKey, statement)) {
+        statement.close();
+      }
+    }
+
+    protected abstract PreparedStatement prepare(Connection connection) throws SQLException;
+
+    @Override public PreparedStatement batchStatement() throws SQLException {
+      MasterslaveConnection masterslaveConnection = getMasterslaveConnection();
+      if (writeStatement == null) {
+        createWriteStatement(masterslaveConnection.targetConnection(false));
+      }
+      node = masterslaveConnection.getWriteNode();
+      onWrite = true;
+      hinted = false;
+      current = null;
+      return writeStatement;
     }
 
-    protected abstract PreparedStatement createReadStatement() throws SQLException;
+    @Override public Connection connectionOf(Statement statement) throws SQLException {
+      if (statement == readStatement) {
+        return readStatementConnection;
+      }
+      if (statement == writeStatement) {
+        return writeStatementConnection;
+      }
+      return statement.getConnection();
+    }
 
-    protected abstract PreparedStatement createWriteStatement() throws SQLException;
+    @Override public void closeStatementsOn(Connection connection) throws SQLException {
+      if (readStatement != null && readStatementConnection == connection) {
+        PreparedStatement statement = readStatement;
+        readStatement = null;
+        readStatementConnection = null;
+        current = null;
+        giveBack(connection, statement);
+      }
+    }
 
     @Override public void close() throws SQLException {
       SQLException last = null;
       if (readStatement != null) {
         try {
-          readStatement.close();
+          giveBack(readStatementConnection, readStatement);
         } catch (SQLException e) {
           last = e;
         }
       }
       if (writeStatement != null) {
         try {
-          writeStatement.close();
+          giveBack(writeStatementConnection, writeStatement);
         } catch (SQLException e) {
           last = e;
         }
@@ -0,0 +1,263 @@
+package cn.yxffcode.datasource.masterslave;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 对冲读:读语句在从库上超过一定时间没有返回时,在另一个从库上执行同一条语句,先返回的结果胜出,
+ * 另一个通过{@link Statement#cancel()}取消
+ * <p/>
+ * 原始请求仍然在调用线程上执行,对冲请求在单独的线程池上执行,JDK支持时使用虚拟线程;
+ * 对冲请求的数量受预算限制,不会超过读请求数的一定比例;连接上有过写时,
+ * 对冲选中的从库需要已经应用了写之后的复制位点,否则放弃对冲,保证读到自己的写
+ *
+ * @author gaohang
+ */
+final class ReadHedger {
+  private static final Logger LOGGER = LoggerFactory.getLogger(ReadHedger.class);
+
+  private final MasterslaveDataSource groupDataSource;
+  /**
+   * 固定的对冲延迟,小于等于0时使用原始请求所在从库的耗时分位数
+   */
+  private final long fixedDelayNanos;
+  private final double percentile;
+  private final RetryBudget budget;
+
+  private final ScheduledThreadPoolExecutor scheduler;
+  private final ExecutorService executor;
+
+  ReadHedger(MasterslaveDataSource groupDataSource, long fixedDelayMillis, double percentile,
+             double budgetRatio, int threads) {
+    this.groupDataSource = groupDataSource;
+    this.fixedDelayNanos = TimeUnit.MILLISECONDS.toNanos(fixedDelayMillis);
+    this.percentile = percentile;
+    this.budget = new RetryBudget(budgetRatio, 0);
+    this.scheduler = new ScheduledThreadPoolExecutor(1,
+        ExecutorServices.daemonThreadFactory("masterslave-hedge-timer-"));
+    this.scheduler.setRemoveOnCancelPolicy(true);
+    this.executor = ExecutorServices.newExecutor("masterslave-hedge-", threads, 0);
+  }
+
+  /**
+   * 在对冲选中的从库连接上重新执行原始请求
+   */
+  interface HedgeCall {
+    Statement prepare(Connection connection) throws SQLException;
+
+    /**
+     * @return 是否返回了ResultSet
+     */
+    boolean execute(Statement statement) throws SQLException;
+  }
+
+  /**
+   * 在原始请求执行之前调用
+   *
+   * @param sql 只用于日志
+   * @return 为null表示这次不对冲
+   */
+  HedgedRead schedule(MasterslaveStatement owner, Statement primary, DataSourceNode primaryNode,
+                      String sql, HedgeCall call) {
+    budget.onRequest();
+    if (owner.getMasterslaveConnection().getTopology().getSlaves().size() < 2) {
+      return null;
+    }
+    long delay = fixedDelayNanos > 0 ? fixedDelayNanos
+        : primaryNode.getLatencyStats().percentileNanos(percentile);
+    if (delay <= 0) {
+      return null;
+    }
+    HedgedRead hedgedRead = new HedgedRead(owner, primary, primaryNode, sql, call);
+    try {
+      hedgedRead.trigger = scheduler.schedule(hedgedRead, delay, TimeUnit.NANOSECONDS);
+    } catch (RejectedExecutionException e) {
+      //已经关闭
+      return null;
+    }
+    return hedgedRead;
+  }
+
+  /**
+   * 停止定时器和执行对冲请求的线程,之后的读不再对冲
+   */
+  void close() {
+    scheduler.shutdownNow();
+    executor.shutdownNow();
+  }
+
+  /**
+   * 一次对冲读,状态只会从RUNNING变为PRIMARY_DONE或HEDGE_WON
+   */
+  final class HedgedRead implements Runnable {
+    private static final int RUNNING = 0;
+    private static final int PRIMARY_DONE = 1;
+    private static final int HEDGE_WON = 2;
+
+    private final AtomicInteger state = new AtomicInteger(RUNNING);
+    private final MasterslaveStatement owner;
+    private final Statement primary;
+    private final DataSourceNode primaryNode;
+    private final String sql;
+    private final HedgeCall call;
+    /**
+     * 对冲请求与原始请求属于同一个流量类别
+     */
+    private final String trafficClass;
+    /**
+     * 对冲选中的从库需要应用到的复制位点,为null表示没有限制
+     */
+    private final String requiredPosition;
+
+    private volatile ScheduledFuture<?> trigger;
+    private volatile Statement hedgeStatement;
+
+    //以下字段在状态变为HEDGE_WON之前写入,通过state的CAS对调用线程可见
+    private DataSourceNode hedgeNode;
+    private Connection hedgeConnection;
+    private boolean hedgeResultSet;
+
+    private HedgedRead(MasterslaveStatement owner, Statement primary, DataSourceNode primaryNode,
+                       String sql, HedgeCall call) {
+      this.owner = owner;
+      this.primary = primary;
+      this.primaryNode = primaryNode;
+      this.sql = sql;
+      this.call = call;
+      this.trafficClass = owner.getMasterslaveConnection().trafficClass(true);
+      this.requiredPosition = owner.getMasterslaveConnection().getWrittenPosition();
+    }
+
+    /**
+     * 到达对冲延迟时由定时线程调用
+     */
+    @Override public void run() {
+      if (state.get() != RUNNING || !budget.tryRetry()) {
+        return;
+      }
+      try {
+        executor.execute(new Runnable() {
+          @Override public void run() {
+            executeHedge();
+          }
+        });
+      } catch (RejectedExecutionException e) {
+        LOGGER.debug("hedged read rejected:{}", sql);
+      }
+    }
+
+    private void executeHedge() {
+      if (state.get() != RUNNING) {
+        return;
+      }
+      DataSourceNode node = groupDataSource.otherSlave(
+          owner.getMasterslaveConnection().getTopology(), primaryNode);
+      if (node == null) {
+        return;
+      }
+      Connection connection = null;
+      Statement statement = null;
+      try {
+        connection = node.getConnection(trafficClass);
+        if (requiredPosition != null && !groupDataSource.getPositionTracker()
+            .hasApplied(connection, requiredPosition)) {
+          LOGGER.debug("hedge target has not applied {}, skip hedged read:{}",
+              requiredPosition, sql);
+          closeQuietly(node, connection, null);
+          return;
+        }
+        statement = call.prepare(connection);
+        hedgeStatement = statement;
+        if (state.get() == RUNNING) {
+          long start = System.nanoTime();
+          boolean isResultSet;
+          try {
+            isResultSet = call.execute(statement);
+          } catch (SQLException e) {
+            node.recordFailure(System.nanoTime() - start, e);
+            node.connectionFailed(connection, e);
+            throw e;
+          }
+          node.recordSuccess(System.nanoTime() - start);
+          hedgeNode = node;
+          hedgeConnection = connection;
+          hedgeResultSet = isResultSet;
+          if (state.compareAndSet(RUNNING, HEDGE_WON)) {
+            try {
+              primary.cancel();
+            } catch (SQLException e) {
+              LOGGER.debug("cancel primary read failed:{}", sql, e);
+            }
+            return;
+          }
+        }
+      } catch (SQLException e) {
+        LOGGER.debug("hedged read failed:{}", sql, e);
+      }
+      closeQuietly(node, connection, statement);
+    }
+
+    /**
+     * 原始请求执行完成(成功或失败)后由调用线程调用
+     *
+     * @return 对冲请求是否先完成,为true时调用方应该使用对冲请求的结果
+     */
+    boolean onPrimaryDone() {
+      if (state.compareAndSet(RUNNING, PRIMARY_DONE)) {
+        trigger.cancel(false);
+        Statement hedge = hedgeStatement;
+        if (hedge != null) {
+          try {
+            hedge.cancel();
+          } catch (SQLException e) {
+            LOGGER.debug("cancel hedged read failed:{}", sql, e);
+          }
+        }
+        return false;
+      }
+      return true;
+    }
+
+    Statement getStatement() {
+      return hedgeStatement;
+    }
+
+    boolean isResultSet() {
+      return hedgeResultSet;
+    }
+
+    /**
+     * 胜出的对冲请求的结果不再使用后,关闭Statement并归还连接
+     */
+    void release() {
+      closeQuietly(hedgeNode, hedgeConnection, hedgeStatement);
+    }
+
+    private void closeQuietly(DataSourceNode node, Connection connection, Statement statement) {
+      if (statement != null) {
+        try {
+          statement.close();
+        } catch (SQLException e) {
+          LOGGER.debug("close hedged statement failed", e);
+        }
+      }
+      if (connection != null) {
+        try {
+          node.release(connection, trafficClass);
+        } catch (SQLException e) {
+          LOGGER.debug("close hedged connection failed", e);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,17 @@
+package cn.yxffcode.datasource.masterslave;
+
+/**
+ * 只读连接(或spring的只读事务)上出现写语句时的处理方式
+ *
+ * @author gaohang
+ */
+public enum ReadOnlyWritePolicy {
+  /**
+   * 不解析语句类型,所有语句都在从库的只读连接上执行,写由数据库拒绝
+   */
+  REJECT,
+  /**
+   * 解析语句类型,写在主库上执行,之后的读也使用主库
+   */
+  PROMOTE
+}
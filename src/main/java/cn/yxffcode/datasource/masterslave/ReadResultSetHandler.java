@@ -0,0 +1,62 @@
+package cn.yxffcode.datasource.masterslave;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.ResultSet;
+
+/**
+ * 读连接上的ResultSet的代理,关闭时通知{@link MasterslaveConnection}归还读连接,
+ * 对冲读胜出时关闭对冲请求的Statement并归还对冲请求的连接,其它方法直接调用原始的ResultSet
+ *
+ * @author gaohang
+ */
+final class ReadResultSetHandler implements InvocationHandler {
+
+  private final MasterslaveConnection masterslaveConnection;
+  private final ResultSet target;
+  /**
+   * 结果集来自胜出的对冲读时的Statement和对冲读,否则为null
+   */
+  private final MasterslaveStatement hedgeOwner;
+  private final ReadHedger.HedgedRead hedge;
+
+  private ReadResultSetHandler(MasterslaveConnection masterslaveConnection, ResultSet target,
+                               MasterslaveStatement hedgeOwner, ReadHedger.HedgedRead hedge) {
+    this.masterslaveConnection = masterslaveConnection;
+    this.target = target;
+    this.hedgeOwner = hedgeOwner;
+    this.hedge = hedge;
+  }
+
+  static ResultSet wrap(MasterslaveConnection masterslaveConnection, ResultSet target) {
+    return wrap(masterslaveConnection, target, null, null);
+  }
+
+  /**
+   * 包装胜出的对冲读的结果集
+   */
+  static ResultSet wrap(MasterslaveConnection masterslaveConnection, ResultSet target,
+                        MasterslaveStatement hedgeOwner, ReadHedger.HedgedRead hedge) {
+    return (ResultSet) Proxy.newProxyInstance(ReadResultSetHandler.class.getClassLoader(),
+        new Class<?>[] {ResultSet.class},
+        new ReadResultSetHandler(masterslaveConnection, target, hedgeOwner, hedge));
+  }
+
+  @Override public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+    Object result;
+    try {
+      result = method.invoke(target, args);
+    } catch (InvocationTargetException e) {
+      throw e.getCause();
+    }
+    if ("close".equals(method.getName())) {
+      if (hedgeOwner != null) {
+        hedgeOwner.releaseHedge(hedge);
+      }
+      masterslaveConnection.releaseRetiredReadConnection();
+    }
+    return result;
+  }
+}
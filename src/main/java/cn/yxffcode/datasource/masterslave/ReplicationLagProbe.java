@@ -0,0 +1,18 @@
+package cn.yxffcode.datasource.masterslave;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * 检测从库的复制延迟
+ *
+ * @author gaohang
+ */
+public interface ReplicationLagProbe {
+
+  /**
+   * @param slaveConnection 从库上的连接,由调用方负责关闭
+   * @return 复制延迟的毫秒数,无法得到延迟(例如复制已经中断)时返回负数
+   */
+  long lagMillis(Connection slaveConnection) throws SQLException;
+}
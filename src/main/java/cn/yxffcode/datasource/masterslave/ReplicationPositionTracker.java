@@ -0,0 +1,27 @@
+package cn.yxffcode.datasource.masterslave;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * 获取master上的复制位点并判断从库是否已经应用到该位点,用于自动提交模式下的读己之写
+ *
+ * @author gaohang
+ */
+public interface ReplicationPositionTracker {
+
+  /**
+   * 在写连接上执行完写语句后调用
+   *
+   * @param masterConnection 执行写语句的连接
+   * @return 包含了刚才的写的复制位点,无法获取时返回null
+   */
+  String currentPosition(Connection masterConnection) throws SQLException;
+
+  /**
+   * @param slaveConnection 从库上的连接
+   * @param position        {@link #currentPosition(Connection)}返回的位点
+   * @return 从库是否已经应用到该位点
+   */
+  boolean hasApplied(Connection slaveConnection, String position) throws SQLException;
+}
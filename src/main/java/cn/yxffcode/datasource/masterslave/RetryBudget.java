@@ -0,0 +1,64 @@
+package cn.yxffcode.datasource.masterslave;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 重试预算,每秒允许的重试次数为该秒内请求数乘以retryRatio,再加上minRetriesPerSecond
+ * <p/>
+ * 大面积故障时所有请求都会失败,如果每个请求都重试,数据库上的压力会成倍增加,
+ * 预算用完之后错误直接返回给调用方
+ * <p/>
+ * 对冲读也使用同样的预算限制额外的请求
+ *
+ * @author gaohang
+ */
+final class RetryBudget {
+
+  private static final long WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+  private final double retryRatio;
+  private final int minRetriesPerSecond;
+
+  private final AtomicLong windowStartNanos = new AtomicLong(System.nanoTime());
+  private final LongAdder requests = new LongAdder();
+  private final AtomicInteger retries = new AtomicInteger();
+
+  RetryBudget(double retryRatio, int minRetriesPerSecond) {
+    this.retryRatio = retryRatio;
+    this.minRetriesPerSecond = minRetriesPerSecond;
+  }
+
+  void onRequest() {
+    rollWindow();
+    requests.increment();
+  }
+
+  /**
+   * 从预算中取出一次重试,预算不足时返回false
+   */
+  boolean tryRetry() {
+    rollWindow();
+    long allowed = minRetriesPerSecond + (long) (requests.sum() * retryRatio);
+    while (true) {
+      int current = retries.get();
+      if (current >= allowed) {
+        return false;
+      }
+      if (retries.compareAndSet(current, current + 1)) {
+        return true;
+      }
+    }
+  }
+
+  private void rollWindow() {
+    long now = System.nanoTime();
+    long start = windowStartNanos.get();
+    if (now - start >= WINDOW_NANOS && windowStartNanos.compareAndSet(start, now)) {
+      requests.reset();
+      retries.set(0);
+    }
+  }
+}
@@ -0,0 +1,29 @@
+package cn.yxffcode.datasource.masterslave;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 轮询,跳过不可用的从库
+ *
+ * @author gaohang
+ */
+final class RoundRobinLoadBalancer implements LoadBalancer {
+
+  private final AtomicInteger counter = new AtomicInteger();
+
+  @Override public DataSourceNode select(List<DataSourceNode> slaves) {
+    int size = slaves.size();
+    if (size == 0) {
+      return null;
+    }
+    int start = (counter.getAndIncrement() & Integer.MAX_VALUE) % size;
+    for (int i = 0; i < size; i++) {
+      DataSourceNode node = slaves.get((start + i) % size);
+      if (node.isAvailable()) {
+        return node;
+      }
+    }
+    return null;
+  }
+}
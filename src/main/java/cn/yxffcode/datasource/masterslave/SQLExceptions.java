@@ -0,0 +1,42 @@
+package cn.yxffcode.datasource.masterslave;
+
+import java.sql.SQLException;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTimeoutException;
+import java.sql.SQLTransientConnectionException;
+
+/**
+ * 对SQLException分类
+ *
+ * @author gaohang
+ */
+final class SQLExceptions {
+  private SQLExceptions() {
+  }
+
+  /**
+   * 是否是连接级别的错误,即数据源本身出了问题,而不是SQL或数据的问题
+   */
+  static boolean isConnectionError(SQLException e) {
+    if (e instanceof SQLTransientConnectionException
+        || e instanceof SQLNonTransientConnectionException
+        || e instanceof SQLRecoverableException) {
+      return true;
+    }
+    String sqlState = e.getSQLState();
+    //SQLState 08xxx: connection exception
+    return sqlState != null && sqlState.startsWith("08");
+  }
+
+  static boolean isTimeout(SQLException e) {
+    return e instanceof SQLTimeoutException;
+  }
+
+  /**
+   * 是否是由数据源引起的错误,需要计入数据源的错误率
+   */
+  static boolean isNodeFailure(SQLException e) {
+    return isConnectionError(e) || isTimeout(e);
+  }
+}
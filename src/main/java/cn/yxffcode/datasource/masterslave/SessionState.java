@@ -0,0 +1,92 @@
+package cn.yxffcode.datasource.masterslave;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Properties;
+
+/**
+ * 物理连接上已经设置的会话状态,只有与目标值不同时才调用物理连接的方法,避免多余的网络往返
+ * <p/>
+ * 刚从连接池取出的连接按JDBC的默认状态处理:自动提交、非只读,其它状态未知
+ *
+ * @author gaohang
+ */
+final class SessionState {
+  private static final int UNKNOWN_ISOLATION = -1;
+
+  private final Connection connection;
+  private boolean autoCommit = true;
+  private int transactionIsolation = UNKNOWN_ISOLATION;
+  private boolean readOnly;
+  private String catalog;
+  private String schema;
+  private Properties clientInfo;
+
+  SessionState(Connection connection) {
+    this.connection = connection;
+  }
+
+  Connection getConnection() {
+    return connection;
+  }
+
+  void setAutoCommit(boolean autoCommit) throws SQLException {
+    if (this.autoCommit != autoCommit) {
+      connection.setAutoCommit(autoCommit);
+      this.autoCommit = autoCommit;
+    }
+  }
+
+  /**
+   * @param transactionIsolation 为-1表示没有指定,不做修改
+   */
+  void setTransactionIsolation(int transactionIsolation) throws SQLException {
+    if (transactionIsolation != UNKNOWN_ISOLATION
+        && this.transactionIsolation != transactionIsolation) {
+      connection.setTransactionIsolation(transactionIsolation);
+      this.transactionIsolation = transactionIsolation;
+    }
+  }
+
+  void setReadOnly(boolean readOnly) throws SQLException {
+    if (this.readOnly != readOnly) {
+      connection.setReadOnly(readOnly);
+      this.readOnly = readOnly;
+    }
+  }
+
+  /**
+   * @param catalog 为null表示没有指定,不做修改
+   */
+  void setCatalog(String catalog) throws SQLException {
+    if (catalog != null && !catalog.equals(this.catalog)) {
+      connection.setCatalog(catalog);
+      this.catalog = catalog;
+    }
+  }
+
+  /**
+   * @param schema 为null表示没有指定,不做修改
+   */
+  void setSchema(String schema) throws SQLException {
+    if (schema != null && !schema.equals(this.schema)) {
+      connection.setSchema(schema);
+      this.schema = schema;
+    }
+  }
+
+  /**
+   * 有任意一项不同时,通过一次{@link Connection#setClientInfo(Properties)}设置全部的client info
+   *
+   * @param clientInfo 为null表示没有指定,不做修改
+   */
+  void setClientInfo(Properties clientInfo) throws SQLException {
+    if (clientInfo == null || clientInfo.equals(this.clientInfo)) {
+      return;
+    }
+    Properties copy = new Properties();
+    copy.putAll(clientInfo);
+    connection.setClientInfo(copy);
+    this.clientInfo = copy;
+  }
+}
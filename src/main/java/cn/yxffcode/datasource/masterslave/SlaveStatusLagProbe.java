@@ -0,0 +1,55 @@
+package cn.yxffcode.datasource.masterslave;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * 通过MySQL的SHOW SLAVE STATUS中的Seconds_Behind_Master得到复制延迟,精度为秒
+ *
+ * @author gaohang
+ */
+public class SlaveStatusLagProbe implements ReplicationLagProbe {
+
+  private String lagQuery = "SHOW SLAVE STATUS";
+  private String lagColumn = "Seconds_Behind_Master";
+
+  @Override public long lagMillis(Connection slaveConnection) throws SQLException {
+    try (Statement statement = slaveConnection.createStatement();
+         ResultSet resultSet = statement.executeQuery(lagQuery)) {
+      if (!resultSet.next()) {
+        //不是从库
+        return -1;
+      }
+      long seconds = resultSet.getLong(lagColumn);
+      if (resultSet.wasNull()) {
+        //复制线程没有运行
+        return -1;
+      }
+      return seconds * 1000;
+    }
+  }
+
+  public String getLagQuery() {
+    return lagQuery;
+  }
+
+  /**
+   * MySQL 8.0.22之后可以设置为SHOW REPLICA STATUS
+   */
+  public void setLagQuery(String lagQuery) {
+    this.lagQuery = lagQuery;
+  }
+
+  public String getLagColumn() {
+    return lagColumn;
+  }
+
+  /**
+   * 与lagQuery对应的延迟列名,例如Seconds_Behind_Source
+   */
+  public void setLagColumn(String lagColumn) {
+    this.lagColumn = lagColumn;
+  }
+}
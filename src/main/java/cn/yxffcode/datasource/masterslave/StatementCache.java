@@ -0,0 +1,163 @@
+package cn.yxffcode.datasource.masterslave;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 一个物理连接上的PreparedStatement缓存,按SQL和结果集选项缓存,超过上限时淘汰最久没有使用的
+ * <p/>
+ * 取出的Statement由使用者独占,用完后放回;同一个SQL同时被多个逻辑Statement使用时只缓存一个。
+ * 只由持有物理连接的线程访问
+ *
+ * @author gaohang
+ */
+final class StatementCache {
+  private static final Logger LOGGER = LoggerFactory.getLogger(StatementCache.class);
+
+  private final int maxSize;
+  private final LongAdder evictions;
+  /**
+   * 是否属于内置连接池中的连接,是时在连接归还后继续保留,由连接池在关闭物理连接时关闭
+   */
+  private final boolean pooled;
+  private final Map<StatementKey, PreparedStatement> statements;
+  private boolean closed;
+
+  StatementCache(int maxSize, LongAdder evictions, boolean pooled) {
+    this.maxSize = maxSize;
+    this.evictions = evictions;
+    this.pooled = pooled;
+    this.statements = new LinkedHashMap<StatementKey, PreparedStatement>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<StatementKey, PreparedStatement> eldest) {
+        if (size() <= StatementCache.this.maxSize) {
+          return false;
+        }
+        StatementCache.this.evictions.increment();
+        closeQuietly(eldest.getValue());
+        return true;
+      }
+    };
+  }
+
+  /**
+   * 取出缓存的Statement,没有时返回null
+   */
+  PreparedStatement take(StatementKey key) {
+    return closed ? null : statements.remove(key);
+  }
+
+  /**
+   * 放回用完的Statement,参数和修改过的执行选项被清除;缓存已经关闭或已经有相同的Statement时直接关闭
+   */
+  void put(StatementKey key, PreparedStatement statement) {
+    if (closed || statements.containsKey(key) || !reset(statement)) {
+      closeQuietly(statement);
+      return;
+    }
+    statements.put(key, statement);
+  }
+
+  private static boolean reset(PreparedStatement statement) {
+    try {
+      if (statement.isClosed()) {
+        return false;
+      }
+      statement.clearParameters();
+      statement.clearBatch();
+      if (statement.getMaxRows() != 0) {
+        statement.setMaxRows(0);
+      }
+      if (statement.getQueryTimeout() != 0) {
+        statement.setQueryTimeout(0);
+      }
+      if (statement.getFetchSize() != 0) {
+        statement.setFetchSize(0);
+      }
+      return true;
+    } catch (SQLException e) {
+      LOGGER.debug("reset cached statement failed", e);
+      return false;
+    }
+  }
+
+  /**
+   * 物理连接关闭或不再使用时调用,关闭所有缓存的Statement
+   */
+  void close() {
+    closed = true;
+    for (Iterator<PreparedStatement> it = statements.values().iterator(); it.hasNext(); ) {
+      closeQuietly(it.next());
+      it.remove();
+    }
+  }
+
+  boolean isPooled() {
+    return pooled;
+  }
+
+  int size() {
+    return statements.size();
+  }
+
+  private static void closeQuietly(PreparedStatement statement) {
+    try {
+      statement.close();
+    } catch (SQLException e) {
+      LOGGER.debug("close cached statement failed", e);
+    }
+  }
+
+  /**
+   * 缓存的键,由SQL和创建Statement时指定的选项组成
+   */
+  static final class StatementKey {
+    private final String sql;
+    private final int resultSetType;
+    private final int resultSetConcurrency;
+    private final int resultSetHoldability;
+    private final int autoGeneratedKeys;
+    private final int hash;
+
+    StatementKey(String sql, int resultSetType, int resultSetConcurrency,
+                 int resultSetHoldability, int autoGeneratedKeys) {
+      this.sql = sql;
+      this.resultSetType = resultSetType;
+      this.resultSetConcurrency = resultSetConcurrency;
+      this.resultSetHoldability = resultSetHoldability;
+      this.autoGeneratedKeys = autoGeneratedKeys;
+      int h = sql.hashCode();
+      h = 31 * h + resultSetType;
+      h = 31 * h + resultSetConcurrency;
+      h = 31 * h + resultSetHoldability;
+      this.hash = 31 * h + autoGeneratedKeys;
+    }
+
+    @Override public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof StatementKey)) {
+        return false;
+      }
+      StatementKey that = (StatementKey) o;
+      return hash == that.hash
+          && resultSetType == that.resultSetType
+          && resultSetConcurrency == that.resultSetConcurrency
+          && resultSetHoldability == that.resultSetHoldability
+          && autoGeneratedKeys == that.autoGeneratedKeys
+          && sql.equals(that.sql);
+    }
+
+    @Override public int hashCode() {
+      return hash;
+    }
+  }
+}
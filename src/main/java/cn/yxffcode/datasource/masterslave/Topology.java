@@ -0,0 +1,98 @@
+package cn.yxffcode.datasource.masterslave;
+
+import javax.sql.DataSource;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * 主从组的拓扑快照,创建之后不再修改
+ * <p/>
+ * {@link MasterslaveDataSource}通过一个volatile引用发布当前的快照,拓扑变化时整体替换;
+ * {@link MasterslaveConnection}创建时取得快照,之后一直使用其中的节点,不受替换的影响
+ *
+ * @author gaohang
+ */
+final class Topology {
+
+  private final DataSourceNode master;
+  private final List<DataSourceNode> slaves;
+  /**
+   * 通过{@code /*+ slave:group *}{@code /}指定的从库分组,分组中的从库可以不在slaves中,
+   * 不在slaves中的从库只处理指定了分组的请求
+   */
+  private final Map<String, List<DataSourceNode>> slaveGroups;
+  /**
+   * 拓扑中所有的节点,按DataSource去重
+   */
+  private final List<DataSourceNode> nodes;
+
+  Topology(DataSourceNode master, List<DataSourceNode> slaves,
+           Map<String, List<DataSourceNode>> slaveGroups) {
+    checkNotNull(master);
+    checkNotNull(slaves);
+    checkNotNull(slaveGroups);
+    this.master = master;
+    this.slaves = Collections.unmodifiableList(new ArrayList<>(slaves));
+    this.slaveGroups = Collections.unmodifiableMap(slaveGroups);
+
+    Set<DataSource> seen = Collections.newSetFromMap(new IdentityHashMap<DataSource, Boolean>());
+    List<DataSourceNode> all = new ArrayList<>(slaves.size() + 1);
+    addNode(all, seen, master);
+    for (DataSourceNode slave : slaves) {
+      addNode(all, seen, slave);
+    }
+    for (List<DataSourceNode> group : slaveGroups.values()) {
+      for (DataSourceNode node : group) {
+        addNode(all, seen, node);
+      }
+    }
+    this.nodes = Collections.unmodifiableList(all);
+  }
+
+  private static void addNode(List<DataSourceNode> all, Set<DataSource> seen,
+                              DataSourceNode node) {
+    if (seen.add(node.getDataSource())) {
+      all.add(node);
+    }
+  }
+
+  DataSourceNode getMaster() {
+    return master;
+  }
+
+  List<DataSourceNode> getSlaves() {
+    return slaves;
+  }
+
+  Map<String, List<DataSourceNode>> getSlaveGroups() {
+    return slaveGroups;
+  }
+
+  List<DataSourceNode> getNodes() {
+    return nodes;
+  }
+
+  /**
+   * 查找DataSource对应的节点,没有找到时返回null
+   */
+  DataSourceNode nodeOf(DataSource dataSource) {
+    for (int i = 0, size = nodes.size(); i < size; i++) {
+      DataSourceNode node = nodes.get(i);
+      if (node.getDataSource() == dataSource) {
+        return node;
+      }
+    }
+    return null;
+  }
+
+  @Override public String toString() {
+    return "Topology{master=" + master + ", slaves=" + slaves + ", slaveGroups=" + slaveGroups
+        + '}';
+  }
+}
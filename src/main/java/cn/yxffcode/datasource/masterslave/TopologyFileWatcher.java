@@ -0,0 +1,218 @@
+package cn.yxffcode.datasource.masterslave;
+
+import com.google.common.base.Splitter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * 定时检查拓扑文件,文件修改后重新加载并更新主从组的拓扑
+ * <p/>
+ * 文件为properties格式,例如:
+ * <pre>
+ *   master=db1
+ *   slaves=db2,db3
+ *   slaveWeights=1,2
+ *   slaveGroup.report=db4
+ *   db1.url=jdbc:mysql://10.0.0.1:3306/test
+ *   db1.username=test
+ *   ...
+ * </pre>
+ * 每个数据源名以"数据源名."开头的配置交给{@link DataSourceCreator}创建数据源,
+ * 配置没有变化的数据源在多次加载之间复用,配置变化的数据源会重新创建,旧的数据源在连接归还后关闭
+ *
+ * @author gaohang
+ */
+final class TopologyFileWatcher {
+  private static final Logger LOGGER = LoggerFactory.getLogger(TopologyFileWatcher.class);
+
+  private static final String SLAVE_GROUP_PREFIX = "slaveGroup.";
+  private static final Splitter NAME_SPLITTER = Splitter.on(',').trimResults().omitEmptyStrings();
+
+  private final File file;
+  private final DataSourceCreator creator;
+  private final MasterslaveDataSourceFactoryBean factoryBean;
+
+  /**
+   * 上一次加载时创建的数据源和它的配置
+   */
+  private Map<String, DataSource> dataSources = Collections.emptyMap();
+  private Map<String, Properties> dataSourceProperties = Collections.emptyMap();
+  private volatile long lastModified;
+
+  private ScheduledExecutorService scheduler;
+
+  TopologyFileWatcher(File file, DataSourceCreator creator,
+                      MasterslaveDataSourceFactoryBean factoryBean) {
+    this.file = file;
+    this.creator = creator;
+    this.factoryBean = factoryBean;
+  }
+
+  /**
+   * 加载拓扑文件并更新拓扑,失败时抛出异常,拓扑保持不变
+   */
+  synchronized void load() throws Exception {
+    long modified = file.lastModified();
+    Properties properties = new Properties();
+    try (InputStream in = new FileInputStream(file)) {
+      properties.load(in);
+    }
+
+    Map<String, DataSource> created = new HashMap<>();
+    Map<String, Properties> createdProperties = new HashMap<>();
+    try {
+      DataSource master = resolve(properties, properties.getProperty("master"), created,
+          createdProperties);
+      List<DataSource> slaves = new ArrayList<>();
+      for (String name : NAME_SPLITTER.split(properties.getProperty("slaves", ""))) {
+        slaves.add(resolve(properties, name, created, createdProperties));
+      }
+      List<Integer> slaveWeights = null;
+      String weights = properties.getProperty("slaveWeights");
+      if (weights != null) {
+        slaveWeights = new ArrayList<>(slaves.size());
+        for (String weight : NAME_SPLITTER.split(weights)) {
+          slaveWeights.add(Integer.valueOf(weight));
+        }
+      }
+      Map<String, List<DataSource>> slaveGroups = new LinkedHashMap<>();
+      for (String key : properties.stringPropertyNames()) {
+        if (!key.startsWith(SLAVE_GROUP_PREFIX)) {
+          continue;
+        }
+        List<DataSource> group = new ArrayList<>();
+        for (String name : NAME_SPLITTER.split(properties.getProperty(key))) {
+          group.add(resolve(properties, name, created, createdProperties));
+        }
+        slaveGroups.put(key.substring(SLAVE_GROUP_PREFIX.length()), group);
+      }
+
+      //上一次加载时创建的数据源被移除后,在连接全部归还后关闭
+      Set<DataSource> owned =
+          Collections.newSetFromMap(new IdentityHashMap<DataSource, Boolean>());
+      owned.addAll(dataSources.values());
+      factoryBean.updateTopology(master, slaves, slaveWeights, slaveGroups, owned);
+    } catch (Exception e) {
+      closeCreated(created);
+      throw e;
+    }
+    this.dataSources = created;
+    this.dataSourceProperties = createdProperties;
+    this.lastModified = modified;
+  }
+
+  private DataSource resolve(Properties properties, String name, Map<String, DataSource> created,
+                             Map<String, Properties> createdProperties) throws Exception {
+    checkArgument(name != null && !name.isEmpty(), "data source name missing in %s", file);
+    DataSource dataSource = created.get(name);
+    if (dataSource != null) {
+      return dataSource;
+    }
+    Properties config = new Properties();
+    String prefix = name + '.';
+    for (String key : properties.stringPropertyNames()) {
+      if (key.startsWith(prefix)) {
+        config.setProperty(key.substring(prefix.length()), properties.getProperty(key));
+      }
+    }
+    dataSource = dataSources.get(name);
+    if (dataSource == null || !config.equals(dataSourceProperties.get(name))) {
+      dataSource = creator.create(name, config);
+    }
+    created.put(name, dataSource);
+    createdProperties.put(name, config);
+    return dataSource;
+  }
+
+  /**
+   * 加载失败时关闭这次新创建的数据源
+   */
+  private void closeCreated(Map<String, DataSource> created) {
+    for (Map.Entry<String, DataSource> entry : created.entrySet()) {
+      DataSource dataSource = entry.getValue();
+      if (dataSources.get(entry.getKey()) == dataSource || !(dataSource instanceof AutoCloseable)) {
+        continue;
+      }
+      try {
+        ((AutoCloseable) dataSource).close();
+      } catch (Exception e) {
+        LOGGER.warn("close data source failed:{}", entry.getKey(), e);
+      }
+    }
+  }
+
+  /**
+   * 开始定时检查文件的修改时间
+   */
+  synchronized void start(long periodMillis) {
+    if (scheduler != null) {
+      return;
+    }
+    scheduler = Executors.newSingleThreadScheduledExecutor(
+        ExecutorServices.daemonThreadFactory("masterslave-topology-watcher-"));
+    scheduler.scheduleWithFixedDelay(new Runnable() {
+      @Override public void run() {
+        if (file.lastModified() == lastModified) {
+          return;
+        }
+        try {
+          load();
+          LOGGER.info("topology file reloaded:{}", file);
+        } catch (Exception e) {
+          //保持原来的拓扑,文件再次修改后重试
+          lastModified = file.lastModified();
+          LOGGER.error("reload topology file failed:{}", file, e);
+        }
+      }
+    }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * 停止检查文件
+   */
+  synchronized void stop() {
+    if (scheduler != null) {
+      scheduler.shutdownNow();
+      scheduler = null;
+    }
+  }
+
+  /**
+   * 停止检查文件,并关闭最近一次加载时创建的数据源
+   */
+  synchronized void close() {
+    stop();
+    for (Map.Entry<String, DataSource> entry : dataSources.entrySet()) {
+      if (!(entry.getValue() instanceof AutoCloseable)) {
+        continue;
+      }
+      try {
+        ((AutoCloseable) entry.getValue()).close();
+      } catch (Exception e) {
+        LOGGER.warn("close data source failed:{}", entry.getKey(), e);
+      }
+    }
+    dataSources = Collections.emptyMap();
+    dataSourceProperties = Collections.emptyMap();
+  }
+}
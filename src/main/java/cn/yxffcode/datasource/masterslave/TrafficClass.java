@@ -0,0 +1,43 @@
+package cn.yxffcode.datasource.masterslave;
+
+/**
+ * 流量类别,用于隔舱:每个类别在每个数据源上有独立的并发配额和排队时间,
+ * 批量任务用满自己的配额之后不会再占用在线请求的连接
+ * <p/>
+ * 类别可以通过{@link #set(String)}在当前线程上指定,也可以通过
+ * {@code connection.setClientInfo(TrafficClass.CLIENT_INFO_NAME, "batch")}在单个连接上指定,
+ * 连接上指定的优先;都没有指定时,读连接属于{@link #ONLINE_READ},写连接属于{@link #ONLINE_WRITE}
+ *
+ * @author gaohang
+ */
+public final class TrafficClass {
+
+  public static final String ONLINE_READ = "online-read";
+  public static final String ONLINE_WRITE = "online-write";
+  public static final String BATCH = "batch";
+
+  /**
+   * 在连接上指定流量类别时使用的client info名称
+   */
+  public static final String CLIENT_INFO_NAME = "trafficClass";
+
+  private static final ThreadLocal<String> CURRENT = new ThreadLocal<>();
+
+  private TrafficClass() {
+  }
+
+  /**
+   * 指定当前线程之后取得的物理连接所属的类别,使用完后需要调用{@link #clear()}
+   */
+  public static void set(String trafficClass) {
+    CURRENT.set(trafficClass);
+  }
+
+  public static String current() {
+    return CURRENT.get();
+  }
+
+  public static void clear() {
+    CURRENT.remove();
+  }
+}
@@ -0,0 +1,42 @@
+package cn.yxffcode.datasource.masterslave;
+
+/**
+ * 一个流量类别在每个数据源上的配额
+ *
+ * @author gaohang
+ */
+public class TrafficClassQuota {
+
+  /**
+   * 该类别在每个数据源上同时取出的最大连接数
+   */
+  private int maxConcurrent = 10;
+  /**
+   * 配额用完时最多排队等待的时间(毫秒),0表示不等待直接拒绝
+   */
+  private long queueTimeout;
+
+  public TrafficClassQuota() {
+  }
+
+  public TrafficClassQuota(int maxConcurrent, long queueTimeout) {
+    this.maxConcurrent = maxConcurrent;
+    this.queueTimeout = queueTimeout;
+  }
+
+  public int getMaxConcurrent() {
+    return maxConcurrent;
+  }
+
+  public void setMaxConcurrent(int maxConcurrent) {
+    this.maxConcurrent = maxConcurrent;
+  }
+
+  public long getQueueTimeout() {
+    return queueTimeout;
+  }
+
+  public void setQueueTimeout(long queueTimeout) {
+    this.queueTimeout = queueTimeout;
+  }
+}
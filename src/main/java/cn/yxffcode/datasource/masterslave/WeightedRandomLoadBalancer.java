@@ -0,0 +1,40 @@
+package cn.yxffcode.datasource.masterslave;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 按权重随机选择可用的从库
+ *
+ * @author gaohang
+ */
+final class WeightedRandomLoadBalancer implements LoadBalancer {
+
+  @Override public DataSourceNode select(List<DataSourceNode> slaves) {
+    int totalWeight = 0;
+    for (int i = 0, size = slaves.size(); i < size; i++) {
+      DataSourceNode node = slaves.get(i);
+      if (node.isAvailable()) {
+        totalWeight += node.getWeight();
+      }
+    }
+    if (totalWeight == 0) {
+      return null;
+    }
+    int offset = ThreadLocalRandom.current().nextInt(totalWeight);
+    DataSourceNode last = null;
+    for (int i = 0, size = slaves.size(); i < size; i++) {
+      DataSourceNode node = slaves.get(i);
+      //可用性可能在两次遍历之间发生变化,因此第二次遍历仍然需要判断
+      if (!node.isAvailable()) {
+        continue;
+      }
+      last = node;
+      offset -= node.getWeight();
+      if (offset < 0) {
+        return node;
+      }
+    }
+    return last;
+  }
+}
@@ -0,0 +1,387 @@
+package cn.yxffcode.datasource;
+
+import org.junit.Test;
+
+import java.sql.SQLException;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * 对照改用SqlScanner之前基于去注释和正则的分类,用随机生成的带注释、引号、大小写变化和CTE的语句
+ * 检查SqlScanner的分类结果
+ *
+ * @author gaohang
+ */
+public class SqlScannerTest {
+
+  private static final int ITERATIONS = 20000;
+
+  private static final Pattern SELECT_FOR_UPDATE_PATTERN =
+      Pattern.compile("^select\\s+.*\\s+for\\s+update.*$", Pattern.CASE_INSENSITIVE);
+
+  private static final String[] TABLES = {"t", "user_1", "`order`", "`select`", "T2"};
+  private static final String[] COLUMNS = {"a", "id", "`for`", "update_time", "B"};
+  /**
+   * 原来的分类也能正确处理的值
+   */
+  private static final String[] VALUES = {"1", "?", "'abc'", "'it''s'", "'a\\'b'", "\"dq\"",
+      "'/* not a comment */'", "'-- not a comment'", "'select'", "'for update'", "now()"};
+  /**
+   * 原来的分类会把select当成select ... for update的值
+   */
+  private static final String[] FOR_UPDATE_VALUES = {"' for update'", "\"x for update\""};
+
+  @Test public void agreesWithRegexClassification() throws SQLException {
+    Random random = new Random(20160226L);
+    for (int i = 0; i < ITERATIONS; i++) {
+      Generator generator = new Generator(random);
+      SqlType expected = generator.statement();
+      String sql = generator.sql();
+      assertEquals(sql, expected, SqlScanner.classify(sql));
+      if (generator.comparable && sql.indexOf('\n') < 0) {
+        assertEquals(sql, regexSqlType(sql), SqlScanner.classify(sql));
+      }
+    }
+  }
+
+  @Test public void fixesRegexMisclassifications() throws SQLException {
+    String[] sqls = {
+        "select * from t where a = ' for update'",
+        "-- comment\nselect * from t",
+        "# comment\ndelete from t",
+        "select *\nfrom t\nfor update",
+        "with x as (select 1) select * from x",
+        "WITH RECURSIVE x (n) AS (SELECT 1 UNION SELECT n + 1 FROM x) UPDATE t SET a = 1"};
+    SqlType[] expected = {SqlType.SELECT, SqlType.SELECT, SqlType.DELETE,
+        SqlType.SELECT_FOR_UPDATE, SqlType.SELECT, SqlType.UPDATE};
+    for (int i = 0; i < sqls.length; i++) {
+      assertEquals(sqls[i], expected[i], SqlScanner.classify(sqls[i]));
+    }
+  }
+
+  /**
+   * 改用SqlScanner之前SQLParser.getSqlType的实现
+   */
+  private static SqlType regexSqlType(String sql) throws SQLException {
+    String noCommentsSql = sql;
+    if (sql.contains("/*")) {
+      noCommentsSql = StringUtils.stripComments(sql, "'\"", "'\"", true, false, true, true).trim();
+    }
+    if (StringUtils.startsWithIgnoreCaseAndWs(noCommentsSql, "select")) {
+      if (noCommentsSql.toLowerCase().contains(" for ")
+          && SELECT_FOR_UPDATE_PATTERN.matcher(noCommentsSql).matches()) {
+        return SqlType.SELECT_FOR_UPDATE;
+      }
+      return SqlType.SELECT;
+    }
+    String[] prefixes = {"show", "insert", "update", "delete", "replace", "truncate", "create",
+        "drop", "load", "alter"};
+    SqlType[] types = {SqlType.SHOW, SqlType.INSERT, SqlType.UPDATE, SqlType.DELETE,
+        SqlType.REPLACE, SqlType.TRUNCATE, SqlType.CREATE, SqlType.DROP, SqlType.LOAD,
+        SqlType.ALTER};
+    for (int i = 0; i < prefixes.length; i++) {
+      if (StringUtils.startsWithIgnoreCaseAndWs(noCommentsSql, prefixes[i])) {
+        return types[i];
+      }
+    }
+    throw new SQLException("unsupported sql: " + sql);
+  }
+
+  /**
+   * 随机生成一条语句并给出期望的类型,comparable为false表示原来的分类在这条语句上是错的
+   * 或者不支持,只检查期望的类型
+   */
+  private static final class Generator {
+    private final Random random;
+    private final StringBuilder sql = new StringBuilder();
+    private boolean comparable = true;
+
+    Generator(Random random) {
+      this.random = random;
+    }
+
+    String sql() {
+      return sql.toString();
+    }
+
+    SqlType statement() {
+      leading();
+      if (random.nextInt(6) == 0) {
+        return withStatement();
+      }
+      switch (random.nextInt(13)) {
+        case 0:
+          return select();
+        case 1:
+          select();
+          //for update前后只用空格,原来的正则才能匹配
+          sql.append(" for update");
+          trailing();
+          return SqlType.SELECT_FOR_UPDATE;
+        case 2:
+          select();
+          comparable = false;
+          if (random.nextBoolean()) {
+            keywords("lock", "in", "share", "mode");
+          } else {
+            keywords("for", "share");
+          }
+          return SqlType.SELECT_FOR_UPDATE;
+        case 3:
+          keywords("insert", "into");
+          table();
+          if (random.nextBoolean()) {
+            sql.append(" (a, id) ");
+            keyword("values");
+            sql.append(" (");
+            value();
+            sql.append(", ");
+            value();
+            sql.append(')');
+          } else {
+            gap();
+            select();
+          }
+          return SqlType.INSERT;
+        case 4:
+          keyword("update");
+          table();
+          gap();
+          keyword("set");
+          assignments();
+          where();
+          return SqlType.UPDATE;
+        case 5:
+          keywords("delete", "from");
+          table();
+          where();
+          return SqlType.DELETE;
+        case 6:
+          keywords("replace", "into");
+          table();
+          gap();
+          keyword("values");
+          sql.append(" (");
+          value();
+          sql.append(')');
+          return SqlType.REPLACE;
+        case 7:
+          keywords("truncate", "table");
+          table();
+          return SqlType.TRUNCATE;
+        case 8:
+          keywords("create", "table");
+          table();
+          sql.append(" (a int)");
+          return SqlType.CREATE;
+        case 9:
+          keywords("drop", "table");
+          table();
+          return SqlType.DROP;
+        case 10:
+          keywords("load", "data", "infile");
+          sql.append(" 'select.txt' ");
+          keywords("into", "table");
+          table();
+          return SqlType.LOAD;
+        case 11:
+          keywords("alter", "table");
+          table();
+          gap();
+          keywords("add", "column");
+          sql.append(" c int");
+          return SqlType.ALTER;
+        default:
+          keyword("show");
+          gap();
+          keyword(random.nextBoolean() ? "tables" : "create table t");
+          return SqlType.SHOW;
+      }
+    }
+
+    /**
+     * with开头的语句,原来的分类不支持
+     */
+    private SqlType withStatement() {
+      comparable = false;
+      keyword("with");
+      gap();
+      if (random.nextBoolean()) {
+        keyword("recursive");
+        gap();
+      }
+      int count = 1 + random.nextInt(2);
+      for (int i = 0; i < count; i++) {
+        if (i > 0) {
+          sql.append(',');
+          gap();
+        }
+        sql.append(random.nextBoolean() ? "x" + i : "`cte " + i + "`");
+        if (random.nextBoolean()) {
+          sql.append(" (a)");
+        }
+        gap();
+        keyword("as");
+        sql.append(" (");
+        //CTE中的for update、update不影响主语句的类型
+        if (random.nextBoolean()) {
+          select();
+        } else {
+          keyword("select");
+          sql.append(" 'update', ");
+          value();
+        }
+        sql.append(')');
+        gap();
+      }
+      switch (random.nextInt(4)) {
+        case 0:
+          keyword("update");
+          table();
+          gap();
+          keyword("set");
+          assignments();
+          return SqlType.UPDATE;
+        case 1:
+          keywords("delete", "from");
+          table();
+          return SqlType.DELETE;
+        case 2:
+          select();
+          keywords("for", "update");
+          return SqlType.SELECT_FOR_UPDATE;
+        default:
+          return select();
+      }
+    }
+
+    private SqlType select() {
+      keyword("select");
+      gap();
+      sql.append(random.nextBoolean() ? "*" : "a, id");
+      gap();
+      keyword("from");
+      table();
+      where();
+      return SqlType.SELECT;
+    }
+
+    private void where() {
+      if (random.nextInt(4) == 0) {
+        return;
+      }
+      gap();
+      keyword("where");
+      gap();
+      column();
+      sql.append(" = ");
+      if (random.nextInt(10) == 0) {
+        sql.append(FOR_UPDATE_VALUES[random.nextInt(FOR_UPDATE_VALUES.length)]);
+        comparable = false;
+      } else {
+        value();
+      }
+    }
+
+    private void assignments() {
+      gap();
+      column();
+      sql.append(" = ");
+      value();
+      if (random.nextBoolean()) {
+        sql.append(", ");
+        column();
+        sql.append(" = ");
+        value();
+      }
+    }
+
+    private void leading() {
+      switch (random.nextInt(8)) {
+        case 0:
+          sql.append("/* leading */ ");
+          break;
+        case 1:
+          sql.append("/*+ master */");
+          break;
+        case 2:
+          sql.append("  \n\t");
+          break;
+        case 3:
+          sql.append("-- select 1\n");
+          comparable = false;
+          break;
+        case 4:
+          sql.append("# update t\n");
+          comparable = false;
+          break;
+        default:
+          break;
+      }
+    }
+
+    private void trailing() {
+      if (random.nextBoolean()) {
+        sql.append(random.nextBoolean() ? ";" : " /* trailing */");
+      }
+    }
+
+    /**
+     * 单词之间的空白或者注释,注释两边留空格,原来的分类去掉注释后单词不会连在一起
+     */
+    private void gap() {
+      switch (random.nextInt(8)) {
+        case 0:
+          sql.append('\t');
+          break;
+        case 1:
+          sql.append('\n');
+          break;
+        case 2:
+          sql.append(" /* for update */ ");
+          break;
+        case 3:
+          sql.append(" /* a ' quote */ ");
+          break;
+        case 4:
+          sql.append("   ");
+          break;
+        default:
+          sql.append(' ');
+          break;
+      }
+    }
+
+    private void table() {
+      gap();
+      sql.append(TABLES[random.nextInt(TABLES.length)]);
+    }
+
+    private void column() {
+      sql.append(COLUMNS[random.nextInt(COLUMNS.length)]);
+    }
+
+    private void value() {
+      sql.append(VALUES[random.nextInt(VALUES.length)]);
+    }
+
+    private void keywords(String... keywords) {
+      for (String keyword : keywords) {
+        sql.append(' ');
+        keyword(keyword);
+      }
+    }
+
+    /**
+     * 随机大小写的关键字
+     */
+    private void keyword(String keyword) {
+      for (int i = 0; i < keyword.length(); i++) {
+        char c = keyword.charAt(i);
+        sql.append(random.nextBoolean() ? Character.toUpperCase(c) : c);
+      }
+    }
+  }
+}
@@ -0,0 +1,82 @@
+package cn.yxffcode.datasource.masterslave;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 有上限的并发许可,以及使用它的隔舱和并发限制
+ *
+ * @author gaohang
+ */
+public class BoundedPermitsTest {
+
+  private static BoundedPermits permits(final AtomicInteger limit, long queueTimeoutMillis) {
+    return new BoundedPermits(TimeUnit.MILLISECONDS.toNanos(queueTimeoutMillis)) {
+      @Override int limit() {
+        return limit.get();
+      }
+    };
+  }
+
+  @Test public void boundsInFlightByCurrentLimit() {
+    AtomicInteger limit = new AtomicInteger(2);
+    BoundedPermits permits = permits(limit, 0);
+    assertTrue(permits.acquire());
+    assertTrue(permits.acquire());
+    assertFalse(permits.acquire());
+    assertEquals(2, permits.inFlight());
+    permits.release();
+    assertTrue(permits.tryAcquire());
+
+    //上限调整后立即生效
+    limit.set(3);
+    assertTrue(permits.tryAcquire());
+    limit.set(1);
+    permits.release();
+    assertFalse(permits.tryAcquire());
+    assertEquals(2, permits.inFlight());
+  }
+
+  @Test public void waitsForReleaseUntilQueueTimeout() throws Exception {
+    final BoundedPermits permits = permits(new AtomicInteger(1), 1000);
+    assertTrue(permits.acquire());
+    Thread releaser = new Thread() {
+      @Override public void run() {
+        try {
+          Thread.sleep(50);
+        } catch (InterruptedException e) {
+          return;
+        }
+        permits.release();
+      }
+    };
+    releaser.start();
+    assertTrue(permits.acquire());
+    releaser.join();
+
+    BoundedPermits rejecting = permits(new AtomicInteger(1), 20);
+    assertTrue(rejecting.acquire());
+    long start = System.nanoTime();
+    assertFalse(rejecting.acquire());
+    assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(20));
+  }
+
+  @Test public void bulkheadLimitsOnlyConfiguredClasses() {
+    TrafficClassQuota quota = new TrafficClassQuota();
+    quota.setMaxConcurrent(1);
+    Bulkhead bulkhead = new Bulkhead(Collections.singletonMap("batch", quota));
+    assertTrue(bulkhead.acquire("batch"));
+    assertFalse(bulkhead.acquire("batch"));
+    assertTrue(bulkhead.acquire("online"));
+    assertTrue(bulkhead.acquire(null));
+    bulkhead.release("batch");
+    assertTrue(bulkhead.acquire("batch"));
+  }
+}
@@ -0,0 +1,140 @@
+package cn.yxffcode.datasource.masterslave;
+
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.SQLNonTransientConnectionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * 熔断器的状态转换:CLOSED -> OPEN -> HALF_OPEN -> CLOSED/OPEN
+ *
+ * @author gaohang
+ */
+public class CircuitBreakerTest {
+
+  private static final long OPEN_DURATION = 50;
+
+  private static CircuitBreakerConfig config() {
+    CircuitBreakerConfig config = new CircuitBreakerConfig();
+    config.setMinimumCalls(4);
+    config.setFailureRateThreshold(0.5);
+    config.setTimeoutRateThreshold(0.5);
+    config.setOpenDuration(OPEN_DURATION);
+    config.setTrialCalls(2);
+    return config;
+  }
+
+  private static void waitOpenDuration() throws InterruptedException {
+    Thread.sleep(OPEN_DURATION + 20);
+  }
+
+  private static CircuitBreaker open() {
+    CircuitBreaker breaker = new CircuitBreaker("test", config());
+    for (int i = 0; i < 4; i++) {
+      breaker.onFailure(false);
+    }
+    assertTrue(breaker.isOpen());
+    return breaker;
+  }
+
+  @Test public void opensAtFailureRate() {
+    CircuitBreaker breaker = new CircuitBreaker("test", config());
+    breaker.onSuccess(0);
+    breaker.onSuccess(0);
+    breaker.onFailure(false);
+    //不足minimumCalls
+    assertFalse(breaker.isOpen());
+    assertTrue(breaker.tryAcquire());
+    breaker.onFailure(false);
+    assertTrue(breaker.isOpen());
+    assertFalse(breaker.tryAcquire());
+    assertFalse(breaker.allowsTraffic());
+  }
+
+  @Test public void countsSlowCallsAsTimeouts() {
+    CircuitBreakerConfig config = config();
+    config.setSlowCallThreshold(10);
+    CircuitBreaker breaker = new CircuitBreaker("test", config);
+    long slow = TimeUnit.MILLISECONDS.toNanos(20);
+    breaker.onSuccess(0);
+    breaker.onSuccess(0);
+    breaker.onSuccess(slow);
+    assertFalse(breaker.isOpen());
+    breaker.onSuccess(slow);
+    assertTrue(breaker.isOpen());
+  }
+
+  @Test public void closesAfterTrialSuccesses() throws Exception {
+    CircuitBreaker breaker = open();
+    waitOpenDuration();
+    assertFalse(breaker.isOpen());
+    assertTrue(breaker.allowsTraffic());
+    assertTrue(breaker.tryAcquire());
+    assertTrue(breaker.tryAcquire());
+    //试探许可用完
+    assertFalse(breaker.tryAcquire());
+    breaker.onSuccess(0);
+    assertFalse(breaker.tryAcquire());
+    breaker.onSuccess(0);
+    assertTrue(breaker.tryAcquire());
+    //关闭后重新开始统计,之前的失败不再计入
+    for (int i = 0; i < 3; i++) {
+      breaker.onFailure(false);
+    }
+    assertFalse(breaker.isOpen());
+  }
+
+  @Test public void reopensOnTrialFailure() throws Exception {
+    CircuitBreaker breaker = open();
+    waitOpenDuration();
+    assertTrue(breaker.tryAcquire());
+    breaker.onSuccess(0);
+    breaker.onFailure(true);
+    assertTrue(breaker.isOpen());
+    assertFalse(breaker.tryAcquire());
+    waitOpenDuration();
+    assertTrue(breaker.tryAcquire());
+  }
+
+  @Test public void rearmsTrialsWithoutResults() throws Exception {
+    CircuitBreaker breaker = open();
+    waitOpenDuration();
+    assertTrue(breaker.tryAcquire());
+    assertTrue(breaker.tryAcquire());
+    assertFalse(breaker.tryAcquire());
+    assertFalse(breaker.allowsTraffic());
+    //试探请求一直没有结果
+    waitOpenDuration();
+    assertTrue(breaker.allowsTraffic());
+    assertTrue(breaker.tryAcquire());
+    assertTrue(breaker.tryAcquire());
+    assertFalse(breaker.tryAcquire());
+  }
+
+  @Test public void acquiringConnectionsDoesNotCloseHalfOpen() throws Exception {
+    DataSourceNode node = new DataSourceNode(new StubDataSource().proxy(), 1);
+    node.setCircuitBreaker(new CircuitBreaker("test", config()));
+    for (int i = 0; i < 4; i++) {
+      node.recordFailure(0, new SQLNonTransientConnectionException("refused", "08001"));
+    }
+    waitOpenDuration();
+    for (int i = 0; i < 2; i++) {
+      Connection connection = node.getConnection(null);
+      node.release(connection, null);
+    }
+    try {
+      node.getConnection(null);
+      fail();
+    } catch (CircuitBreakerOpenException expected) {
+      //两个试探请求都没有执行语句
+    }
+    node.recordSuccess(0);
+    node.recordSuccess(0);
+    node.release(node.getConnection(null), null);
+  }
+}
@@ -0,0 +1,74 @@
+package cn.yxffcode.datasource.masterslave;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 预热时预处理的Statement在内置连接池的连接上保留,之后的请求直接复用
+ *
+ * @author gaohang
+ */
+public class ConnectionWarmerTest {
+  private static final String SQL = "select * from t where id = ?";
+
+  private StubDataSource master;
+  private StubDataSource slave;
+  private MasterslaveDataSourceFactoryBean factoryBean;
+
+  @Before public void setUp() {
+    master = new StubDataSource();
+    slave = new StubDataSource();
+  }
+
+  @After public void tearDown() throws Exception {
+    factoryBean.destroy();
+  }
+
+  private DataSource dataSource(PoolConfig pool) throws Exception {
+    factoryBean = new MasterslaveDataSourceFactoryBean();
+    factoryBean.setMaster(master.proxy());
+    factoryBean.setSlaves(Collections.singletonList(slave.proxy()));
+    factoryBean.setHealthcheck(false);
+    factoryBean.setPool(pool);
+    factoryBean.setStatementCacheSize(16);
+    factoryBean.setWarmupConnections(1);
+    factoryBean.setWarmupSqls(Collections.singletonList(SQL));
+    factoryBean.afterPropertiesSet();
+    return factoryBean.getObject();
+  }
+
+  @Test public void keepsWarmedStatementsInPooledConnection() throws Exception {
+    PoolConfig pool = new PoolConfig();
+    pool.setMinIdle(0);
+    DataSource dataSource = dataSource(pool);
+    assertTrue(factoryBean.isWarmedUp());
+    assertEquals(1, slave.preparedStatements.get());
+    assertEquals(0, slave.closedStatements.get());
+
+    Connection connection = dataSource.getConnection();
+    PreparedStatement statement = connection.prepareStatement(SQL);
+    statement.setInt(1, 1);
+    statement.executeQuery().close();
+    statement.close();
+    connection.close();
+    assertEquals(1, slave.connections.get());
+    assertEquals(1, slave.preparedStatements.get());
+    assertEquals(Collections.singletonList(SQL), slave.executedSql());
+  }
+
+  @Test public void closesWarmedStatementsWithoutPool() throws Exception {
+    dataSource(null);
+    assertEquals(1, slave.preparedStatements.get());
+    assertEquals(1, slave.closedStatements.get());
+    assertEquals(1, slave.closedConnections.get());
+  }
+}
@@ -0,0 +1,115 @@
+package cn.yxffcode.datasource.masterslave;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+/**
+ * 逻辑连接上的set语句:在内置连接池的连接上只执行一次,事务相关的set语句转成JDBC调用
+ *
+ * @author gaohang
+ */
+public class MasterslaveConnectionTest {
+
+  private StubDataSource master;
+  private StubDataSource slave;
+  private MasterslaveDataSourceFactoryBean factoryBean;
+
+  @Before public void setUp() {
+    master = new StubDataSource();
+    slave = new StubDataSource();
+  }
+
+  @After public void tearDown() throws Exception {
+    factoryBean.destroy();
+  }
+
+  private DataSource dataSource(String sessionResetSql) throws Exception {
+    PoolConfig pool = new PoolConfig();
+    pool.setMinIdle(0);
+    pool.setSessionResetSql(sessionResetSql);
+    factoryBean = new MasterslaveDataSourceFactoryBean();
+    factoryBean.setMaster(master.proxy());
+    factoryBean.setSlaves(Collections.singletonList(slave.proxy()));
+    factoryBean.setHealthcheck(false);
+    factoryBean.setPool(pool);
+    factoryBean.setStatementScopedReads(true);
+    factoryBean.afterPropertiesSet();
+    return factoryBean.getObject();
+  }
+
+  @Test public void reusesPooledConnectionAfterSessionStatement() throws Exception {
+    Connection connection = dataSource(null).getConnection();
+    Statement statement = connection.createStatement();
+    statement.execute("set names utf8mb4");
+    for (int i = 0; i < 100; i++) {
+      statement.executeQuery("select * from t where id = " + i).close();
+    }
+    //每条读都重新借用读连接,借到的是执行过set names的同一个物理连接
+    assertEquals(1, slave.connections.get());
+    assertEquals(0, slave.closedConnections.get());
+    assertEquals(1, Collections.frequency(slave.executedSql(), "set names utf8mb4"));
+    connection.close();
+  }
+
+  @Test public void closesPooledConnectionWithForeignSession() throws Exception {
+    DataSource dataSource = dataSource(null);
+    Connection connection = dataSource.getConnection();
+    connection.createStatement().execute("set @tenant = 1");
+    connection.close();
+
+    //新的逻辑连接没有执行过set,不能借到带着@tenant的连接
+    connection = dataSource.getConnection();
+    connection.createStatement().executeQuery("select 1").close();
+    assertEquals(2, slave.connections.get());
+    assertEquals(1, slave.closedConnections.get());
+    connection.close();
+  }
+
+  @Test public void resetsPooledConnectionWithForeignSession() throws Exception {
+    DataSource dataSource = dataSource("reset connection");
+    Connection connection = dataSource.getConnection();
+    connection.createStatement().execute("set @tenant = 1");
+    connection.close();
+
+    connection = dataSource.getConnection();
+    connection.createStatement().executeQuery("select 1").close();
+    assertEquals(1, slave.connections.get());
+    assertEquals(1, Collections.frequency(slave.executedSql(), "reset connection"));
+    connection.close();
+  }
+
+  @Test public void mapsTransactionStatements() throws Exception {
+    Connection connection = dataSource(null).getConnection();
+    Statement statement = connection.createStatement();
+    statement.execute("SET autocommit = 0");
+    assertFalse(connection.getAutoCommit());
+    statement.execute("set session transaction isolation level read committed");
+    assertEquals(Connection.TRANSACTION_READ_COMMITTED, connection.getTransactionIsolation());
+    statement.execute("set @@tx_isolation = 'SERIALIZABLE'");
+    assertEquals(Connection.TRANSACTION_SERIALIZABLE, connection.getTransactionIsolation());
+    assertEquals(0, master.executions.size() + slave.executions.size());
+
+    String[] unsupported = {"set transaction isolation level serializable",
+        "set session transaction read only", "set autocommit = 0, @a = 1"};
+    for (String sql : unsupported) {
+      try {
+        statement.execute(sql);
+        fail(sql);
+      } catch (SQLException expected) {
+        //只对下一个事务生效或无法转换
+      }
+    }
+    connection.close();
+  }
+}
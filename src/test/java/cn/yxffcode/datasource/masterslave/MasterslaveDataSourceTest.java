@@ -0,0 +1,42 @@
+package cn.yxffcode.datasource.masterslave;
+
+import org.junit.Test;
+
+import javax.sql.DataSource;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * 换从库重试、对冲读和并发饱和时选择另一个从库
+ *
+ * @author gaohang
+ */
+public class MasterslaveDataSourceTest {
+
+  @Test public void otherSlaveAvoidsExcludedWithEveryStrategy() throws Exception {
+    for (LoadBalanceStrategy strategy : LoadBalanceStrategy.values()) {
+      MasterslaveDataSourceFactoryBean factoryBean = new MasterslaveDataSourceFactoryBean();
+      factoryBean.setMaster(new StubDataSource().proxy());
+      List<DataSource> slaves =
+          Arrays.asList(new StubDataSource().proxy(), new StubDataSource().proxy());
+      factoryBean.setSlaves(slaves);
+      factoryBean.setHealthcheck(false);
+      factoryBean.setLoadBalanceStrategy(strategy);
+      factoryBean.afterPropertiesSet();
+      MasterslaveDataSource dataSource = (MasterslaveDataSource) factoryBean.getObject();
+      Topology topology = dataSource.getTopology();
+      DataSourceNode first = topology.getSlaves().get(0);
+      DataSourceNode second = topology.getSlaves().get(1);
+      for (int i = 0; i < 100; i++) {
+        assertSame(strategy.name(), second, dataSource.otherSlave(topology, first));
+        assertSame(strategy.name(), first, dataSource.otherSlave(topology, second));
+      }
+      second.setAvailable(false);
+      assertNull(strategy.name(), dataSource.otherSlave(topology, first));
+      factoryBean.destroy();
+    }
+  }
+}
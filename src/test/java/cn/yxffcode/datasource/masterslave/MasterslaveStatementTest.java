@@ -0,0 +1,74 @@
+package cn.yxffcode.datasource.masterslave;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * 同一个MasterslaveStatement多次执行时每个路由只创建一个物理Statement
+ *
+ * @author gaohang
+ */
+public class MasterslaveStatementTest {
+
+  private static final int EXECUTIONS = 10000;
+
+  private StubDataSource master;
+  private StubDataSource slave;
+  private MasterslaveDataSourceFactoryBean factoryBean;
+  private DataSource dataSource;
+
+  @Before public void setUp() throws Exception {
+    master = new StubDataSource();
+    slave = new StubDataSource();
+    factoryBean = new MasterslaveDataSourceFactoryBean();
+    factoryBean.setMaster(master.proxy());
+    factoryBean.setSlaves(Collections.singletonList(slave.proxy()));
+    factoryBean.setHealthcheck(false);
+    factoryBean.afterPropertiesSet();
+    dataSource = factoryBean.getObject();
+  }
+
+  @After public void tearDown() throws Exception {
+    factoryBean.destroy();
+  }
+
+  @Test public void reusesReadStatement() throws Exception {
+    Connection connection = dataSource.getConnection();
+    Statement statement = connection.createStatement();
+    for (int i = 0; i < EXECUTIONS; i++) {
+      statement.execute("select * from t where id = " + i);
+    }
+    assertEquals(1, slave.statements.get());
+    assertEquals(0, master.statements.get());
+    //上一次执行的结果集在下一次执行前关闭
+    assertEquals(EXECUTIONS - 1, slave.closedResultSets.get());
+
+    statement.close();
+    assertEquals(1, slave.closedStatements.get());
+    connection.close();
+  }
+
+  @Test public void reusesStatementPerRoute() throws Exception {
+    Connection connection = dataSource.getConnection();
+    Statement statement = connection.createStatement();
+    for (int i = 0; i < EXECUTIONS; i++) {
+      statement.executeQuery("select * from t where id = " + i);
+      statement.execute("update t set value = " + i + " where id = " + i);
+    }
+    assertEquals(1, slave.statements.get());
+    assertEquals(1, master.statements.get());
+
+    statement.close();
+    assertEquals(1, slave.closedStatements.get());
+    assertEquals(1, master.closedStatements.get());
+    connection.close();
+  }
+}
@@ -0,0 +1,115 @@
+package cn.yxffcode.datasource.masterslave;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.sql.DataSource;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * 拓扑变化后被移除的数据源:只有拓扑文件中配置、由DataSourceCreator创建的数据源才会被关闭
+ *
+ * @author gaohang
+ */
+public class NodeDrainerTest {
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private MasterslaveDataSourceFactoryBean factoryBean;
+
+  @Before public void setUp() throws Exception {
+    factoryBean = new MasterslaveDataSourceFactoryBean();
+    factoryBean.setMaster(new StubDataSource().proxy());
+    factoryBean.setSlaves(Collections.singletonList(new StubDataSource().proxy()));
+    factoryBean.setHealthcheck(false);
+    factoryBean.afterPropertiesSet();
+    factoryBean.getObject();
+  }
+
+  @After public void tearDown() throws Exception {
+    factoryBean.destroy();
+  }
+
+  @Test public void leavesProgrammaticDataSourcesToOwner() throws Exception {
+    AtomicInteger closed = new AtomicInteger();
+    DataSource master = closeable(closed);
+    DataSource slave = closeable(closed);
+    factoryBean.updateTopology(master, Collections.singletonList(slave));
+    factoryBean.updateTopology(master, Collections.singletonList(closeable(closed)));
+    Thread.sleep(200);
+    assertEquals(0, closed.get());
+  }
+
+  @Test public void closesDataSourcesCreatedFromTopologyFile() throws Exception {
+    final Map<String, AtomicInteger> closed = new HashMap<>();
+    DataSourceCreator creator = new DataSourceCreator() {
+      @Override public DataSource create(String name, Properties properties) {
+        AtomicInteger counter = new AtomicInteger();
+        closed.put(name, counter);
+        return closeable(counter);
+      }
+    };
+    File file = folder.newFile("topology.properties");
+    TopologyFileWatcher watcher = new TopologyFileWatcher(file, creator, factoryBean);
+    write(file, "master=db1\nslaves=db2,db3\ndb1.url=1\ndb2.url=2\ndb3.url=3\n");
+    watcher.load();
+    write(file, "master=db1\nslaves=db2\ndb1.url=1\ndb2.url=2\n");
+    watcher.load();
+    Thread.sleep(200);
+    assertEquals(Arrays.asList(0, 0, 1), Arrays.asList(closed.get("db1").get(),
+        closed.get("db2").get(), closed.get("db3").get()));
+    watcher.close();
+  }
+
+  private static void write(File file, String content) throws Exception {
+    try (OutputStream out = new FileOutputStream(file)) {
+      out.write(content.getBytes(StandardCharsets.UTF_8));
+    }
+  }
+
+  /**
+   * 实现了AutoCloseable的DataSource,记录关闭次数
+   */
+  private static DataSource closeable(final AtomicInteger closed) {
+    final DataSource delegate = new StubDataSource().proxy();
+    return (DataSource) Proxy.newProxyInstance(NodeDrainerTest.class.getClassLoader(),
+        new Class<?>[] {DataSource.class, AutoCloseable.class}, new InvocationHandler() {
+          @Override public Object invoke(Object proxy, Method method, Object[] args)
+              throws Throwable {
+            if (method.getName().equals("close")) {
+              closed.incrementAndGet();
+              return null;
+            }
+            if (method.getName().equals("equals")) {
+              return proxy == args[0];
+            }
+            if (method.getName().equals("hashCode")) {
+              return System.identityHashCode(proxy);
+            }
+            try {
+              return method.invoke(delegate, args);
+            } catch (InvocationTargetException e) {
+              throw e.getCause();
+            }
+          }
+        });
+  }
+}
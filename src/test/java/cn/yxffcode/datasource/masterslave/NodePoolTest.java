@@ -0,0 +1,230 @@
+package cn.yxffcode.datasource.masterslave;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.util.Collections;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * 内置连接池:借出、归还和移交,全局名额的占用和释放,归还时恢复会话状态
+ *
+ * @author gaohang
+ */
+public class NodePoolTest {
+
+  private ConnectionPool connectionPool;
+
+  @After public void tearDown() {
+    connectionPool.close();
+  }
+
+  private ConnectionPool connectionPool(int maxTotal, long borrowTimeout, String sessionResetSql) {
+    PoolConfig config = new PoolConfig();
+    config.setMaxTotal(maxTotal);
+    config.setMinIdle(0);
+    config.setBorrowTimeout(borrowTimeout);
+    config.setSessionResetSql(sessionResetSql);
+    connectionPool = new ConnectionPool(config);
+    return connectionPool;
+  }
+
+  @Test public void reusesReturnedConnection() throws Exception {
+    StubDataSource dataSource = new StubDataSource();
+    NodePool pool = connectionPool(2, 1000, null).create(dataSource.proxy());
+    Connection connection = pool.getConnection(null);
+    assertEquals(1, pool.getInUse());
+    connection.close();
+    assertTrue(connection.isClosed());
+    assertEquals(0, pool.getInUse());
+    assertEquals(1, pool.getIdle());
+
+    pool.getConnection(null).close();
+    assertEquals(1, dataSource.connections.get());
+    assertEquals(0, dataSource.closedConnections.get());
+    assertEquals(1, connectionPool.getTotal());
+  }
+
+  @Test public void rejectsUseAfterReturn() throws Exception {
+    NodePool pool = connectionPool(1, 1000, null).create(new StubDataSource().proxy());
+    Connection connection = pool.getConnection(null);
+    connection.close();
+    //重复关闭没有影响
+    connection.close();
+    assertEquals(0, pool.getInUse());
+    try {
+      connection.createStatement();
+      fail();
+    } catch (SQLException expected) {
+      //代理连接已经归还
+    }
+  }
+
+  @Test public void handsOffReturnedConnectionToWaiter() throws Exception {
+    StubDataSource dataSource = new StubDataSource();
+    final NodePool pool = connectionPool(1, 5000, null).create(dataSource.proxy());
+    Connection held = pool.getConnection(null);
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      Future<Connection> waiter = executor.submit(new Callable<Connection>() {
+        @Override public Connection call() throws Exception {
+          return pool.getConnection(null);
+        }
+      });
+      Thread.sleep(100);
+      assertFalse(waiter.isDone());
+      held.close();
+      Connection handedOff = waiter.get(1, TimeUnit.SECONDS);
+      assertEquals(1, pool.getInUse());
+      handedOff.close();
+    } finally {
+      executor.shutdownNow();
+    }
+    assertEquals(1, dataSource.connections.get());
+    assertEquals(1, connectionPool.getTotal());
+  }
+
+  @Test public void timesOutWhenExhausted() throws Exception {
+    NodePool pool = connectionPool(1, 50, null).create(new StubDataSource().proxy());
+    Connection held = pool.getConnection(null);
+    try {
+      pool.getConnection(null);
+      fail();
+    } catch (SQLTransientConnectionException expected) {
+      assertEquals("08001", expected.getSQLState());
+    }
+    assertEquals(1, connectionPool.getTotal());
+    held.close();
+  }
+
+  @Test public void releasesReservationWhenCreateFails() throws Exception {
+    StubDataSource dataSource = new StubDataSource();
+    NodePool pool = connectionPool(1, 1000, null).create(dataSource.proxy());
+    dataSource.connectionFailure = new SQLException("refused", "08001");
+    for (int i = 0; i < 3; i++) {
+      try {
+        pool.getConnection(null);
+        fail();
+      } catch (SQLException expected) {
+        assertEquals(0, connectionPool.getTotal());
+      }
+    }
+    assertEquals(0, pool.getInUse());
+    dataSource.connectionFailure = null;
+    pool.getConnection(null).close();
+    assertEquals(1, connectionPool.getTotal());
+  }
+
+  @Test public void movesCapacityFromIdleNode() throws Exception {
+    StubDataSource first = new StubDataSource();
+    StubDataSource second = new StubDataSource();
+    connectionPool(1, 1000, null);
+    NodePool firstPool = connectionPool.create(first.proxy());
+    NodePool secondPool = connectionPool.create(second.proxy());
+    firstPool.getConnection(null).close();
+    assertEquals(1, firstPool.getIdle());
+
+    //名额用完,回收第一个数据源多余的空闲连接
+    Connection connection = secondPool.getConnection(null);
+    assertEquals(0, firstPool.getIdle());
+    assertEquals(1, first.closedConnections.get());
+    assertEquals(1, connectionPool.getTotal());
+    connection.close();
+  }
+
+  @Test public void keepsCapacityOfBusyNode() throws Exception {
+    connectionPool(1, 50, null);
+    NodePool busy = connectionPool.create(new StubDataSource().proxy());
+    NodePool other = connectionPool.create(new StubDataSource().proxy());
+    Connection held = busy.getConnection(null);
+    try {
+      other.getConnection(null);
+      fail();
+    } catch (SQLTransientConnectionException expected) {
+      //使用中的连接不会被回收
+      assertEquals(1, busy.getInUse());
+    }
+    held.close();
+  }
+
+  @Test public void restoresSessionStateOnReturn() throws Exception {
+    StubDataSource dataSource = new StubDataSource();
+    NodePool pool = connectionPool(1, 1000, null).create(dataSource.proxy());
+    Connection connection = pool.getConnection(null);
+    int isolation = connection.getTransactionIsolation();
+    connection.setAutoCommit(false);
+    connection.setReadOnly(true);
+    connection.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
+    connection.close();
+
+    connection = pool.getConnection(null);
+    assertTrue(connection.getAutoCommit());
+    assertFalse(connection.isReadOnly());
+    assertEquals(isolation, connection.getTransactionIsolation());
+    connection.close();
+    assertEquals(1, dataSource.connections.get());
+  }
+
+  @Test public void closesBrokenConnectionOnReturn() throws Exception {
+    StubDataSource dataSource = new StubDataSource();
+    NodePool pool = connectionPool(1, 1000, null).create(dataSource.proxy());
+    Connection connection = pool.getConnection(null);
+    pool.discard(connection);
+    connection.close();
+    assertEquals(1, dataSource.closedConnections.get());
+    assertEquals(0, connectionPool.getTotal());
+    pool.getConnection(null).close();
+    assertEquals(2, dataSource.connections.get());
+  }
+
+  @Test public void closesModifiedSessionWithoutResetSql() throws Exception {
+    StubDataSource dataSource = new StubDataSource();
+    NodePool pool = connectionPool(1, 1000, null).create(dataSource.proxy());
+    Connection connection = pool.getConnection(null);
+    pool.sessionModified(connection);
+    connection.close();
+    assertEquals(1, dataSource.closedConnections.get());
+    assertEquals(0, connectionPool.getTotal());
+  }
+
+  @Test public void resetsModifiedSessionOnReturn() throws Exception {
+    StubDataSource dataSource = new StubDataSource();
+    NodePool pool = connectionPool(1, 1000, "reset connection").create(dataSource.proxy());
+    Connection connection = pool.getConnection(null);
+    pool.sessionModified(connection);
+    connection.close();
+    assertEquals(0, dataSource.closedConnections.get());
+    assertEquals(Collections.singletonList("reset connection"), dataSource.executedSql());
+  }
+
+  @Test public void keepsAppliedSessionForMatchingBorrower() throws Exception {
+    StubDataSource dataSource = new StubDataSource();
+    NodePool pool = connectionPool(1, 1000, null).create(dataSource.proxy());
+    Connection connection = pool.getConnection(null);
+    pool.sessionApplied(connection, "names", "set names utf8mb4");
+    connection.close();
+
+    connection = pool.getConnection(Collections.singletonMap("names", "set names utf8mb4"));
+    assertEquals(Collections.singletonMap("names", "set names utf8mb4"),
+        pool.appliedSessionStatements(connection));
+    connection.close();
+    assertEquals(1, dataSource.connections.get());
+
+    //借用方的会话中没有这个变量,不能重置时关闭
+    pool.getConnection(null).close();
+    assertEquals(2, dataSource.connections.get());
+    assertEquals(1, dataSource.closedConnections.get());
+  }
+}
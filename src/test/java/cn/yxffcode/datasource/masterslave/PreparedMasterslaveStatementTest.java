@@ -0,0 +1,222 @@
+package cn.yxffcode.datasource.masterslave;
+
+import cn.yxffcode.datasource.SQLParser;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.sql.DataSource;
+import java.io.ByteArrayInputStream;
+import java.sql.BatchUpdateException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * PreparedMasterslaveStatement在读连接切换时的行为,以及批量insert改写成多行insert时的分块
+ *
+ * @author gaohang
+ */
+public class PreparedMasterslaveStatementTest {
+
+  private StubDataSource master;
+  private StubDataSource[] slaves;
+  private MasterslaveDataSourceFactoryBean factoryBean;
+  private MasterslaveDataSource dataSource;
+
+  @Before public void setUp() throws Exception {
+    master = new StubDataSource();
+    slaves = new StubDataSource[] {new StubDataSource(), new StubDataSource()};
+    factoryBean = new MasterslaveDataSourceFactoryBean();
+    factoryBean.setMaster(master.proxy());
+    factoryBean.setSlaves(Arrays.asList(slaves[0].proxy(), slaves[1].proxy()));
+    factoryBean.setHealthcheck(false);
+    factoryBean.setReadRetries(1);
+    factoryBean.setRewriteBatchedInserts(true);
+    factoryBean.afterPropertiesSet();
+    dataSource = (MasterslaveDataSource) factoryBean.getObject();
+  }
+
+  @After public void tearDown() throws Exception {
+    factoryBean.destroy();
+  }
+
+  @Test public void switchesOtherStatementsOffBrokenReadConnection() throws Exception {
+    Connection connection = dataSource.getConnection();
+    PreparedStatement first = connection.prepareStatement("select * from a where id = ?");
+    PreparedStatement second = connection.prepareStatement("select * from b where id = ?");
+    first.setInt(1, 1);
+    first.executeQuery().close();
+    second.setInt(1, 1);
+    second.executeQuery().close();
+    StubDataSource broken = slaves[0].connections.get() == 1 ? slaves[0] : slaves[1];
+    StubDataSource other = broken == slaves[0] ? slaves[1] : slaves[0];
+    assertEquals(2, broken.executions.size());
+
+    broken.failure = new SQLNonTransientConnectionException("Communications link failure", "08S01");
+    broken.failAt = broken.executions.size();
+    first.executeQuery().close();
+    //两个Statement在坏掉的连接上的物理Statement都已关闭,second直接在新的读连接上执行,不再切换
+    assertEquals(2, broken.closedStatements.get());
+    second.executeQuery().close();
+    assertEquals(3, broken.executions.size());
+    assertEquals(Arrays.asList("select * from a where id = ?", "select * from b where id = ?"),
+        other.executedSql());
+    assertEquals(1, other.connections.get());
+    connection.close();
+  }
+
+  /**
+   * 每一行估计为int(24)+"abc"(3*3+2)+"(?, ?),"(7)=42,不含行的SQL为28,120字节可以放下两行
+   */
+  @Test public void splitsMultiRowInsertByPacketSize() throws Exception {
+    dataSource.setMaxBatchPacketSize(120);
+    Connection connection = dataSource.getConnection();
+    PreparedStatement statement = connection.prepareStatement(
+        "insert into t (a, b) values (?, ?)");
+    addRows(statement, 5);
+    int[] counts = statement.executeBatch();
+    int[] expected = new int[5];
+    Arrays.fill(expected, Statement.SUCCESS_NO_INFO);
+    assertArrayEquals(expected, counts);
+    assertEquals(Arrays.asList("insert into t (a, b) values (?, ?),(?, ?)",
+        "insert into t (a, b) values (?, ?),(?, ?)", "insert into t (a, b) values (?, ?)"),
+        master.executedSql());
+    //每块的参数按行依次排列
+    Map<Integer, Object> second = master.executions.get(1).rows.get(0);
+    assertEquals(Arrays.<Object>asList(2, "abc", 3, "abc"), new ArrayList<>(second.values()));
+    connection.close();
+  }
+
+  @Test public void splitsMultiRowInsertByPlaceholderLimit() throws Exception {
+    StringBuilder sql = new StringBuilder("insert into t values (?");
+    for (int i = 1; i < 30000; i++) {
+      sql.append(", ?");
+    }
+    sql.append(')');
+    Connection connection = dataSource.getConnection();
+    PreparedStatement statement = connection.prepareStatement(sql.toString());
+    for (int i = 0; i < 5; i++) {
+      statement.setInt(1, i);
+      statement.addBatch();
+    }
+    statement.executeBatch();
+    //每条语句最多65535个占位符,即两行
+    List<Integer> rows = new ArrayList<>();
+    for (StubDataSource.Execution execution : master.executions) {
+      rows.add(SQLParser.countPlaceholders(execution.sql) / 30000);
+    }
+    assertEquals(Arrays.asList(2, 2, 1), rows);
+    connection.close();
+  }
+
+  @Test public void executesUnknownLengthRowsAlone() throws Exception {
+    Connection connection = dataSource.getConnection();
+    PreparedStatement statement = connection.prepareStatement(
+        "insert into t (a, b) values (?, ?)");
+    statement.setInt(1, 0);
+    statement.setString(2, "abc");
+    statement.addBatch();
+    statement.setInt(1, 1);
+    statement.setBinaryStream(2, new ByteArrayInputStream(new byte[16]));
+    statement.addBatch();
+    addRows(statement, 2);
+    statement.setInt(1, 2);
+    statement.setObject(2, new Object());
+    statement.addBatch();
+    int[] counts = statement.executeBatch();
+    assertEquals(5, counts.length);
+    assertEquals(Arrays.asList("insert into t (a, b) values (?, ?)",
+        "insert into t (a, b) values (?, ?)", "insert into t (a, b) values (?, ?),(?, ?)",
+        "insert into t (a, b) values (?, ?)"), master.executedSql());
+    connection.close();
+  }
+
+  @Test public void reportsExecutedRowsOnFailedChunk() throws Exception {
+    dataSource.setMaxBatchPacketSize(120);
+    master.failAt = 1;
+    Connection connection = dataSource.getConnection();
+    PreparedStatement statement = connection.prepareStatement(
+        "insert into t (a, b) values (?, ?)");
+    addRows(statement, 5);
+    try {
+      statement.executeBatch();
+      fail();
+    } catch (BatchUpdateException e) {
+      //第一块的两行已经成功
+      assertArrayEquals(new int[] {Statement.SUCCESS_NO_INFO, Statement.SUCCESS_NO_INFO},
+          e.getUpdateCounts());
+      assertEquals("23000", e.getSQLState());
+    }
+    assertEquals(2, master.executions.size());
+    connection.close();
+  }
+
+  @Test public void clearBatchDropsRecordedRows() throws Exception {
+    Connection connection = dataSource.getConnection();
+    PreparedStatement statement = connection.prepareStatement(
+        "insert into t (a, b) values (?, ?)");
+    addRows(statement, 3);
+    statement.clearBatch();
+    assertEquals(0, statement.executeBatch().length);
+    addRows(statement, 1);
+    assertEquals(1, statement.executeBatch().length);
+    assertEquals(1, master.executions.size());
+    connection.close();
+  }
+
+  @Test public void clearsPhysicalParametersAfterClearParameters() throws Exception {
+    Connection connection = dataSource.getConnection();
+    PreparedStatement statement = connection.prepareStatement(
+        "select * from t where a = ? and b = ?");
+    statement.setInt(1, 1);
+    statement.setInt(2, 2);
+    statement.executeQuery().close();
+    statement.clearParameters();
+    statement.setInt(1, 3);
+    statement.executeQuery().close();
+    statement.setInt(2, 4);
+    statement.executeQuery().close();
+    List<Map<Integer, Object>> parameters = new ArrayList<>();
+    for (StubDataSource slave : slaves) {
+      for (StubDataSource.Execution execution : slave.executions) {
+        parameters.add(execution.rows.get(0));
+      }
+    }
+    //clearParameters之后没有设置的第二个参数不能沿用上一次执行的值
+    assertEquals("[{1=1, 2=2}, {1=3}, {1=3, 2=4}]", parameters.toString());
+    connection.close();
+  }
+
+  @Test public void rejectsNonPositiveParameterIndex() throws Exception {
+    Connection connection = dataSource.getConnection();
+    PreparedStatement statement = connection.prepareStatement("select * from t where a = ?");
+    for (int index : new int[] {0, -1}) {
+      try {
+        statement.setInt(index, 1);
+        fail();
+      } catch (SQLException expected) {
+        //与驱动一致,不抛出ArrayIndexOutOfBoundsException
+      }
+    }
+    connection.close();
+  }
+
+  private static void addRows(PreparedStatement statement, int rows) throws Exception {
+    for (int i = 0; i < rows; i++) {
+      statement.setInt(1, i);
+      statement.setString(2, "abc");
+      statement.addBatch();
+    }
+  }
+}
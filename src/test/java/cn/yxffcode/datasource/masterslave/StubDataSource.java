@@ -0,0 +1,272 @@
+package cn.yxffcode.datasource.masterslave;
+
+import javax.sql.DataSource;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 测试用的DataSource,基于动态代理,统计创建和关闭的物理连接、Statement、ResultSet,
+ * 并记录每次执行的语句和参数
+ *
+ * @author gaohang
+ */
+final class StubDataSource {
+  final AtomicInteger connections = new AtomicInteger();
+  final AtomicInteger closedConnections = new AtomicInteger();
+  final AtomicInteger statements = new AtomicInteger();
+  final AtomicInteger preparedStatements = new AtomicInteger();
+  final AtomicInteger closedStatements = new AtomicInteger();
+  final AtomicInteger closedResultSets = new AtomicInteger();
+  final List<Execution> executions = new CopyOnWriteArrayList<>();
+
+  /**
+   * 取连接失败时抛出的异常,为null时正常返回
+   */
+  volatile SQLException connectionFailure;
+  /**
+   * isValid的返回值
+   */
+  volatile boolean valid = true;
+  /**
+   * 第几次执行(从0开始,按{@link #executions}计数)抛出异常,小于0时不失败
+   */
+  volatile int failAt = -1;
+  volatile SQLException failure = new SQLException("Duplicate entry", "23000", 1062);
+
+  private final DataSource proxy = stub(DataSource.class, new InvocationHandler() {
+    @Override public Object invoke(Object proxy, Method method, Object[] args)
+        throws SQLException {
+      if (method.getName().equals("getConnection")) {
+        if (connectionFailure != null) {
+          throw connectionFailure;
+        }
+        connections.incrementAndGet();
+        return connection();
+      }
+      return defaultValue(proxy, method, args);
+    }
+  });
+
+  DataSource proxy() {
+    return proxy;
+  }
+
+  /**
+   * 执行过的语句
+   */
+  List<String> executedSql() {
+    List<String> sqls = new ArrayList<>(executions.size());
+    for (Execution execution : executions) {
+      sqls.add(execution.sql);
+    }
+    return sqls;
+  }
+
+  private Connection connection() {
+    return stub(Connection.class, new InvocationHandler() {
+      private boolean autoCommit = true;
+      private boolean readOnly;
+      private int isolation = Connection.TRANSACTION_REPEATABLE_READ;
+      private boolean closed;
+
+      @Override public Object invoke(Object proxy, Method method, Object[] args)
+          throws SQLException {
+        String name = method.getName();
+        switch (name) {
+          case "createStatement":
+            statements.incrementAndGet();
+            return statement(null);
+          case "prepareStatement":
+            preparedStatements.incrementAndGet();
+            return statement((String) args[0]);
+          case "getAutoCommit":
+            return autoCommit;
+          case "setAutoCommit":
+            autoCommit = (Boolean) args[0];
+            return null;
+          case "isReadOnly":
+            return readOnly;
+          case "setReadOnly":
+            readOnly = (Boolean) args[0];
+            return null;
+          case "getTransactionIsolation":
+            return isolation;
+          case "setTransactionIsolation":
+            isolation = (Integer) args[0];
+            return null;
+          case "close":
+            if (!closed) {
+              closed = true;
+              closedConnections.incrementAndGet();
+            }
+            return null;
+          case "isClosed":
+            return closed;
+          case "isValid":
+            return !closed && valid;
+          default:
+            return defaultValue(proxy, method, args);
+        }
+      }
+    });
+  }
+
+  /**
+   * @param preparedSql 为null时是普通的Statement
+   */
+  private Statement statement(final String preparedSql) {
+    Class<? extends Statement> type = preparedSql == null ? Statement.class
+        : PreparedStatement.class;
+    return stub(type, new InvocationHandler() {
+      private final Map<Integer, Object> parameters = new TreeMap<>();
+      private final List<Map<Integer, Object>> batch = new ArrayList<>();
+      private ResultSet resultSet;
+      private int updateCount = -1;
+      private boolean closed;
+
+      @Override public Object invoke(Object proxy, Method method, Object[] args)
+          throws SQLException {
+        String name = method.getName();
+        if (name.startsWith("set") && args != null && args.length >= 2
+            && args[0] instanceof Integer && preparedSql != null) {
+          parameters.put((Integer) args[0], args[1]);
+          return null;
+        }
+        switch (name) {
+          case "execute":
+          case "executeQuery":
+          case "executeUpdate": {
+            String sql = preparedSql != null ? preparedSql : (String) args[0];
+            Map<Integer, Object> row = new TreeMap<>(parameters);
+            execute(sql, Collections.singletonList(row));
+            boolean query = sql.trim().toLowerCase().startsWith("select");
+            resultSet = query ? resultSet() : null;
+            updateCount = query ? -1 : 1;
+            if (name.equals("execute")) {
+              return query;
+            }
+            return name.equals("executeQuery") ? resultSet : (Object) updateCount;
+          }
+          case "addBatch":
+            batch.add(new TreeMap<>(parameters));
+            return null;
+          case "clearBatch":
+            batch.clear();
+            return null;
+          case "clearParameters":
+            parameters.clear();
+            return null;
+          case "executeBatch": {
+            List<Map<Integer, Object>> rows = new ArrayList<>(batch);
+            batch.clear();
+            execute(preparedSql, rows);
+            int[] counts = new int[rows.size()];
+            Arrays.fill(counts, 1);
+            return counts;
+          }
+          case "getResultSet":
+            return resultSet;
+          case "getUpdateCount":
+            return updateCount;
+          case "close":
+            if (!closed) {
+              closed = true;
+              closedStatements.incrementAndGet();
+            }
+            return null;
+          case "isClosed":
+            return closed;
+          default:
+            return defaultValue(proxy, method, args);
+        }
+      }
+    });
+  }
+
+  private void execute(String sql, List<Map<Integer, Object>> rows) throws SQLException {
+    if (executions.size() == failAt) {
+      executions.add(new Execution(sql, rows));
+      throw failure;
+    }
+    executions.add(new Execution(sql, rows));
+  }
+
+  private ResultSet resultSet() {
+    return stub(ResultSet.class, new InvocationHandler() {
+      private boolean closed;
+
+      @Override public Object invoke(Object proxy, Method method, Object[] args) {
+        String name = method.getName();
+        if (name.equals("close")) {
+          if (!closed) {
+            closed = true;
+            closedResultSets.incrementAndGet();
+          }
+          return null;
+        } else if (name.equals("isClosed")) {
+          return closed;
+        }
+        return defaultValue(proxy, method, args);
+      }
+    });
+  }
+
+  private static <T> T stub(Class<T> type, InvocationHandler handler) {
+    return type.cast(Proxy.newProxyInstance(StubDataSource.class.getClassLoader(),
+        new Class<?>[] {type}, handler));
+  }
+
+  /**
+   * 没有特别处理的方法返回类型的默认值
+   */
+  private static Object defaultValue(Object proxy, Method method, Object[] args) {
+    String name = method.getName();
+    if (name.equals("equals")) {
+      return proxy == args[0];
+    } else if (name.equals("hashCode")) {
+      return System.identityHashCode(proxy);
+    } else if (name.equals("toString")) {
+      return "stub@" + Integer.toHexString(System.identityHashCode(proxy));
+    }
+    Class<?> type = method.getReturnType();
+    if (type == boolean.class) {
+      return false;
+    } else if (type == int.class) {
+      return 0;
+    } else if (type == long.class) {
+      return 0L;
+    }
+    return null;
+  }
+
+  /**
+   * 一次执行:语句和每一行的参数,普通Statement的参数为空
+   */
+  static final class Execution {
+    final String sql;
+    final List<Map<Integer, Object>> rows;
+
+    Execution(String sql, List<Map<Integer, Object>> rows) {
+      this.sql = sql;
+      this.rows = rows;
+    }
+
+    @Override public String toString() {
+      return sql + rows;
+    }
+  }
+}